@@ -1,8 +1,15 @@
 package com.qualoutdoor.recorder;
 
+import java.io.File;
+
 import android.app.Application;
 import android.content.res.Resources;
 
+import com.qualoutdoor.recorder.network.UploadScheduler;
+import com.qualoutdoor.recorder.persistent.ExportDictionary;
+import com.qualoutdoor.recorder.persistent.PendingArchive;
+import com.qualoutdoor.recorder.persistent.SampleStore;
+
 /**
  * Extending Application in order to hold some global constants that can't be
  * stored in the XML files, and giving global access to application resources.
@@ -14,6 +21,10 @@ import android.content.res.Resources;
  * static Resources res = QualOutdoorRecorderApp.getAppResources();
  * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
  * 
+ * The application also holds the archive of the exported files and the
+ * scheduler uploading it : the uploads go on once the recording service is
+ * stopped, as long as the application lives.
+ * 
  * @author Gaborit Nicolas
  */
 public class QualOutdoorRecorderApp extends Application {
@@ -61,11 +72,24 @@ public class QualOutdoorRecorderApp extends Application {
 
     /** Archive file name */
     public static final String ARCHIVE_NAME = "pendingFiles";
+    /** Directory of the segment log sample store */
+    public static final String SEGMENT_DIRECTORY = "segments";
+    /** Directory of the files waiting to be uploaded */
+    public static final String UPLOAD_DIRECTORY = "uploads";
+
+    /** The archive holding the files waiting to be uploaded */
+    private PendingArchive pendingArchive;
+    /** The scheduler uploading the archive */
+    private UploadScheduler uploadScheduler;
 
     @Override
     public void onCreate() {
         // Initialize this application reference
         thisApp = this;
+        pendingArchive = createArchive();
+        uploadScheduler = new UploadScheduler(this, pendingArchive);
+        // Upload what the previous sessions have left
+        uploadScheduler.start();
     }
 
     /**
@@ -76,4 +100,40 @@ public class QualOutdoorRecorderApp extends Application {
     public static Resources getAppResources() {
         return thisApp.getApplicationContext().getResources();
     }
+
+    /** Return the archive holding the files waiting to be uploaded */
+    public static PendingArchive getPendingArchive() {
+        return thisApp.pendingArchive;
+    }
+
+    /**
+     * Return the scheduler uploading the archive. It is started with the
+     * application and never stopped.
+     */
+    public static UploadScheduler getUploadScheduler() {
+        return thisApp.uploadScheduler;
+    }
+
+    /** Return the export file format chosen in the application resources */
+    public static int getExportFormat() {
+        if (getAppResources().getBoolean(R.bool.export_binary_format))
+            return SampleStore.FORMAT_BINARY;
+        return SampleStore.FORMAT_TEXT;
+    }
+
+    /**
+     * Create the archive of the exported files, compressed as chosen in the
+     * application resources
+     */
+    private PendingArchive createArchive() {
+        Resources res = getResources();
+        PendingArchive pending = new PendingArchive(new File(getFilesDir(),
+                ARCHIVE_NAME));
+        byte[] dictionary = null;
+        if (res.getBoolean(R.bool.export_compression_dictionary))
+            dictionary = ExportDictionary.forFormat(getExportFormat());
+        pending.setCompression(res.getInteger(R.integer.export_compression_level),
+                dictionary);
+        return pending;
+    }
 }
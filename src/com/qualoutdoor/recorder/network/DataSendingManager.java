@@ -2,30 +2,80 @@ package com.qualoutdoor.recorder.network;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.os.AsyncTask;
+import android.util.Log;
+
+import com.qualoutdoor.recorder.persistent.PendingArchive;
 
 /**
- * AsyncTask able to send a specified file using a specified sending protocol.
+ * AsyncTask able to send specified files using a specified sending protocol.
+ * 
+ * The files are sent by a few workers at the same time. Each worker sends its
+ * files one after the other with its own sender : the HTTP connections are
+ * kept alive between the files, so a connection is not opened again for each
+ * file. The callback is called as each file is sent.
+ * 
+ * With http, the server is first asked which entries of an archive with a
+ * manifest it holds already (see PendingArchive) : only an archive of the
+ * missing entries is sent, under the name of the whole archive.
+ * 
+ * Each transfer is measured and kept by the UploadMonitor.
  */
-public class DataSendingManager extends AsyncTask<Void, Void, Boolean> {
+public class DataSendingManager extends AsyncTask<Void, DataSendingManager.SendResult, Boolean> {
+
+    /** The result of the sending of a file */
+    static class SendResult {
+        /** The sent file */
+        final File file;
+        /** Whether sending succeeded */
+        final boolean success;
+
+        SendResult(File file, boolean success) {
+            this.file = file;
+            this.success = success;
+        }
+    }
 
     /** server address to reach */
     private String target;
-    /** File to Send to server */
-    private File fileToUpload;
+    /** Files to Send to server */
+    private List<File> filesToUpload;
     /** Protocol to use for sending */
     private String protocole;
-    /** object to call when sending is over */
+    /** object to call when sending of a file is over */
     private SendCompleteListener callback;
+    /** size of the chunks of a resumable HTTP sending, 0 for a single request */
+    private int chunkSize;
+    /** number of files sent at the same time */
+    private int parallelism;
+    /** login on the FTP server */
+    private String ftpUser = "anonymous";
+    /** password on the FTP server */
+    private String ftpPassword = "";
+    /** storing path on the FTP server */
+    private String ftpPath = "/";
+    /** number of files that could not be sent */
+    private final AtomicInteger failureCount = new AtomicInteger();
 
     /**
      * Constructor of the class:
      * 
      * @param url
      *            The address to send data
-     * @param filesToUpload
+     * @param file
      *            The file to be upload
      * @param proto
      *            The protocol to use for sending
@@ -34,54 +84,204 @@ public class DataSendingManager extends AsyncTask<Void, Void, Boolean> {
      */
     public DataSendingManager(String url, File file, String proto,
             SendCompleteListener cb) {
+        this(url, file, proto, cb, 0);
+    }
+
+    /**
+     * Constructor of the class, with resumable HTTP sending:
+     * 
+     * @param chunkSize
+     *            The size in bytes of the chunks sent in separate requests, 0
+     *            to send the file in a single request. Only used with http.
+     * @see HttpFileSender
+     */
+    public DataSendingManager(String url, File file, String proto,
+            SendCompleteListener cb, int chunkSize) {
+        this(url, Collections.singletonList(file), proto, cb, chunkSize, 1);
+    }
+
+    /**
+     * Constructor of the class, for sending several files:
+     * 
+     * @param url
+     *            The address to send data
+     * @param files
+     *            The files to be upload
+     * @param proto
+     *            The protocol to use for sending
+     * @param cb
+     *            The callback to call each time a file has been sent
+     * @param chunkSize
+     *            The size in bytes of the chunks sent in separate requests, 0
+     *            to send the file in a single request. Only used with http.
+     * @param parallelism
+     *            The number of files sent at the same time
+     */
+    public DataSendingManager(String url, List<File> files, String proto,
+            SendCompleteListener cb, int chunkSize, int parallelism) {
         this.target = url;
-        this.fileToUpload = file;
+        this.filesToUpload = files;
         this.protocole = proto;
         this.callback = cb;
+        this.chunkSize = chunkSize;
+        this.parallelism = Math.max(1, Math.min(parallelism, files.size()));
     }
 
     /**
-     * Sending action will be executed in a background thread
+     * Set how to log in the FTP server, by default anonymously in its root
+     * directory. Only used with ftp.
+     * 
+     * @param user
+     *            The login on the FTP server
+     * @param password
+     *            The password of the login
+     * @param path
+     *            The directory where to store the files, ending with a '/'
+     */
+    public void setFtpLogin(String user, String password, String path) {
+        this.ftpUser = user;
+        this.ftpPassword = password;
+        this.ftpPath = path;
+    }
+
+    /**
+     * Sending action will be executed in background threads. Returns true if
+     * every file has been sent.
      */
     protected Boolean doInBackground(Void... params) {
+        // the files not taken by a worker yet
+        final ConcurrentLinkedQueue<File> queue = new ConcurrentLinkedQueue<File>(
+                this.filesToUpload);
+        ExecutorService workers = Executors
+                .newFixedThreadPool(this.parallelism);
+        for (int i = 0; i < this.parallelism; i++) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // the sender keeps its connection from a file to the next
+                    Sender sender = createSender();
+                    File file;
+                    // an interrupted worker takes no more files
+                    while (!Thread.currentThread().isInterrupted()
+                            && (file = queue.poll()) != null) {
+                        publishProgress(new SendResult(file, send(sender,
+                                file)));
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        boolean result = true;
         try {
-            // sender objet initialisation
-            Sender sender = null;
-            // if http protocol is chosen for sending
-            if (this.protocole.equals("http")) {
-                // set name of the input of the file in HTTP post formular that
-                // will be sent
-                sender = new HttpFileSender("uploadedFile");
-            }
-            // if ftp protocol is chosen
-            else if (this.protocole.equals("ftp")) {
-                // set login, password, and distant path required by FTP server
-                sender = new FtpFileSender("client", "alsett", "/myUploads/");
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            result = false;
+        }
+        // the files still queued have not been sent : they are reported as
+        // failed, so that the callback hears of every file
+        File file;
+        while ((file = queue.poll()) != null) {
+            this.failureCount.incrementAndGet();
+            publishProgress(new SendResult(file, false));
+        }
+        return result && this.failureCount.get() == 0;
+    }
+
+    /** Create the sender of the chosen protocol */
+    private Sender createSender() {
+        // if ftp protocol is chosen
+        if (this.protocole.equals("ftp")) {
+            // set login, password, and distant path required by FTP server
+            return new FtpFileSender(this.ftpUser, this.ftpPassword,
+                    this.ftpPath);
+        }
+        // if http protocol is chosen for sending, set name of the input of
+        // the file in HTTP post formular that will be sent
+        return new HttpFileSender("uploadedFile", this.chunkSize);
+    }
+
+    /** Send a file with the given sender, returns whether it succeeded */
+    private boolean send(Sender sender, File file) {
+        boolean result = false;
+        File upload = file;
+        TransferStats stats = new TransferStats(this.protocole,
+                file.getName(), file.length());
+        sender.setTransferStats(stats);
+        try {
+            if (sender instanceof HttpFileSender)
+                upload = removeHeldEntries((HttpFileSender) sender, file);
+            if (upload == null) {
+                // the server holds the whole archive
+                result = true;
+            } else {
+                InputStream content = new FileInputStream(upload);
+                try {
+                    result = sender.sendFile(this.target, file.getName(),
+                            content);
+                } finally {
+                    content.close();
+                }
             }
-            // Once sender is set, it sends given file
-            boolean result;
-            result = sender.sendFile(this.target, this.fileToUpload.getName(),
-                    new FileInputStream(fileToUpload));
-            // notify to post execution action whether file has been correctly
-            // sent or not
-            return result;
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-            return false;
+        } catch (IOException e) {
+            Log.e("DataSendingManager", "Can't read " + file, e);
+        } catch (RuntimeException e) {
+            // the worker goes on with the next file
+            Log.e("DataSendingManager", "Failed to send " + file, e);
+            result = false;
+        } finally {
+            if (upload != null && upload != file)
+                upload.delete();
+            sender.setTransferStats(null);
         }
+        stats.finish(result);
+        UploadMonitor.record(stats);
+        if (!result)
+            this.failureCount.incrementAndGet();
+        return result;
+    }
 
+    /**
+     * Return the archive of the entries of the given file that the server
+     * doesn't hold : the file itself if the server holds none of them or if
+     * it has no manifest, null if the server holds them all.
+     */
+    private File removeHeldEntries(HttpFileSender sender, File file)
+            throws IOException {
+        Map<String, String> manifest = PendingArchive.readManifest(file);
+        if (manifest.isEmpty())
+            return file;
+        Set<String> held = sender.queryHeldEntries(this.target,
+                manifest.values());
+        if (held.isEmpty())
+            return file;
+        List<String> heldEntries = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : manifest.entrySet()) {
+            if (held.contains(entry.getValue()))
+                heldEntries.add(entry.getKey());
+        }
+        File delta = new File(file.getPath() + ".delta");
+        // the entries missing from the manifest are sent too
+        int count = PendingArchive.copyEntries(file, heldEntries, delta);
+        Log.d("DataSendingManager", file.getName() + " : " + heldEntries.size()
+                + " entries held by the server, " + count + " to send");
+        if (count == 0) {
+            delta.delete();
+            return null;
+        }
+        return delta;
     }
 
     /**
-     * When sending is over, callback is called in passing the sent file and in
-     * indicating if sending was successful or not
+     * When sending of a file is over, callback is called in passing the sent
+     * file and in indicating if sending was successful or not
      * */
     @Override
-    protected void onPostExecute(Boolean result) {
-        this.callback
-                .onTaskCompleted(this.protocole, this.fileToUpload, result);
-
+    protected void onProgressUpdate(SendResult... results) {
+        for (SendResult result : results) {
+            this.callback.onTaskCompleted(this.protocole, result.file,
+                    result.success);
+        }
     }
 
 }
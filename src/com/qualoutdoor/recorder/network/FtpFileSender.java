@@ -1,22 +1,41 @@
 package com.qualoutdoor.recorder.network;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import android.util.Log;
 
 /**
  * Child of Sender Class, implementing file sending with FTP protocol. An FTP
  * connection is limited to a file sending then only sendFile method will be
  * implemented. Attributes of this class are the specific parameters of a FTP
  * connection
+ *
+ * The file is sent in binary mode through a passive data connection, under a
+ * temporary name ending with PARTIAL_SUFFIX. If a previous sending has been
+ * interrupted, the temporary file is resumed (REST) instead of being sent
+ * again from the beginning. Once its size on the server is the size of the
+ * file, it is renamed : a file under its final name is always complete.
  */
 
 public class FtpFileSender implements Sender {
 
+    /** Default port of the FTP control connection */
+    private static final int FTP_PORT = 21;
+    /** Suffix of the file being sent */
+    public static final String PARTIAL_SUFFIX = ".part";
+    /** size of the buffer copying the file into the data connection */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Time in ms before a connection or a read is given up */
+    private static final int TIMEOUT = 30000;
+
     /** Login for being identified by FTP server */
     private String user;
     /** Password for being identified by FTP server */
@@ -24,6 +43,17 @@ public class FtpFileSender implements Sender {
     /** The storing path into the client storing space */
     private String storingPath;
 
+    /** The control connection */
+    private Socket control;
+    /** Reader of the server replies */
+    private BufferedReader reader;
+    /** Writer of the commands */
+    private Writer writer;
+    /** The last reply line of the server */
+    private String lastReply;
+    /** Measures of the transfer, null if it is not measured */
+    private TransferStats stats;
+
     /**
      * Constructor
      */
@@ -33,52 +63,283 @@ public class FtpFileSender implements Sender {
         this.storingPath = storingPath;
     }
 
+    /**
+     * The connection and reply times, the reply codes and the bytes sent of
+     * the next transfers are added to stats
+     */
+    @Override
+    public void setTransferStats(TransferStats stats) {
+        this.stats = stats;
+    }
+
     /**
      * Implementation of sendFile method : a new connection is opened, file is
      * transmitted then connection is closed
+     *
+     * url is the host of the FTP server, followed by :port if it is not 21
      */
     @Override
     public boolean sendFile(String url, String fileName, InputStream content) {
-        // indicated whether transfer has been correctly done
-        boolean response;
+        // the distant file, named as before
+        String path = this.storingPath + fileName + "FTP";
+        String partialPath = path + PARTIAL_SUFFIX;
         try {
-            // URL address shaping
-            String target = "ftp://" + this.user + ":" + this.password + "@"
-                    + url + this.storingPath + fileName + "FTP";
-            // URL creation
-            URL targetAddress = new URL(target);
-            // connection opening
-            URLConnection connection = targetAddress.openConnection();
-            // enabling connection to handle outputs. Now inputs can't be handle
-            // anymore
-            connection.setDoOutput(true);
-            // Getting the flow to write into connection
-            OutputStream os = connection.getOutputStream();
-
-            // Setting Reading/Writing mecanisme : reading from the given
-            // content and writing into the new output stream
-            // temporary buffer
-            byte[] temp = new byte[1024];
-            // reading indicator
+            this.connect(url);
+            // what a previous sending has left
+            long offset = this.getSize(partialPath);
+            if (offset > 0) {
+                long skipped = skipFully(content, offset);
+                if (skipped < offset) {
+                    // the distant file is not a part of this one : it is
+                    // deleted so that the next sending starts over
+                    Log.d("FtpFileSender", partialPath + " is larger than "
+                            + fileName);
+                    this.command("DELE " + partialPath, 250);
+                    return false;
+                }
+                Log.d("FtpFileSender", "resuming " + partialPath + " at "
+                        + offset);
+            }
+            long sent = this.store(partialPath, offset, content);
+            // checking that the server has the whole file
+            long size = this.getSize(partialPath);
+            if (size != offset + sent) {
+                Log.d("FtpFileSender", partialPath + " has " + size
+                        + " bytes instead of " + (offset + sent));
+                return false;
+            }
+            // the file is complete
+            this.command("RNFR " + partialPath, 350);
+            this.command("RNTO " + path, 250);
+            try {
+                this.command("QUIT", 221);
+            } catch (IOException e) {
+                // the file is already there under its final name
+                Log.d("FtpFileSender", "QUIT failed : " + e.toString());
+            }
+            return true;
+        } catch (IOException e) {
+            Log.d("FtpFileSender", "sending " + fileName + " failed : "
+                    + e.toString());
+            return false;
+        } finally {
+            this.close();
+        }
+    }
+
+    /** Open the control connection and log in, in binary mode */
+    private void connect(String url) throws IOException {
+        String host = url;
+        int port = FTP_PORT;
+        int colon = url.lastIndexOf(':');
+        if (colon >= 0) {
+            host = url.substring(0, colon);
+            port = parsePort(url.substring(colon + 1), "Bad FTP url : "
+                    + url);
+        }
+        this.control = new Socket();
+        if (this.stats != null)
+            this.stats.connecting();
+        this.control.connect(new InetSocketAddress(host, port), TIMEOUT);
+        if (this.stats != null)
+            this.stats.connected();
+        this.control.setSoTimeout(TIMEOUT);
+        this.reader = new BufferedReader(new InputStreamReader(
+                this.control.getInputStream(), "UTF-8"));
+        this.writer = new OutputStreamWriter(this.control.getOutputStream(),
+                "UTF-8");
+        // welcome message
+        this.expect(this.readReply(), 220);
+        int reply = this.command("USER " + this.user);
+        if (reply / 100 == 3) {
+            // a password is needed
+            reply = this.command("PASS " + this.password);
+        }
+        this.expect(reply, 230);
+        this.command("TYPE I", 200);
+    }
+
+    /**
+     * Return the size of the distant file, 0 if it does not exist
+     */
+    private long getSize(String path) throws IOException {
+        int reply = this.command("SIZE " + path);
+        if (reply != 213) {
+            // no such file
+            return 0;
+        }
+        // 213 <size>
+        if (this.lastReply.length() < 4)
+            throw new IOException("Bad FTP reply : " + this.lastReply);
+        long size;
+        try {
+            size = Long.parseLong(this.lastReply.substring(4).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad FTP reply : " + this.lastReply);
+        }
+        if (size < 0)
+            throw new IOException("Bad FTP reply : " + this.lastReply);
+        return size;
+    }
+
+    /**
+     * Send the rest of the content into the distant file, from the given
+     * offset. Returns the number of bytes sent.
+     */
+    private long store(String path, long offset, InputStream content)
+            throws IOException {
+        Socket data = this.openPassiveConnection();
+        long sent = 0;
+        try {
+            if (offset > 0) {
+                this.command("REST " + offset, 350);
+            }
+            this.expectPreliminary(this.command("STOR " + path));
+            // slowed down during the throughput measurements
+            OutputStream os = new ThrottledOutputStream(data.getOutputStream());
+            byte[] temp = new byte[BUFFER_SIZE];
             int indic;
             while ((indic = content.read(temp)) != -1) {
                 os.write(temp, 0, indic);
+                sent += indic;
+                if (this.stats != null)
+                    this.stats.sent(indic);
             }
-            // if no exception occurred, transmission is considered successful.
-            response = true;
-            os.close();
-            // if an exception occurred, transmission is considered
-            // unsuccessful.
-        } catch (MalformedURLException e) {
-            response = false;
-            e.printStackTrace();
-        } catch (IOException e) {
+        } finally {
+            // closing the data connection ends the file
+            data.close();
+        }
+        // transfer complete
+        int reply = this.readReply();
+        if (reply != 226 && reply != 250)
+            throw new IOException("Unexpected FTP reply : " + this.lastReply);
+        return sent;
+    }
+
+    /**
+     * Ask the server for a passive data connection and open it. The address
+     * of the control connection is used, the one given by the server may be
+     * a private one.
+     */
+    private Socket openPassiveConnection() throws IOException {
+        this.command("PASV", 227);
+        // 227 Entering Passive Mode (h1,h2,h3,h4,p1,p2)
+        int open = this.lastReply.indexOf('(');
+        int close = this.lastReply.indexOf(')', open);
+        if (open < 0 || close < 0)
+            throw new IOException("Bad PASV reply : " + this.lastReply);
+        String[] numbers = this.lastReply.substring(open + 1, close).split(",");
+        if (numbers.length != 6)
+            throw new IOException("Bad PASV reply : " + this.lastReply);
+        int high = parsePort(numbers[4].trim(), "Bad PASV reply : "
+                + this.lastReply);
+        int low = parsePort(numbers[5].trim(), "Bad PASV reply : "
+                + this.lastReply);
+        if (high > 255 || low > 255)
+            throw new IOException("Bad PASV reply : " + this.lastReply);
+        int port = high * 256 + low;
+        Socket data = new Socket();
+        data.connect(new InetSocketAddress(this.control.getInetAddress(), port),
+                TIMEOUT);
+        data.setSoTimeout(TIMEOUT);
+        return data;
+    }
+
+    /** Send a command and return the reply code */
+    private int command(String command) throws IOException {
+        this.writer.write(command + "\r\n");
+        this.writer.flush();
+        return this.readReply();
+    }
+
+    /** Send a command and check the reply code */
+    private void command(String command, int expected) throws IOException {
+        this.expect(this.command(command), expected);
+    }
+
+    /**
+     * Read a reply, possibly on several lines, and return its code
+     */
+    private int readReply() throws IOException {
+        String line = this.reader.readLine();
+        if (line == null || line.length() < 3)
+            throw new IOException("Connection closed by the FTP server");
+        String code = line.substring(0, 3);
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            // multi-line reply, until the line starting with the code
+            do {
+                line = this.reader.readLine();
+                if (line == null)
+                    throw new IOException("Connection closed by the FTP server");
+            } while (!(line.startsWith(code) && (line.length() == 3 || line
+                    .charAt(3) == ' ')));
+        }
+        this.lastReply = line;
+        int reply;
+        try {
+            reply = Integer.parseInt(code);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad FTP reply : " + line);
+        }
+        if (this.stats != null)
+            this.stats.replied(reply);
+        return reply;
+    }
 
-            e.printStackTrace();
-            response = false;
+    /** Check a reply code */
+    private void expect(int reply, int expected) throws IOException {
+        if (reply != expected)
+            throw new IOException("Unexpected FTP reply : " + this.lastReply);
+    }
+
+    /** Check that a reply is preliminary (1xx) : the transfer is starting */
+    private void expectPreliminary(int reply) throws IOException {
+        if (reply / 100 != 1)
+            throw new IOException("Unexpected FTP reply : " + this.lastReply);
+    }
+
+    /** Close the control connection */
+    private void close() {
+        if (this.control != null) {
+            try {
+                this.control.close();
+            } catch (IOException e) {}
+            this.control = null;
+        }
+    }
+
+    /**
+     * Parse a port number, or a byte of a port number, throwing an IOException
+     * with the given message if it is not one
+     */
+    private static int parsePort(String number, String message)
+            throws IOException {
+        int port;
+        try {
+            port = Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            throw new IOException(message);
+        }
+        if (port < 0 || port > 65535)
+            throw new IOException(message);
+        return port;
+    }
+
+    /**
+     * Skip count bytes of the content, returns the number actually skipped.
+     * The bytes are read : skip() may go past the end of a file.
+     */
+    private static long skipFully(InputStream content, long count)
+            throws IOException {
+        long skipped = 0;
+        byte[] temp = new byte[BUFFER_SIZE];
+        int indic;
+        while (skipped < count
+                && (indic = content.read(temp, 0,
+                        (int) Math.min(temp.length, count - skipped))) != -1) {
+            skipped += indic;
         }
-        // returning transmission state
-        return response;
+        return skipped;
     }
 
 }
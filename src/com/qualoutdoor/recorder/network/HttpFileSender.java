@@ -1,20 +1,46 @@
 package com.qualoutdoor.recorder.network;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
 import android.util.Log;
 
 /**
  * Child of Sender Class, implementing file sending with HTTP protocols. This kind of connection doesn't depends on 
  * transfers that it set then different kind of sending are implemented. Attributes of this class are the specific parameters
  * of a HTTP connection
+ * 
+ * With a chunk size, the file is sent in resumable mode : it is cut into chunks sent in separate requests,
+ * each one identified by the SHA-1 hash of its content and by its offset. A chunk whose request fails is sent
+ * again, without starting the file over. The server is first asked for the hashes it holds already for this
+ * file, these chunks are skipped. Once every chunk has been sent, a last request gives the ordered list of
+ * the hashes, so that the server can put the file back together. The response bodies are always read
+ * whole so that the connection to the server is kept alive from a request to the next :
+ * 
+ *  - GET url?upload=fileName : the held hashes, one per line (any error means none)
+ *  - POST url, fields upload, offset, hash and the chunk as the file : store a chunk
+ *  - POST url, fields upload, length and chunks (comma separated hashes) : assemble the file
+ * 
+ * Before an archive is sent, the server may also be asked which of its entries it holds already, so that
+ * only the missing ones are sent (see queryHeldEntries) :
+ * 
+ *  - POST url, field entries (comma separated SHA-1 hashes of the entry contents) : the held hashes, one per line
  * */
 
 public class HttpFileSender implements Sender{
@@ -35,22 +61,58 @@ public class HttpFileSender implements Sender{
 	private OutputStream os;
 	/**PrintWriter associated with os for writing characters into request*/
 	private PrintWriter writer;
+	
+	/**size of the buffer copying the file into the request, and of the chunks of the streamed requests*/
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/**number of times a failed chunk is sent again*/
+	private static final int MAX_CHUNK_RETRIES = 3;
+	/**delay before sending a failed chunk again, doubled for each retry*/
+	private static final long RETRY_DELAY = 1000;
+	
+	/**size of the chunks in resumable mode, 0 to send the file in a single request*/
+	private int chunkSize;
+	/**measures of the transfer, null if it is not measured*/
+	private TransferStats stats;
 
 	/**
 	 * Constructor
 	 */
 	public HttpFileSender(String fileFieldName) {
+	    this(fileFieldName, 0);
+	}
+	
+	/**
+	 * Constructor for the resumable mode
+	 * 
+	 * chunkSize is the size of the chunks in bytes, 0 to send the file in a single request
+	 */
+	public HttpFileSender(String fileFieldName, int chunkSize) {
 	    //input name associated to file to upload in post form is set
 		this.fileFieldName = fileFieldName;
+		this.chunkSize = chunkSize;
 	}
 	
 	
+	/**
+	 * The connection and response times, the status codes, the bytes sent and the retries of the next
+	 * transfers are added to stats
+	 */
+	@Override
+	public void setTransferStats(TransferStats stats){
+		this.stats = stats;
+	}
+	
 	/**
 	 * Implementing sendFile method : connection is opened, form is sent, connection is closed then server response
 	 * is read : this method allows a single file sending in a request.
 	 */
 	@Override
 	public boolean sendFile(String url,String fileName,InputStream content){
+		if(this.chunkSize > 0){
+			return this.sendFileInChunks(url, fileName, content);
+		}
+		//the connection of the previous file is not the one to give up on failure
+		this.connection = null;
 		try{
 		    //connection is initialized from an URL
 			this.initialize(url);
@@ -61,12 +123,25 @@ public class HttpFileSender implements Sender{
 			//server response is read
 			return this.readResponseStatus();
 		}catch(HttpTransfertException e){
+			this.abortSending();
 			return false;
 		}catch(IOException e){
+			this.abortSending();
             return false;
         }
 	}
 	
+	/**
+	 * Give up the connection of a failed sending : it is neither drained nor kept alive, its socket is
+	 * closed
+	 */
+	private void abortSending(){
+		if(this.connection != null){
+			this.connection.disconnect();
+			this.connection = null;
+		}
+	}
+	
 	/**
 	 * Method for initializing HTTP connection from an URL
 	 */
@@ -84,14 +159,16 @@ public class HttpFileSender implements Sender{
 			this.connection.setDoOutput(true);
 			//setting TCP connection persistent
 			this.connection.setRequestProperty("Connection", "Keep-Alive");
+			//the length of the request is unknown : it is streamed by chunks instead of being buffered whole
+			this.connection.setChunkedStreamingMode(BUFFER_SIZE);
 			//mark generation
 			this.delimiter = "******"+Long.toString(System.currentTimeMillis())+"******";
 			//indicating how data inside request are organized
 			this.connection.setRequestProperty("Content-type", "multipart/form-data; boundary="+this.delimiter);
 			//setting connection on
-			this.connection.connect();
-			//getting an output stream to write inside
-			this.os = connection.getOutputStream();
+			this.connect(this.connection);
+			//getting an output stream to write inside, slowed down during the throughput measurements
+			this.os = new ThrottledOutputStream(connection.getOutputStream());
 			//building writer associated with the previous output stream.
 		    this.writer = new PrintWriter(new OutputStreamWriter(os, "UTF-8"), true);
 		    
@@ -148,10 +225,13 @@ public class HttpFileSender implements Sender{
 			this.writer.flush();
 		
 			//reading/writing mecanisme to write file content into request
-			byte[] temp = new byte[1024];
+			byte[] temp = new byte[BUFFER_SIZE];
 			int indic;
 			while((indic = content.read(temp)) != -1){
 				os.write(temp, 0, indic);
+				if(this.stats != null){
+					this.stats.sent(indic);
+				}
 			}
 			
 			this.writer.append("\r\n");		
@@ -188,8 +268,291 @@ public class HttpFileSender implements Sender{
 	 * returns true if transfer has been correctly done
 	 */
 	public boolean readResponseStatus() throws IOException{
-			int response = this.connection.getResponseCode();
+			int response = readResponse(this.connection);
 			return (response==HttpURLConnection.HTTP_OK);
 			
 		}
+	
+	/**
+	 * Read the response code, then the whole response body : the connection is released
+	 * so that the next request to the server can reuse it (keep-alive).
+	 */
+	private int readResponse(HttpURLConnection connection) throws IOException{
+		return readResponse(connection, null);
+	}
+	
+	/**
+	 * Read the response like readResponse(connection), the lines of a successful response body
+	 * are added to lines if it is not null.
+	 */
+	private int readResponse(HttpURLConnection connection, Set<String> lines) throws IOException{
+		int response = connection.getResponseCode();
+		if(this.stats != null){
+			this.stats.replied(response);
+		}
+		if(lines != null && response == HttpURLConnection.HTTP_OK){
+			BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+			String line;
+			while((line = reader.readLine()) != null){
+				if(line.trim().length() > 0){
+					lines.add(line.trim());
+				}
+			}
+			reader.close();
+			return response;
+		}
+		InputStream body = response < HttpURLConnection.HTTP_BAD_REQUEST
+				? connection.getInputStream() : connection.getErrorStream();
+		if(body != null){
+			byte[] temp = new byte[1024];
+			while(body.read(temp) != -1){
+				// discarding the body
+			}
+			body.close();
+		}
+		return response;
+	}
+	
+	/**
+	 * Ask the server which of the given archive entries it holds already, identified by the SHA-1 hashes of
+	 * their contents. The set is empty if the server can't answer : every entry is then sent.
+	 */
+	public Set<String> queryHeldEntries(String url, Collection<String> hashes){
+		Set<String> held = new HashSet<String>();
+		if(hashes.isEmpty()){
+			return held;
+		}
+		StringBuilder entries = new StringBuilder();
+		for(String hash : hashes){
+			if(entries.length() > 0){
+				entries.append(',');
+			}
+			entries.append(hash);
+		}
+		try{
+			ByteArrayOutputStream form = new ByteArrayOutputStream();
+			this.appendSimpleInput(form, "entries", entries.toString());
+			form.write(("--"+this.delimiter+"--\r\n").getBytes("UTF-8"));
+			if(this.postForm(url, form.toByteArray(), null, 0, 0, null, held) != HttpURLConnection.HTTP_OK){
+				held.clear();
+			}
+		}catch(IOException e){
+			Log.d("HttpFileSender", "no held entries : "+e.toString());
+			held.clear();
+		}
+		//only the asked hashes are trusted
+		held.retainAll(hashes);
+		return held;
+	}
+	
+	/**
+	 * Resumable mode of sendFile : the content is sent chunk by chunk, then the server is asked
+	 * to assemble them. Returns true if the whole file has been assembled by the server.
+	 */
+	public boolean sendFileInChunks(String url, String fileName, InputStream content){
+		try{
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			//chunks that a previous sending has already stored
+			Set<String> heldChunks = this.queryHeldChunks(url, fileName);
+			//ordered list of the chunk hashes
+			StringBuilder chunks = new StringBuilder();
+			byte[] chunk = new byte[this.chunkSize];
+			long offset = 0;
+			int length;
+			while((length = readChunk(content, chunk)) > 0){
+				digest.update(chunk, 0, length);
+				String hash = toHex(digest.digest());
+				if(chunks.length() > 0){
+					chunks.append(',');
+				}
+				chunks.append(hash);
+				if(!heldChunks.contains(hash) && !this.sendChunk(url, fileName, offset, hash, chunk, length)){
+					return false;
+				}
+				offset += length;
+			}
+			//asking the server to assemble the file
+			ByteArrayOutputStream form = new ByteArrayOutputStream();
+			this.appendSimpleInput(form, "upload", fileName);
+			this.appendSimpleInput(form, "length", Long.toString(offset));
+			this.appendSimpleInput(form, "chunks", chunks.toString());
+			form.write(("--"+this.delimiter+"--\r\n").getBytes("UTF-8"));
+			return this.postForm(url, form.toByteArray(), null, 0, 0, null) == HttpURLConnection.HTTP_OK;
+		}catch(NoSuchAlgorithmException e){
+			Log.e("HttpFileSender", "SHA-1 not available", e);
+			return false;
+		}catch(IOException e){
+			Log.d("chunked sending IO Exception", e.toString());
+			return false;
+		}
+	}
+	
+	/**
+	 * Send a chunk of the file, retrying if it fails. Returns true if the server stored it.
+	 */
+	private boolean sendChunk(String url, String fileName, long offset, String hash, byte[] chunk, int length) throws IOException{
+		//the form around the chunk content
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		this.appendSimpleInput(head, "upload", fileName);
+		this.appendSimpleInput(head, "offset", Long.toString(offset));
+		this.appendSimpleInput(head, "hash", hash);
+		head.write(("--"+this.delimiter+"\r\n"
+				+"Content-Disposition: form-data; name=\"" + this.fileFieldName+ "\"; filename=\"" + fileName+ "\"\r\n"
+				+"Content-Type: application/octet-stream\r\n"
+				+"Content-Transfer-Encoding: binary\r\n\r\n").getBytes("UTF-8"));
+		byte[] tail = ("\r\n--"+this.delimiter+"--\r\n").getBytes("UTF-8");
+		
+		long delay = RETRY_DELAY;
+		for(int attempt = 0;; attempt++){
+			try{
+				int response = this.postForm(url, head.toByteArray(), chunk, 0, length, tail);
+				if(response == HttpURLConnection.HTTP_OK){
+					return true;
+				}
+				Log.d("HttpFileSender", "chunk "+offset+" refused : "+response);
+			}catch(IOException e){
+				Log.d("HttpFileSender", "chunk "+offset+" failed : "+e.toString());
+			}
+			if(attempt == MAX_CHUNK_RETRIES){
+				return false;
+			}
+			if(this.stats != null){
+				this.stats.retried();
+			}
+			try{
+				Thread.sleep(delay);
+			}catch(InterruptedException e){
+				return false;
+			}
+			delay *= 2;
+		}
+	}
+	
+	/**
+	 * Ask the server the hashes of the chunks it holds for the given file. The set is empty if the
+	 * server doesn't know the file or can't answer.
+	 */
+	private Set<String> queryHeldChunks(String url, String fileName){
+		Set<String> held = new HashSet<String>();
+		HttpURLConnection query = null;
+		try{
+			query = (HttpURLConnection) new URL(url + (url.indexOf('?') < 0 ? "?" : "&")
+					+ "upload=" + URLEncoder.encode(fileName, "UTF-8")).openConnection();
+			this.connect(query);
+			if(query.getResponseCode() == HttpURLConnection.HTTP_OK){
+				if(this.stats != null){
+					this.stats.replied(HttpURLConnection.HTTP_OK);
+				}
+				BufferedReader reader = new BufferedReader(new InputStreamReader(query.getInputStream(), "UTF-8"));
+				String line;
+				while((line = reader.readLine()) != null){
+					held.add(line.trim());
+				}
+				//the connection is kept alive for the chunks
+				reader.close();
+			}else{
+				readResponse(query);
+			}
+		}catch(IOException e){
+			Log.d("HttpFileSender", "no held chunks : "+e.toString());
+			if(query != null){
+				query.disconnect();
+			}
+		}
+		return held;
+	}
+	
+	/**
+	 * Post a form of known length : head, then length bytes of data if any, then tail if any.
+	 * The request is streamed with its fixed length. Returns the response code.
+	 */
+	private int postForm(String url, byte[] head, byte[] data, int offset, int length, byte[] tail) throws IOException{
+		return this.postForm(url, head, data, offset, length, tail, null);
+	}
+	
+	/**
+	 * Post a form like postForm, the lines of the response body are added to lines if it is not null.
+	 */
+	private int postForm(String url, byte[] head, byte[] data, int offset, int length, byte[] tail, Set<String> lines) throws IOException{
+		HttpURLConnection post = (HttpURLConnection) new URL(url).openConnection();
+		try{
+			post.setRequestMethod("POST");
+			post.setDoInput(true);
+			post.setDoOutput(true);
+			post.setRequestProperty("Connection", "Keep-Alive");
+			post.setRequestProperty("Content-type", "multipart/form-data; boundary="+this.delimiter);
+			post.setFixedLengthStreamingMode(head.length + length + (tail == null ? 0 : tail.length));
+			this.connect(post);
+			OutputStream out = new ThrottledOutputStream(post.getOutputStream());
+			out.write(head);
+			if(data != null){
+				out.write(data, offset, length);
+				if(this.stats != null){
+					this.stats.sent(length);
+				}
+			}
+			if(tail != null){
+				out.write(tail);
+			}
+			out.close();
+			//the connection is kept alive for the next request
+			return readResponse(post, lines);
+		}catch(IOException e){
+			post.disconnect();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Open the connection of a request, measuring the first one : a kept alive connection is
+	 * reused at once
+	 */
+	private void connect(HttpURLConnection request) throws IOException{
+		if(this.stats != null){
+			this.stats.connecting();
+		}
+		request.connect();
+		if(this.stats != null){
+			this.stats.connected();
+		}
+	}
+	
+	/**
+	 * Append a simple input to a form being built, like SendSimpleInput. The delimiter is generated
+	 * with the first input of the form.
+	 */
+	private void appendSimpleInput(ByteArrayOutputStream form, String fieldName, String val) throws IOException{
+		if(form.size() == 0){
+			this.delimiter = "******"+Long.toString(System.currentTimeMillis())+"******";
+		}
+		form.write(("--"+this.delimiter+"\r\n"
+				+"Content-Disposition: form-data; name=\""+fieldName+"\"\r\n"
+				+"Content-Type: text/plain; charset=UTF-8\r\n"
+				+"\r\n" + val + "\r\n").getBytes("UTF-8"));
+	}
+	
+	/**
+	 * Read the next chunk of the content, as much as the chunk buffer can hold.
+	 * Returns its length, 0 at the end of the content.
+	 */
+	private static int readChunk(InputStream content, byte[] chunk) throws IOException{
+		int length = 0;
+		int indic;
+		while(length < chunk.length && (indic = content.read(chunk, length, chunk.length - length)) != -1){
+			length += indic;
+		}
+		return length;
+	}
+	
+	/**
+	 * Hexadecimal representation of a hash
+	 */
+	private static String toHex(byte[] hash){
+		StringBuilder hex = new StringBuilder(hash.length * 2);
+		for(byte b : hash){
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
 }
@@ -11,5 +11,10 @@ public interface Sender {
 	 */
 	public  boolean sendFile(String URL,String fileName,InputStream content );
 	
+	/**
+	 * method giving the measures to fill during the next transfers, null for no measure
+	 */
+	public void setTransferStats(TransferStats stats);
+	
 
 }
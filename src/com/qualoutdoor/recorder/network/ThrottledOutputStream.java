@@ -0,0 +1,39 @@
+package com.qualoutdoor.recorder.network;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The stream into which the senders write the uploaded data : the data is
+ * written by slices, each one once the UploadThrottle allows it.
+ *
+ * @author Gaborit Nicolas
+ */
+class ThrottledOutputStream extends FilterOutputStream {
+
+    /** Size of the slices waiting for the throttle */
+    private static final int SLICE_SIZE = 4 * 1024;
+
+    ThrottledOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        UploadThrottle.acquire(1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int slice = Math.min(len, SLICE_SIZE);
+            UploadThrottle.acquire(slice);
+            out.write(b, off, slice);
+            off += slice;
+            len -= slice;
+        }
+    }
+
+}
@@ -0,0 +1,453 @@
+package com.qualoutdoor.recorder.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.util.Log;
+
+/**
+ * This class measures the download and upload throughputs against a test
+ * server, regularly, in its own thread : a measure lasts a few seconds, it
+ * can't be made while sampling. The sampling takes the last measures with
+ * takeDownload() and takeUpload(), each measure is only taken once.
+ *
+ * A measure is made of :
+ *
+ * - the latency : the mean time to open a TCP connection to the server, over
+ * a few probes,
+ *
+ * - the jitter : the mean difference between two successive probes,
+ *
+ * - the goodput : the number of bytes received (GET downloadPath) or sent
+ * (POST uploadPath) by the application during a fixed time, from the first
+ * byte received or from the first time the socket send buffer is full (see
+ * send()). The server must send a file at least as large as what can be received
+ * during this time, and accept whatever is posted ; any HTTP server will do,
+ * a local test server too. There is no measure if the server replies with an
+ * error status, if the file ends before the test duration or if the server
+ * replies or closes the connection during the upload.
+ *
+ * The server address is resolved once per measure, before the probes : the
+ * name lookup is not counted in the latency.
+ *
+ * The transfers use NIO channels, non blocking, with a selector bounding
+ * their time. The buffers are allocated once, with the tester : the
+ * measure does not depend on the garbage collector. The uploads of the
+ * application are paused during the measures, see UploadThrottle.
+ *
+ * @author Gaborit Nicolas
+ */
+public class ThroughputTester {
+
+    /** The result of a measure */
+    public static class Result {
+        /** The goodput in bits per second */
+        public final long goodput;
+        /** The latency in ms */
+        public final long latency;
+        /** The jitter in ms */
+        public final long jitter;
+
+        Result(long goodput, long latency, long jitter) {
+            this.goodput = goodput;
+            this.latency = latency;
+            this.jitter = jitter;
+        }
+
+        /**
+         * Format the result as a sample value : the goodput in kbit/s, the
+         * latency and the jitter in ms, separated by commas
+         */
+        @Override
+        public String toString() {
+            return goodput / 1000 + "," + latency + "," + jitter;
+        }
+    }
+
+    /** Size of the transfer buffer */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Size of the socket send buffer : the bytes written but not sent yet */
+    private static final int SEND_BUFFER_SIZE = 64 * 1024;
+    /** Time in ms before a connection is given up */
+    private static final int CONNECT_TIMEOUT = 5000;
+    /** Length of the beginning of the status line : "HTTP/1.1 200" */
+    private static final int STATUS_LENGTH = 12;
+
+    /** The host of the test server */
+    private final String host;
+    /** The HTTP port of the test server */
+    private final int port;
+    /** Duration in ms of a transfer */
+    private final long duration;
+    /** Time in ms between two measures */
+    private final long interval;
+    /** Number of connections opened to measure the latency */
+    private final int probeCount;
+
+    /** The download request */
+    private final byte[] downloadRequest;
+    /** The head of the upload request */
+    private final byte[] uploadRequest;
+    /** The transfer buffer */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /** The connection times of the probes, in ns */
+    private final long[] probes;
+    /** The beginning of the status line of the download reply */
+    private final byte[] status = new byte[STATUS_LENGTH];
+
+    /** The last download measure not taken yet */
+    private final AtomicReference<Result> download = new AtomicReference<Result>();
+    /** The last upload measure not taken yet */
+    private final AtomicReference<Result> upload = new AtomicReference<Result>();
+
+    /** The thread making the measures, null if stopped */
+    private Thread thread;
+
+    /**
+     * Create a tester for the given server
+     *
+     * @param host
+     *            The host of the test server
+     * @param port
+     *            The HTTP port of the test server
+     * @param downloadPath
+     *            The path of the file to download
+     * @param uploadPath
+     *            The path receiving the uploaded data
+     * @param duration
+     *            Duration in ms of a transfer
+     * @param interval
+     *            Time in ms between two measures
+     * @param probeCount
+     *            Number of connections opened to measure the latency
+     */
+    public ThroughputTester(String host, int port, String downloadPath,
+            String uploadPath, long duration, long interval, int probeCount) {
+        this.host = host;
+        this.port = port;
+        this.duration = duration;
+        this.interval = interval;
+        this.probeCount = Math.max(1, probeCount);
+        this.probes = new long[this.probeCount];
+        String hostHeader = "Host: " + host + ":" + port + "\r\n";
+        this.downloadRequest = ascii("GET " + downloadPath + " HTTP/1.1\r\n"
+                + hostHeader + "Connection: close\r\n\r\n");
+        // The length is unknown : the connection is closed at the end
+        this.uploadRequest = ascii("POST " + uploadPath + " HTTP/1.1\r\n"
+                + hostHeader + "Content-Type: application/octet-stream\r\n"
+                + "Content-Length: " + Integer.MAX_VALUE
+                + "\r\nConnection: close\r\n\r\n");
+        // The uploaded data
+        while (this.buffer.hasRemaining()) {
+            this.buffer.put((byte) this.buffer.position());
+        }
+    }
+
+    /**
+     * Start measuring regularly, in a new thread. Does nothing if the tester
+     * is already started.
+     *
+     * @param measureDownload
+     *            Whether to measure the download throughput
+     * @param measureUpload
+     *            Whether to measure the upload throughput
+     */
+    public synchronized void start(final boolean measureDownload,
+            final boolean measureUpload) {
+        if (this.thread != null)
+            return;
+        this.thread = new Thread("ThroughputTester") {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    if (measureDownload) {
+                        Result result = measure(true);
+                        if (!isInterrupted())
+                            download.set(result);
+                    }
+                    if (measureUpload && !isInterrupted()) {
+                        Result result = measure(false);
+                        if (!isInterrupted())
+                            upload.set(result);
+                    }
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stop measuring, the ongoing transfer is interrupted. The measures not
+     * taken yet are forgotten.
+     */
+    public synchronized void stop() {
+        if (this.thread == null)
+            return;
+        this.thread.interrupt();
+        this.thread = null;
+        this.download.set(null);
+        this.upload.set(null);
+    }
+
+    /** Return the last download measure, null if it has been taken already */
+    public Result takeDownload() {
+        return this.download.getAndSet(null);
+    }
+
+    /** Return the last upload measure, null if it has been taken already */
+    public Result takeUpload() {
+        return this.upload.getAndSet(null);
+    }
+
+    /**
+     * Measure the latency and the goodput of a transfer, the uploads are
+     * paused meanwhile. Returns null if the server could not be reached or
+     * did not take part in the transfer as expected.
+     */
+    Result measure(boolean isDownload) {
+        // The buffers are shared with a stopped thread still ending
+        synchronized (this.probes) {
+            UploadThrottle.beginMeasurement();
+            try {
+                return measureLatencyAndGoodput(isDownload);
+            } catch (IOException e) {
+                Log.d("ThroughputTester", (isDownload ? "download" : "upload")
+                        + " measure failed : " + e.toString());
+                return null;
+            } finally {
+                UploadThrottle.endMeasurement();
+            }
+        }
+    }
+
+    /** Measure the latency and the goodput of a transfer */
+    private Result measureLatencyAndGoodput(boolean isDownload)
+            throws IOException {
+        InetSocketAddress address = new InetSocketAddress(this.host, this.port);
+        if (address.isUnresolved())
+            throw new IOException("Can't resolve " + this.host);
+        // Latency and jitter
+        for (int i = 0; i < this.probeCount; i++) {
+            long start = System.nanoTime();
+            connect(address).close();
+            this.probes[i] = System.nanoTime() - start;
+        }
+        long sum = this.probes[0];
+        long variation = 0;
+        for (int i = 1; i < this.probeCount; i++) {
+            sum += this.probes[i];
+            variation += Math.abs(this.probes[i] - this.probes[i - 1]);
+        }
+        long latency = sum / this.probeCount / 1000000;
+        long jitter = this.probeCount < 2 ? 0 : variation
+                / (this.probeCount - 1) / 1000000;
+        // Goodput
+        long goodput = isDownload ? transfer(address, this.downloadRequest,
+                true) : transfer(address, this.uploadRequest, false);
+        return new Result(goodput, latency, jitter);
+    }
+
+    /** Open a blocking connection to the server */
+    private SocketChannel connect(InetSocketAddress address)
+            throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Send the request, then receive or send data for the test duration.
+     * Returns the goodput in bits per second, throws an IOException if the
+     * transfer is not a valid measure.
+     */
+    private long transfer(InetSocketAddress address, byte[] request,
+            boolean isDownload) throws IOException {
+        SocketChannel channel = connect(address);
+        Selector selector = Selector.open();
+        try {
+            channel.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+            // The request, blocking
+            ByteBuffer head = ByteBuffer.wrap(request);
+            while (head.hasRemaining()) {
+                channel.write(head);
+            }
+            channel.configureBlocking(false);
+            // The upload watches for a reply of the server too
+            channel.register(selector, isDownload ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return isDownload ? receive(channel, selector) : send(channel,
+                    selector);
+        } finally {
+            selector.close();
+            channel.close();
+        }
+    }
+
+    /**
+     * Receive data for the test duration, from the first byte. Returns the
+     * goodput in bits per second. Throws an IOException if the reply status
+     * is not a success or if the file ends before the test duration.
+     */
+    private long receive(SocketChannel channel, Selector selector)
+            throws IOException {
+        long bytes = 0;
+        long start = -1;
+        // The bytes of the status line read so far
+        int statusRead = 0;
+        long deadline = System.nanoTime() + this.duration * 1000000;
+        while (true) {
+            long remaining = (deadline - System.nanoTime()) / 1000000;
+            if (remaining <= 0 || Thread.currentThread().isInterrupted())
+                break;
+            if (selector.select(remaining) == 0)
+                continue;
+            selector.selectedKeys().clear();
+            this.buffer.clear();
+            int count = channel.read(this.buffer);
+            if (count < 0)
+                // The file is smaller than the test needs
+                throw new IOException("The download ended after "
+                        + (start < 0 ? 0 : (System.nanoTime() - start)
+                                / 1000000) + " ms");
+            if (statusRead < STATUS_LENGTH) {
+                this.buffer.flip();
+                int length = Math.min(this.buffer.remaining(), STATUS_LENGTH
+                        - statusRead);
+                this.buffer.get(this.status, statusRead, length);
+                statusRead += length;
+                if (statusRead == STATUS_LENGTH)
+                    checkStatus();
+            }
+            if (start < 0) {
+                // The time starts with the first data : the data received
+                // before is not counted
+                start = System.nanoTime();
+                deadline = start + this.duration * 1000000;
+            } else {
+                bytes += count;
+            }
+        }
+        if (statusRead < STATUS_LENGTH
+                && !Thread.currentThread().isInterrupted())
+            throw new IOException("No reply to the download");
+        long elapsed = start < 0 ? 0 : System.nanoTime() - start;
+        if (elapsed <= 0)
+            return 0;
+        return (long) (bytes * 8e9 / elapsed);
+    }
+
+    /**
+     * Check the beginning of the status line of the download reply, throws an
+     * IOException if it is not a success
+     */
+    private void checkStatus() throws IOException {
+        String line = new String(this.status, 0, STATUS_LENGTH, "US-ASCII");
+        int code = -1;
+        if (line.startsWith("HTTP/") && line.charAt(8) == ' ') {
+            try {
+                code = Integer.parseInt(line.substring(9));
+            } catch (NumberFormatException e) {
+                // not a status line
+            }
+        }
+        if (code < 0)
+            throw new IOException("Bad status line " + line);
+        if (code / 100 != 2)
+            throw new IOException("HTTP status " + code);
+    }
+
+    /**
+     * Send data for the test duration. Returns the goodput in bits per
+     * second.
+     *
+     * A write only puts the data into the socket send buffer : the bytes
+     * written are not the bytes sent. But when the send buffer is full (a
+     * write takes only a part of the data), the bytes written since it was
+     * last full have all been sent. The goodput is measured between the first
+     * and the last times the send buffer is full : the data filling it at
+     * first and the data still in it at the end are not counted. If it does
+     * not fill up twice, the network is faster than the application : the
+     * data written after the first write is counted.
+     *
+     * The server is not expected to reply before the end of the upload : a
+     * reply, an error status most likely, or the connection closed by the
+     * server throw an IOException.
+     */
+    private long send(SocketChannel channel, Selector selector)
+            throws IOException {
+        long bytes = 0;
+        // The first write, and the first and last full send buffers
+        long firstWrite = -1;
+        long firstWriteBytes = 0;
+        long firstFull = -1;
+        long firstFullBytes = 0;
+        long lastFull = -1;
+        long lastFullBytes = 0;
+        long deadline = System.nanoTime() + this.duration * 1000000;
+        while (true) {
+            long remaining = (deadline - System.nanoTime()) / 1000000;
+            if (remaining <= 0 || Thread.currentThread().isInterrupted())
+                break;
+            if (selector.select(remaining) == 0)
+                continue;
+            selector.selectedKeys().clear();
+            this.buffer.clear();
+            if (channel.keyFor(selector).isReadable()) {
+                int count = channel.read(this.buffer);
+                throw new IOException(count < 0 ? "The server closed the upload"
+                        : "The server replied during the upload");
+            }
+            bytes += channel.write(this.buffer);
+            long now = System.nanoTime();
+            if (firstWrite < 0) {
+                firstWrite = now;
+                firstWriteBytes = bytes;
+            }
+            if (this.buffer.hasRemaining()) {
+                // The send buffer is full
+                if (firstFull < 0) {
+                    // The time starts when the send buffer is filled
+                    firstFull = now;
+                    firstFullBytes = bytes;
+                    deadline = now + this.duration * 1000000;
+                } else {
+                    lastFull = now;
+                    lastFullBytes = bytes;
+                }
+            }
+        }
+        if (lastFull > firstFull)
+            return (long) ((lastFullBytes - firstFullBytes) * 8e9 / (lastFull
+                    - firstFull));
+        long elapsed = firstWrite < 0 ? 0 : System.nanoTime() - firstWrite;
+        if (elapsed <= 0)
+            return 0;
+        return (long) ((bytes - firstWriteBytes) * 8e9 / elapsed);
+    }
+
+    /** Encode an HTTP header */
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return bytes;
+    }
+
+}
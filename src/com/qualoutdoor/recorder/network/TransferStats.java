@@ -0,0 +1,174 @@
+package com.qualoutdoor.recorder.network;
+
+/**
+ * The measures of the upload of a file, filled by the Sender during the
+ * transfer (see Sender.setTransferStats()) then kept by the UploadMonitor.
+ * The times are in ms from the beginning of the transfer, -1 if the event did
+ * not happen.
+ *
+ * A transfer is measured by a single thread. Once finished, it is only read.
+ *
+ * @author Gaborit Nicolas
+ */
+public class TransferStats {
+
+    /** The protocol of the transfer, "http" or "ftp" */
+    private final String protocol;
+    /** The name of the sent file */
+    private final String fileName;
+    /** The size of the file to send, in bytes */
+    private final long fileSize;
+    /** The beginning of the transfer, as a date in ms */
+    private final long startTime;
+    /** The beginning of the transfer, for the durations */
+    private final long startNanos;
+
+    /** When the first connection began to be opened, or -1 */
+    private long connectingNanos = -1;
+    /** Time in ms spent opening the first connection */
+    private long connectTime = -1;
+    /** Time in ms before the first reply of the server */
+    private long timeToFirstByte = -1;
+    /** Time in ms of the whole transfer */
+    private long duration = -1;
+    /** Number of bytes of the file content sent */
+    private long bytesSent = 0;
+    /** Number of requests sent again after failing */
+    private int retries = 0;
+    /** The last status code of the server : HTTP status or FTP reply code */
+    private int status = -1;
+    /** Whether the server has the file at the end of the transfer */
+    private boolean success = false;
+
+    /**
+     * Begin the measure of a transfer
+     *
+     * @param protocol
+     *            The protocol of the transfer, "http" or "ftp"
+     * @param fileName
+     *            The name of the sent file
+     * @param fileSize
+     *            The size of the file in bytes
+     */
+    public TransferStats(String protocol, String fileName, long fileSize) {
+        this.protocol = protocol;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.startTime = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /** A connection begins to be opened */
+    void connecting() {
+        if (this.connectTime < 0)
+            this.connectingNanos = System.nanoTime();
+    }
+
+    /** The connection is open, only the first one is measured */
+    void connected() {
+        if (this.connectTime < 0 && this.connectingNanos >= 0)
+            this.connectTime = (System.nanoTime() - this.connectingNanos) / 1000000;
+    }
+
+    /** The server replied with the given status code */
+    void replied(int status) {
+        if (this.timeToFirstByte < 0)
+            this.timeToFirstByte = elapsed();
+        this.status = status;
+    }
+
+    /** Bytes of the file have been sent */
+    void sent(long bytes) {
+        this.bytesSent += bytes;
+    }
+
+    /** A failed request is sent again */
+    void retried() {
+        this.retries++;
+    }
+
+    /**
+     * End the measure of the transfer
+     *
+     * @param success
+     *            Whether the server has the file
+     */
+    public void finish(boolean success) {
+        this.duration = elapsed();
+        this.success = success;
+    }
+
+    /** Time in ms since the beginning of the transfer */
+    private long elapsed() {
+        return (System.nanoTime() - this.startNanos) / 1000000;
+    }
+
+    /** Return the protocol of the transfer, "http" or "ftp" */
+    public String getProtocol() {
+        return this.protocol;
+    }
+
+    /** Return the name of the sent file */
+    public String getFileName() {
+        return this.fileName;
+    }
+
+    /** Return the size of the file to send, in bytes */
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    /** Return the beginning of the transfer, as a date in ms */
+    public long getStartTime() {
+        return this.startTime;
+    }
+
+    /** Return the time in ms spent opening the first connection, or -1 */
+    public long getConnectTime() {
+        return this.connectTime;
+    }
+
+    /** Return the time in ms before the first reply of the server, or -1 */
+    public long getTimeToFirstByte() {
+        return this.timeToFirstByte;
+    }
+
+    /** Return the time in ms of the whole transfer, or -1 if not finished */
+    public long getDuration() {
+        return this.duration;
+    }
+
+    /**
+     * Return the number of bytes of the file content sent : less than the
+     * file size if a part was held by the server already
+     */
+    public long getBytesSent() {
+        return this.bytesSent;
+    }
+
+    /** Return the number of requests sent again after failing */
+    public int getRetries() {
+        return this.retries;
+    }
+
+    /**
+     * Return the last status code of the server, HTTP status or FTP reply
+     * code, or -1 if the server did not reply
+     */
+    public int getStatus() {
+        return this.status;
+    }
+
+    /** Indicate if the server has the file at the end of the transfer */
+    public boolean isSuccess() {
+        return this.success;
+    }
+
+    /** Return the throughput of the transfer in bytes per second, or 0 */
+    public long getThroughput() {
+        if (this.duration <= 0)
+            return 0;
+        return this.bytesSent * 1000 / this.duration;
+    }
+
+}
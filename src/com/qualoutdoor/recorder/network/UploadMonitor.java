@@ -0,0 +1,78 @@
+package com.qualoutdoor.recorder.network;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This static class keeps the measures of the last transfers made by the
+ * DataSendingManager, in a ring buffer : the oldest measure is forgotten once
+ * the buffer is full. The measures can be displayed, summed up, or exported
+ * as CSV to tune the upload path.
+ *
+ * @author Gaborit Nicolas
+ */
+public final class UploadMonitor {
+
+    /** Number of transfers kept */
+    public static final int CAPACITY = 200;
+
+    /** The ring buffer of the measures */
+    private static final TransferStats[] transfers = new TransferStats[CAPACITY];
+    /** Index of the next measure in the ring buffer */
+    private static int next = 0;
+    /** Number of measures in the ring buffer */
+    private static int count = 0;
+
+    /** Not meant to be instantiated */
+    private UploadMonitor() {}
+
+    /** Keep the measures of a finished transfer */
+    public static synchronized void record(TransferStats stats) {
+        transfers[next] = stats;
+        next = (next + 1) % CAPACITY;
+        count = Math.min(count + 1, CAPACITY);
+    }
+
+    /** Return the kept measures, oldest first */
+    public static synchronized List<TransferStats> getTransfers() {
+        List<TransferStats> result = new ArrayList<TransferStats>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(transfers[(next - count + i + CAPACITY) % CAPACITY]);
+        }
+        return result;
+    }
+
+    /** Forget the kept measures */
+    public static synchronized void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            transfers[i] = null;
+        }
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * Write the kept measures as CSV, oldest first, after a header line
+     *
+     * @param out
+     *            The writer of the CSV, not closed
+     * @throws IOException
+     */
+    public static void writeCsv(Writer out) throws IOException {
+        out.write("start_time,protocol,file,file_size,bytes_sent,connect_ms,"
+                + "first_byte_ms,duration_ms,throughput_bytes_per_s,retries,"
+                + "status,success\n");
+        for (TransferStats stats : getTransfers()) {
+            out.write(stats.getStartTime() + "," + stats.getProtocol() + ","
+                    + stats.getFileName() + "," + stats.getFileSize() + ","
+                    + stats.getBytesSent() + "," + stats.getConnectTime() + ","
+                    + stats.getTimeToFirstByte() + "," + stats.getDuration()
+                    + "," + stats.getThroughput() + "," + stats.getRetries()
+                    + "," + stats.getStatus() + "," + stats.isSuccess() + "\n");
+        }
+        out.flush();
+    }
+
+}
@@ -0,0 +1,489 @@
+package com.qualoutdoor.recorder.network;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Message;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.qualoutdoor.recorder.QualOutdoorRecorderApp;
+import com.qualoutdoor.recorder.R;
+import com.qualoutdoor.recorder.persistent.DBSemaphore;
+import com.qualoutdoor.recorder.persistent.PendingArchive;
+
+/**
+ * This Handler schedules the upload of the exported files. It must be created
+ * on the main thread.
+ *
+ * The pending archive is moved into the upload queue, a directory of files
+ * waiting to be uploaded : the queue survives the application. With the
+ * automatic upload preference, the archive is queued once it has reached the
+ * minimum upload size, and the queue is only uploaded through a network
+ * allowed by the network policy preference. A failed upload is tried again
+ * later, with an exponential backoff and a random jitter : the failures and
+ * the retry times are saved next to the queue, and survive the application
+ * too. The due files are uploaded as a batch, by a few workers at the same
+ * time (see DataSendingManager), the next batch starting when it is over.
+ *
+ * The scheduler is held by the application (see QualOutdoorRecorderApp) : it
+ * uploads the exports done after the recording service has stopped.
+ *
+ * An upload requested by the user queues the archive whatever its size, and
+ * uploads the whole queue without waiting for the retry delays or for an
+ * allowed network.
+ *
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~{.java}
+ * UploadScheduler scheduler = new UploadScheduler(context, archive);
+ * scheduler.start();
+ * // an export has been added to the archive...
+ * scheduler.check();
+ * // ...
+ * scheduler.stop();
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ * @author Gaborit Nicolas
+ */
+public class UploadScheduler extends Handler {
+
+    /** Message code for checking the queue (used only internally) */
+    private static final int MESSAGE_CHECK = 201;
+
+    /** Prefix of the queued file names */
+    private static final String QUEUED_PREFIX = "pendingFiles";
+    /** Name of the file saving the failures of the queued files */
+    private static final String ATTEMPTS_NAME = "attempts";
+
+    /** The upload state of a queued file */
+    private static class Attempt {
+        /** Number of failed uploads */
+        int failures;
+        /** Time in ms before which the file is not uploaded again */
+        long nextTime;
+        /** Whether the file is being uploaded */
+        boolean sending;
+        /** Whether the user requested the upload of the file */
+        boolean requested;
+        /** The protocol requested by the user */
+        int protocol;
+        /** The listener of the user request, if any */
+        SendCompleteListener listener;
+    }
+
+    /** The context giving the preferences and the network state */
+    private final Context context;
+    /** The archive filled by the exports */
+    private final PendingArchive archive;
+    /** The directory of the queued files */
+    private final File queueDirectory;
+    /** The file saving the failures and retry times of the queued files */
+    private final File attemptsFile;
+
+    /** Number of files uploaded at the same time by a batch */
+    private final int maxConcurrent;
+    /** Delay in ms before the first retry */
+    private final long baseDelay;
+    /** Maximum delay in ms between two retries */
+    private final long maxDelay;
+    /** Size of the chunks of a resumable HTTP upload */
+    private final int chunkSize;
+
+    /** The upload states, by queued file name */
+    private final HashMap<String, Attempt> attempts = new HashMap<String, Attempt>();
+    /** Number of files of the ongoing batches not uploaded yet */
+    private int sendingCount = 0;
+    /** Whether the scheduler has been started and not stopped */
+    private boolean started = false;
+    /** Random generator of the retry jitter */
+    private final Random random = new Random();
+
+    /** Check the queue again when the network changes */
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            check();
+        }
+    };
+
+    /**
+     * Create a scheduler for the given archive, configured from the
+     * application resources
+     *
+     * @param context
+     *            The context of the application
+     * @param archive
+     *            The archive filled by the exports
+     */
+    public UploadScheduler(Context context, PendingArchive archive) {
+        this.context = context;
+        this.archive = archive;
+        this.queueDirectory = new File(context.getFilesDir(),
+                QualOutdoorRecorderApp.UPLOAD_DIRECTORY);
+        this.attemptsFile = new File(queueDirectory, ATTEMPTS_NAME);
+        Resources res = context.getResources();
+        this.maxConcurrent = res.getInteger(R.integer.upload_max_concurrent);
+        this.baseDelay = res.getInteger(R.integer.upload_retry_base_delay);
+        this.maxDelay = res.getInteger(R.integer.upload_retry_max_delay);
+        this.chunkSize = res.getInteger(R.integer.http_upload_chunk_size);
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        super.handleMessage(msg);
+        if (msg.what == MESSAGE_CHECK) {
+            check();
+        }
+    }
+
+    /** Start watching the network, and check the files left queued */
+    public void start() {
+        started = true;
+        loadAttempts();
+        context.registerReceiver(connectivityReceiver, new IntentFilter(
+                ConnectivityManager.CONNECTIVITY_ACTION));
+        check();
+    }
+
+    /** Stop scheduling uploads, the ongoing ones are completed */
+    public void stop() {
+        started = false;
+        context.unregisterReceiver(connectivityReceiver);
+        removeMessages(MESSAGE_CHECK);
+    }
+
+    /**
+     * Upload the files requested by the user, then apply the automatic upload
+     * preferences : queue the archive if it is big enough, and upload the
+     * queued files that are due, if the network allows it. Does nothing if
+     * the scheduler is stopped.
+     */
+    public void check() {
+        removeMessages(MESSAGE_CHECK);
+        if (!started)
+            return;
+        SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(context);
+        boolean automatic = prefs.getBoolean(context
+                .getString(R.string.pref_key_automatic_data_upload), context
+                .getResources().getBoolean(
+                        R.bool.pref_default_automatic_data_upload));
+
+        // Batch the exports until they are worth an upload
+        if (automatic
+                && archive.getFile().length() >= getMinimumUploadSize(prefs))
+            queueArchive();
+
+        // Else wait for the network to change
+        automatic = automatic && isNetworkAllowed(prefs);
+
+        if (sendingCount > 0)
+            // The end of the ongoing batch will check again
+            return;
+        long now = System.currentTimeMillis();
+        long nextCheck = Long.MAX_VALUE;
+        // The files to upload, by protocol
+        List<File> httpFiles = new ArrayList<File>();
+        List<File> ftpFiles = new ArrayList<File>();
+        int automaticProtocol = getProtocol(prefs);
+        for (File file : getQueuedFiles()) {
+            Attempt attempt = getAttempt(file);
+            int protocol = automaticProtocol;
+            if (attempt.requested) {
+                protocol = attempt.protocol;
+            } else if (!automatic) {
+                continue;
+            } else if (attempt.nextTime > now) {
+                nextCheck = Math.min(nextCheck, attempt.nextTime);
+                continue;
+            }
+            if (protocol == QualOutdoorRecorderApp.UPLOAD_PROTOCOL_FTP) {
+                ftpFiles.add(file);
+            } else {
+                httpFiles.add(file);
+            }
+        }
+        // One batch at a time so that no more than maxConcurrent uploads
+        // run at once : the FTP files go with the end of the HTTP batch
+        if (!httpFiles.isEmpty()) {
+            send(httpFiles, QualOutdoorRecorderApp.UPLOAD_PROTOCOL_HTTP);
+        } else {
+            send(ftpFiles, QualOutdoorRecorderApp.UPLOAD_PROTOCOL_FTP);
+        }
+        // Wake up for the next retry
+        if (nextCheck != Long.MAX_VALUE)
+            sendEmptyMessageDelayed(MESSAGE_CHECK, nextCheck - now);
+    }
+
+    /**
+     * Upload the archive and every queued file now, as requested by the user.
+     * The files already being uploaded are not sent again.
+     *
+     * @param protocol
+     *            The protocol code, QualOutdoorRecorderApp.UPLOAD_PROTOCOL_HTTP
+     *            or UPLOAD_PROTOCOL_FTP
+     * @param listener
+     *            The listener called as each requested file is uploaded
+     * @return The number of files waiting to be uploaded, 0 if there was no
+     *         data
+     */
+    public int uploadNow(int protocol, SendCompleteListener listener) {
+        queueArchive();
+        File[] files = getQueuedFiles();
+        for (File file : files) {
+            Attempt attempt = getAttempt(file);
+            if (!attempt.sending) {
+                attempt.requested = true;
+                attempt.protocol = protocol;
+                attempt.listener = listener;
+            }
+        }
+        check();
+        return files.length;
+    }
+
+    /** Move the archive into the queue, unless an export is writing it */
+    private void queueArchive() {
+        if (!DBSemaphore.export.tryAcquire())
+            // The export will call check() when done
+            return;
+        try {
+            queueDirectory.mkdirs();
+            archive.moveTo(new File(queueDirectory, QUEUED_PREFIX
+                    + System.currentTimeMillis()));
+        } catch (IOException e) {
+            Log.e("UploadScheduler", "Can't queue the archive", e);
+        } finally {
+            DBSemaphore.export.release();
+        }
+    }
+
+    /**
+     * Return the queued files, oldest first, without their manifests or the
+     * archives being sent
+     */
+    private File[] getQueuedFiles() {
+        File[] files = queueDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(QUEUED_PREFIX) && name.indexOf('.') < 0;
+            }
+        });
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    /** Return the upload state of the given queued file */
+    private Attempt getAttempt(File file) {
+        Attempt attempt = attempts.get(file.getName());
+        if (attempt == null) {
+            attempt = new Attempt();
+            attempts.put(file.getName(), attempt);
+        }
+        return attempt;
+    }
+
+    /**
+     * Read the failures and retry times saved by a previous session, for the
+     * files still queued
+     */
+    private void loadAttempts() {
+        if (!attemptsFile.exists())
+            return;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(attemptsFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // name failures nextTime
+                    String[] fields = line.split(" ");
+                    if (fields.length != 3)
+                        continue;
+                    File file = new File(queueDirectory, fields[0]);
+                    if (!file.exists())
+                        continue;
+                    Attempt attempt = getAttempt(file);
+                    attempt.failures = Integer.parseInt(fields[1]);
+                    attempt.nextTime = Long.parseLong(fields[2]);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e("UploadScheduler", "Can't read the upload attempts", e);
+        } catch (NumberFormatException e) {
+            Log.e("UploadScheduler", "Bad upload attempts", e);
+        }
+    }
+
+    /**
+     * Save the failures and retry times of the queued files. The file is
+     * replaced at once : it is never left half written.
+     */
+    private void saveAttempts() {
+        File temp = new File(queueDirectory, ATTEMPTS_NAME + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp),
+                    "UTF-8");
+            try {
+                for (Map.Entry<String, Attempt> entry : attempts.entrySet()) {
+                    Attempt attempt = entry.getValue();
+                    if (attempt.failures > 0)
+                        writer.write(entry.getKey() + " " + attempt.failures
+                                + " " + attempt.nextTime + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            if (!temp.renameTo(attemptsFile))
+                throw new IOException("Can't rename " + temp);
+        } catch (IOException e) {
+            Log.e("UploadScheduler", "Can't save the upload attempts", e);
+        }
+    }
+
+    /**
+     * Start uploading queued files in the background, as a batch : they are
+     * sent by a few workers keeping their connection alive
+     */
+    private void send(List<File> files, int protocol) {
+        if (files.isEmpty())
+            return;
+        for (File file : files) {
+            getAttempt(file).sending = true;
+        }
+        sendingCount += files.size();
+        SendCompleteListener callback = new SendCompleteListener() {
+            @Override
+            public void onTaskCompleted(String protocol, File fileSent,
+                    boolean success) {
+                sendingCount--;
+                Attempt attempt = getAttempt(fileSent);
+                attempt.sending = false;
+                if (success) {
+                    fileSent.delete();
+                    PendingArchive.getManifestFile(fileSent).delete();
+                    attempts.remove(fileSent.getName());
+                    if (attempt.failures > 0)
+                        saveAttempts();
+                } else {
+                    attempt.failures++;
+                    attempt.nextTime = System.currentTimeMillis()
+                            + getRetryDelay(attempt.failures);
+                    Log.d("UploadScheduler", "Upload of " + fileSent.getName()
+                            + " failed " + attempt.failures + " times");
+                    saveAttempts();
+                }
+                // The user request is over
+                attempt.requested = false;
+                if (attempt.listener != null) {
+                    attempt.listener.onTaskCompleted(protocol, fileSent,
+                            success);
+                    attempt.listener = null;
+                }
+                // Upload the next files once the batch is over
+                if (sendingCount == 0)
+                    check();
+            }
+        };
+        DataSendingManager manager;
+        if (protocol == QualOutdoorRecorderApp.UPLOAD_PROTOCOL_FTP) {
+            manager = new DataSendingManager(
+                    QualOutdoorRecorderApp.URL_SERVER_FTP, files, "ftp",
+                    callback, 0, maxConcurrent);
+            SharedPreferences prefs = PreferenceManager
+                    .getDefaultSharedPreferences(context);
+            manager.setFtpLogin(prefs.getString(
+                    context.getString(R.string.pref_key_ftp_user),
+                    context.getString(R.string.pref_default_ftp_user)), prefs
+                    .getString(
+                            context.getString(R.string.pref_key_ftp_password),
+                            ""), context.getString(R.string.ftp_storing_path));
+        } else {
+            manager = new DataSendingManager(
+                    QualOutdoorRecorderApp.URL_SERVER_HTTP, files, "http",
+                    callback, chunkSize, maxConcurrent);
+        }
+        // Don't wait for the exports on the default executor
+        manager.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Return the delay before the next upload of a file after the given
+     * number of failures : it doubles with each failure, up to the maximum
+     * delay, and is randomly chosen in its upper half so that the retries of
+     * several files don't come together.
+     */
+    private long getRetryDelay(int failures) {
+        long delay = baseDelay << Math.min(failures - 1, 30);
+        if (delay <= 0 || delay > maxDelay)
+            delay = maxDelay;
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    /** Return the minimum upload size preference in bytes */
+    private long getMinimumUploadSize(SharedPreferences prefs) {
+        int defaultSize = context.getResources().getInteger(
+                R.integer.default_minimum_upload_size);
+        int size;
+        try {
+            // The preference is edited as a text, in KB
+            size = Integer.parseInt(prefs.getString(context
+                    .getString(R.string.pref_key_minimum_upload_size),
+                    defaultSize + ""));
+        } catch (NumberFormatException e) {
+            size = defaultSize;
+        }
+        return size * 1024L;
+    }
+
+    /** Indicate if the network policy preference allows an upload now */
+    private boolean isNetworkAllowed(SharedPreferences prefs) {
+        ConnectivityManager connectivity = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = connectivity.getActiveNetworkInfo();
+        if (network == null || !network.isConnected())
+            return false;
+        String policy = prefs.getString(
+                context.getString(R.string.pref_key_network_policy),
+                context.getString(R.string.pref_default_network_policy));
+        if (policy.equals(context
+                .getString(R.string.value_network_policy_allow_3G)))
+            return true;
+        return network.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
+    /** Return the upload protocol preference code */
+    private int getProtocol(SharedPreferences prefs) {
+        return Integer.parseInt(prefs.getString(
+                context.getString(R.string.pref_key_protocol), context
+                        .getResources().getString(
+                                R.string.pref_default_protocol)));
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.qualoutdoor.recorder.network;
+
+import java.io.InterruptedIOException;
+
+/**
+ * This static class limits the bandwidth of the uploads while throughput
+ * measurements are running : an upload would compete with them for the radio
+ * and skew their results. The measurements are declared with
+ * beginMeasurement() and endMeasurement().
+ *
+ * The policy is adaptive : when no measurement is running, the uploads use
+ * the whole bandwidth ; during a measurement, they share a token bucket
+ * filled at the throttled rate, or they are paused if this rate is 0. The
+ * senders write through a ThrottledOutputStream, which takes tokens from the
+ * bucket before each write.
+ *
+ * @author Gaborit Nicolas
+ */
+public final class UploadThrottle {
+
+    /** The lock of the bucket, notified when the policy changes */
+    private static final Object lock = new Object();
+
+    /** Number of measurements running */
+    private static int measurementCount = 0;
+    /** Rate in bytes per second during a measurement, 0 to pause */
+    private static long throttledRate = 0;
+    /** Number of bytes that can be sent at once, at the throttled rate */
+    private static double tokens = 0;
+    /** When the bucket has been filled last, in ns */
+    private static long lastFill = 0;
+
+    /** Not meant to be instantiated */
+    private UploadThrottle() {}
+
+    /**
+     * Set the rate of the uploads during a measurement
+     *
+     * @param bytesPerSecond
+     *            The rate in bytes per second, 0 to pause the uploads
+     */
+    public static void setThrottledRate(long bytesPerSecond) {
+        synchronized (lock) {
+            throttledRate = Math.max(0, bytesPerSecond);
+            lock.notifyAll();
+        }
+    }
+
+    /** A throughput measurement begins : the uploads are slowed down */
+    public static void beginMeasurement() {
+        synchronized (lock) {
+            if (measurementCount == 0) {
+                // The bucket starts empty
+                tokens = 0;
+                lastFill = System.nanoTime();
+            }
+            measurementCount++;
+        }
+    }
+
+    /** A throughput measurement is over */
+    public static void endMeasurement() {
+        synchronized (lock) {
+            if (measurementCount > 0)
+                measurementCount--;
+            lock.notifyAll();
+        }
+    }
+
+    /** Indicate if the uploads are slowed down by a measurement */
+    public static boolean isThrottling() {
+        synchronized (lock) {
+            return measurementCount > 0;
+        }
+    }
+
+    /**
+     * Wait until the given number of bytes can be sent. Returns at once if no
+     * measurement is running.
+     *
+     * @param bytes
+     *            The number of bytes to send, not more than a second at the
+     *            throttled rate for a smooth rate
+     * @throws InterruptedIOException
+     *             If the thread is interrupted while waiting
+     */
+    static void acquire(int bytes) throws InterruptedIOException {
+        synchronized (lock) {
+            while (measurementCount > 0) {
+                long wait = 0;
+                if (throttledRate > 0) {
+                    // Fill the bucket, it holds a second at most
+                    long now = System.nanoTime();
+                    double capacity = Math.max(throttledRate, bytes);
+                    tokens = Math.min(capacity, tokens + (now - lastFill)
+                            * throttledRate / 1e9);
+                    lastFill = now;
+                    if (tokens >= bytes) {
+                        tokens -= bytes;
+                        return;
+                    }
+                    // Time in ms before enough tokens are there
+                    wait = Math.max(1,
+                            (long) ((bytes - tokens) * 1000 / throttledRate));
+                }
+                try {
+                    // Until the end of the measurement if paused
+                    lock.wait(wait);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Upload interrupted");
+                }
+            }
+        }
+    }
+
+}
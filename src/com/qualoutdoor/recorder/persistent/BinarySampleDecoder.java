@@ -0,0 +1,214 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Reader of the binary sample files : the binary file format written by
+ * SampleCodec, or the segments of a SegmentLogStore, one after the other. It
+ * only depends on the Java library so that it can be used by the server.
+ *
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~{.java}
+ * BinarySampleDecoder decoder = new BinarySampleDecoder(in);
+ * BinarySampleDecoder.Record record;
+ * while ((record = decoder.next()) != null) {
+ *     // use record...
+ * }
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ * @author Gaborit Nicolas
+ */
+public class BinarySampleDecoder {
+
+    /** A decoded record */
+    public static class Record {
+        /** Time in ms since the epoch */
+        public long time;
+        /** Latitude in degrees */
+        public double latitude;
+        /** Longitude in degrees */
+        public double longitude;
+        /** Stages of the measure context */
+        public int[] stages;
+        /** Metric codes */
+        public int[] metrics;
+        /** Metric values, in the same order : Long or String */
+        public Object[] values;
+    }
+
+    /** The stream to read from */
+    private final DataInputStream in;
+    /** Whether the stream holds segments, else a binary file */
+    private final boolean segments;
+    /** Comments of the binary file, null for segments */
+    private String comments;
+    /** The time of the previous record */
+    private long previousTime;
+
+    /** The payload of the current record */
+    private byte[] payload = new byte[256];
+    /** The read position in the payload */
+    private int position;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Create a decoder and read the first header
+     *
+     * @param in
+     *            The stream to read from
+     * @throws IOException
+     *             If the stream does not start with a known header
+     */
+    public BinarySampleDecoder(InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+        int magic = this.in.readInt();
+        if (magic == SampleCodec.FILE_MAGIC) {
+            this.segments = false;
+            int version = this.in.readUnsignedByte();
+            if (version != SampleCodec.FILE_VERSION)
+                throw new IOException("Unknown file version " + version);
+            readPayload((int) readStreamVarint());
+            this.comments = new String(this.payload, 0, this.position,
+                    "UTF-8");
+        } else if (magic == SegmentLogStore.MAGIC) {
+            this.segments = true;
+            readSegmentHeader();
+        } else {
+            throw new IOException("Unknown magic number " + magic);
+        }
+    }
+
+    /** Return the comments of the binary file, null for segments */
+    public String getComments() {
+        return this.comments;
+    }
+
+    /**
+     * Read the next record
+     *
+     * @return The record, or null at the end of the stream
+     * @throws IOException
+     *             If the stream is corrupted
+     */
+    public Record next() throws IOException {
+        int length;
+        if (this.segments) {
+            int checksum;
+            try {
+                length = this.in.readInt();
+                if (length == SegmentLogStore.MAGIC) {
+                    // Beginning of the next segment
+                    readSegmentHeader();
+                    length = this.in.readInt();
+                }
+                checksum = this.in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            readPayload(length);
+            this.crc.reset();
+            this.crc.update(this.payload, 0, length);
+            if ((int) this.crc.getValue() != checksum)
+                throw new IOException("Bad record checksum");
+        } else {
+            int first = this.in.read();
+            if (first == -1)
+                return null;
+            length = (int) readStreamVarint(first);
+            readPayload(length);
+        }
+        this.position = 0;
+        return decodeRecord();
+    }
+
+    /** Read the rest of a segment header, after its magic number */
+    private void readSegmentHeader() throws IOException {
+        short version = this.in.readShort();
+        if (version != SegmentLogStore.VERSION)
+            throw new IOException("Unknown segment version " + version);
+        // Sequence number
+        this.in.readLong();
+        this.previousTime = 0;
+    }
+
+    /** Read a payload of the given length, the position is at its end */
+    private void readPayload(int length) throws IOException {
+        if (length < 0)
+            throw new IOException("Bad record length " + length);
+        if (this.payload.length < length)
+            this.payload = new byte[Math.max(length, this.payload.length * 2)];
+        this.in.readFully(this.payload, 0, length);
+        this.position = length;
+    }
+
+    /** Decode a record written by SampleCodec */
+    private Record decodeRecord() throws IOException {
+        Record record = new Record();
+        record.time = this.previousTime + readSignedVarint();
+        this.previousTime = record.time;
+        record.latitude = readSignedVarint() / SampleCodec.COORDINATE_SCALE;
+        record.longitude = readSignedVarint() / SampleCodec.COORDINATE_SCALE;
+        record.stages = new int[(int) readVarint()];
+        for (int i = 0; i < record.stages.length; i++) {
+            record.stages[i] = (int) readVarint();
+        }
+        int metricCount = (int) readVarint();
+        record.metrics = new int[metricCount];
+        record.values = new Object[metricCount];
+        for (int i = 0; i < metricCount; i++) {
+            record.metrics[i] = (int) readVarint();
+            byte type = this.payload[this.position++];
+            if (type == SampleCodec.TYPE_INTEGER) {
+                record.values[i] = Long.valueOf(readSignedVarint());
+            } else if (type == SampleCodec.TYPE_STRING) {
+                int length = (int) readVarint();
+                record.values[i] = new String(this.payload, this.position,
+                        length, "UTF-8");
+                this.position += length;
+            } else {
+                throw new IOException("Unknown value type " + type);
+            }
+        }
+        return record;
+    }
+
+    private long readSignedVarint() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Read a varint from the payload */
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = this.payload[this.position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Bad varint");
+    }
+
+    /** Read a varint from the stream */
+    private long readStreamVarint() throws IOException {
+        return readStreamVarint(this.in.readUnsignedByte());
+    }
+
+    /** Read a varint from the stream, its first byte being given */
+    private long readStreamVarint(int first) throws IOException {
+        long value = first & 0x7F;
+        int b = first;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            if (shift >= 64)
+                throw new IOException("Bad varint");
+            b = this.in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+        }
+        return value;
+    }
+
+}
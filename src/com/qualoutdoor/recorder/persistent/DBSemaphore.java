@@ -3,17 +3,37 @@ package com.qualoutdoor.recorder.persistent;
 import java.util.concurrent.Semaphore;
 
 /**
- * This class give a static access to the unique instance of the database
- * Semaphore
+ * This class give a static access to the unique instances of the database
+ * Semaphores.
+ *
+ * Writing samples and exporting them don't exclude each other : an export
+ * works on the samples sealed by SampleStore.seal(), while new samples are
+ * written after them. Only the short operations modifying the store hold the
+ * write semaphore, so that the recording is never blocked by an export.
+ *
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~{.java}
+ * DBSemaphore.export.acquire();
+ * // under DBSemaphore.write : store.seal()
+ * // without it : store.export(...)
+ * // under DBSemaphore.write : store.clear()
+ * DBSemaphore.export.release();
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
  * @author Gaborit Nicolas
  */
 public final class DBSemaphore {
 
     /**
-     * The semaphore limiting access to the database to one at a time, with
-     * fairness (FIFO ordering)
+     * The semaphore held while the store is modified (writing samples,
+     * sealing or clearing them), one at a time, with fairness (FIFO ordering)
      */
-    public static final Semaphore ref = new Semaphore(1, true);
+    public static final Semaphore write = new Semaphore(1, true);
+
+    /**
+     * The semaphore held during a whole export, so that two exports don't
+     * overlap, with fairness (FIFO ordering)
+     */
+    public static final Semaphore export = new Semaphore(1, true);
 
     /** Not meant to be instantiated */
     private DBSemaphore() {}
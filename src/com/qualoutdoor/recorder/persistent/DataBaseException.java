@@ -12,4 +12,8 @@ public class DataBaseException extends Exception {
         super(message);
     }
 
+    public DataBaseException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
 }
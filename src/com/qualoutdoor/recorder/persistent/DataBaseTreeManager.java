@@ -1,130 +1,183 @@
 package com.qualoutdoor.recorder.persistent;
 
+import java.util.ArrayList;
+
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 
 /**
  * Class that permits to insert new measures into local database system while
- * following tree architecture
+ * following tree architecture.
+ *
+ * Every node of the tree is stored as a line holding its own ID and the ID of
+ * its father, so that inserting a node never moves the other ones. Children of
+ * a node are read back in reverse insertion order (newest first), which gives
+ * the same depth-first order as the former line-shifting storage.
  * */
 public class DataBaseTreeManager {
+    /** ID of the root line, created with the reference table */
+    public static final int ROOT_ID = 1;
+    /** Level of the leaves : the measure context path plus the leaf itself */
+    public static final int LEAF_LEVEL = 7;
+    /** Number of leaf details read with the leaves : DATE, LAT, LNG, DATA */
+    public static final int LEAF_DETAIL_COUNT = 4;
+
     /** Database to work on */
     private SQLiteDatabase db;
-    /** table of the database where the tree is stored */
-    private TableDB table;
+    /** compiled statements of the database connection */
+    private StatementCache statements;
+    /** memory copy of the non leaf nodes */
+    private TreeNodeCache nodes;
     /** cursor moving on the tree nodes */
     private TreeCursor cursor;
+    /**
+     * Opened SQL cursors on the remaining children of each node of the path
+     * currently explored by moveToNextNode()
+     */
+    private ArrayList<Cursor> explorationStack;
 
-    public DataBaseTreeManager(SQLiteDatabase db, TableDB table) {
-        this.db = db;
-        this.table = table;
-        this.cursor = new TreeCursor();
-        this.cursor.init();
+    /** query finding the child of a node having a given value */
+    private final String sonQuery;
+    /** query inserting a child */
+    private final String insertQuery;
+    /** query reading a node from its ID */
+    private final String nodeQuery;
+    /** query reading the children of a node, newest first */
+    private final String childrenQuery;
+    /** column of leavesQuery holding the measure ID, null without details */
+    private static final int MEASURE_ID_COLUMN = 4;
+    /** column of leavesQuery holding the first leaf detail, DATE */
+    private static final int LEAF_DETAILS_COLUMN = 5;
+    /**
+     * query reading the leaves of a node joined with their details, newest
+     * first, or null if details are not read
+     */
+    private final String leavesQuery;
+    /** greatest ID of the nodes read by moveToNextNode() */
+    private final String maxId;
+
+    public DataBaseTreeManager(SQLiteDatabase db, TableDB table,
+            StatementCache statements, TreeNodeCache nodes) {
+        this(db, table, statements, nodes, null, Long.MAX_VALUE);
     }
 
-    /** returns the last line of the sub tree engendered by the pointed node */
-    public int getSubTreeBoundary() {
-        int lastChild;
-        // preparing SQL statement : searching next node brother/uncle
-        String selectQuery = "SELECT line , VALUE , LEVEL  FROM "
+    /**
+     * Build a manager that reads the leaves' details from the given measure
+     * table while moving along the tree, so that they are available through
+     * getLeafDetail() without any other query. Only the nodes whose ID is at
+     * most maxId are read, so that the tree stays the same while nodes are
+     * inserted by another manager.
+     */
+    public DataBaseTreeManager(SQLiteDatabase db, TableDB table,
+            StatementCache statements, TreeNodeCache nodes, TableDB measures,
+            long maxId) {
+        this.db = db;
+        this.maxId = Long.toString(maxId);
+        this.statements = statements;
+        this.nodes = nodes;
+        // the queries are built once, values are bound at execution
+        this.sonQuery = "SELECT ID FROM " + table.getName()
+                + " WHERE FATHER = ? AND VALUE = ?";
+        this.insertQuery = "INSERT INTO " + table.getName()
+                + " (FATHER,VALUE,LEVEL) VALUES (?,?,?);";
+        this.nodeQuery = "SELECT ID , FATHER , VALUE , LEVEL FROM "
+                + table.getName() + " WHERE ID = ?";
+        this.childrenQuery = "SELECT ID , FATHER , VALUE , LEVEL FROM "
                 + table.getName()
-                + " WHERE level <= ? AND line > ?  ORDER BY LINE ASC ";
-        // executing it
-        Cursor c = db.rawQuery(
-                selectQuery,
-                new String[] {
-                        Integer.toString(this.cursor.level),
-                        Integer.toString(this.cursor.line)
-                });
-        if (c.moveToFirst()) {
-            lastChild = c.getInt(0) - 1;
+                + " WHERE FATHER = ? AND ID <= ? ORDER BY ID DESC";
+        if (measures == null) {
+            this.leavesQuery = null;
         } else {
-            // if no line is found, sub tree spread untill the end of the
-            // references table
-            // counting the remaining lines
-            String countQuery = "SELECT Count(*) FROM " + table.getName();
-            Cursor c2 = db.rawQuery(countQuery, null);
-            c2.moveToFirst();
-            lastChild = c2.getInt(0) + 1;
-            c2.close();
+            // same columns as childrenQuery, followed by the measure ID at
+            // MEASURE_ID_COLUMN and the leaf details from LEAF_DETAILS_COLUMN
+            this.leavesQuery = "SELECT T.ID , T.FATHER , T.VALUE , T.LEVEL ,"
+                    + " M.ID , M.DATE , M.LAT , M.LNG , M.DATA FROM "
+                    + table.getName() + " T LEFT JOIN " + measures.getName()
+                    + " M ON M.ID = T.VALUE WHERE T.FATHER = ? AND T.ID <= ?"
+                    + " ORDER BY T.ID DESC";
         }
-        c.close();
-        return lastChild;
+        this.cursor = new TreeCursor();
+        this.cursor.init();
+        this.explorationStack = new ArrayList<Cursor>();
     }
 
     /**
-     * Checks if a specified node is included in sub tree engendered by pointed
-     * node and is the direct child of the pointed node. If found, true is
-     * returned and manager will point on it, else it won't move and returns
-     * false
+     * Checks if the pointed node has a direct child with the specified
+     * reference. If found, true is returned and manager will point on it, else
+     * it won't move and returns false
      */
     public boolean hasSon(int ref) {
-        boolean result;
-        // getting subtree boundary in order to edge searching interval
-        int boundary = getSubTreeBoundary();
-        // research query
-        String selectQuery = "SELECT  LINE , VALUE , LEVEL  FROM "
-                + table.getName()
-                + " WHERE VALUE = ? AND line <= ? AND line > ?";
-        // execution of the query
-        Cursor c = db.rawQuery(selectQuery,
-                new String[] {
-                        Integer.toString(ref), Integer.toString(boundary),
-                        Integer.toString(this.cursor.line)
-                });
-        // if a node is found, and if it is a direct child
-        if (c.moveToFirst() && cursor.getLevel() == c.getInt(2) - 1) {
-            this.cursor.update(c.getInt(0), c.getInt(1), c.getInt(2));
-            result = true;
-            // if not
-        } else {
-            result = false;
+        int level = this.cursor.level + 1;
+        // non leaf nodes are looked for in memory first
+        int id = this.nodes.findChild(this.cursor.id, ref);
+        if (id == TreeNodeCache.NOT_FOUND) {
+            // research query : the (FATHER, VALUE) index makes it a single
+            // lookup
+            SQLiteStatement son = statements.get(sonQuery);
+            son.bindLong(1, this.cursor.id);
+            son.bindLong(2, ref);
+            try {
+                id = (int) son.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                // if not
+                return false;
+            }
+            if (level < LEAF_LEVEL) {
+                this.nodes.put(id, this.cursor.id, ref, level);
+            }
         }
-        c.close();
-        return result;
+        // if a child is found, every other field is already known
+        this.cursor.update(id, this.cursor.id, ref, level);
+        return true;
     }
 
     /**
      * Method that inserts a new line associated to a non leaf node into
-     * reference table just under the pointed one with the specified reference.
-     * Cursor is updated on it after insertion
+     * reference table as a child of the pointed one with the specified
+     * reference. Cursor is updated on it after insertion
      */
-    public void insert(int ref) {
-        // incrementing index of line under the insertion index
-        String updateQuery1 = "UPDATE " + table.getName()
-                + " SET line = line + 1 WHERE LINE > " + this.cursor.line + ";";
-        db.execSQL(updateQuery1);
-        // new line insertion
-        String insertQuery = "INSERT INTO " + table.getName()
-                + " (LINE,VALUE,LEVEL) VALUES (" + (this.cursor.line + 1) + ","
-                + ref + "," + (this.cursor.level + 1) + ");";
-        db.execSQL(insertQuery);
+    public void insert(int ref) throws DataBaseException {
+        int id = insertChild(ref);
+        // the new node is kept in memory
+        this.nodes.put(id, this.cursor.id, ref, this.cursor.level + 1);
         // cursor updating
-        this.cursor.update(this.cursor.line + 1, ref, this.cursor.level + 1);
+        this.cursor.update(id, this.cursor.id, ref, this.cursor.level + 1);
     }
 
     /**
      * Method that inserts a new line associated to a leaf node into reference
-     * table just under the pointed one with the specified reference, cursor is
-     * not updated after insertion
+     * table as a child of the pointed one with the specified reference, cursor
+     * is not updated after insertion
      */
-    public void insertLeaf(int ref) {
-        // incrementing index of line under the insertion index
-        String updateQuery1 = "UPDATE " + table.getName()
-                + " SET line = line + 1 WHERE LINE > " + this.cursor.line + ";";
-        db.execSQL(updateQuery1);
-        // new line insertion
-        String insertQuery = "INSERT INTO " + table.getName()
-                + " (LINE,VALUE,LEVEL) VALUES (" + (this.cursor.line + 1) + ","
-                + ref + "," + (this.cursor.level + 1) + ");";
-        db.execSQL(insertQuery);
+    public void insertLeaf(int ref) throws DataBaseException {
+        insertChild(ref);
+    }
+
+    /**
+     * Insert a child of the pointed node with the specified reference and
+     * return the ID of the new line
+     */
+    private int insertChild(int ref) throws DataBaseException {
+        // new line insertion, other lines are left untouched
+        SQLiteStatement insert = statements.get(insertQuery);
+        insert.bindLong(1, this.cursor.id);
+        insert.bindLong(2, ref);
+        insert.bindLong(3, this.cursor.level + 1);
+        long id = insert.executeInsert();
+        if (id == -1) {
+            throw new DataBaseException(
+                    "TREE MANAGER INSERT : can't find ID of inserted node");
+        }
+        return (int) id;
     }
 
     /**
      * Function that make cursor focus on the child of the pointed line having
      * the specified reference if it doesn't exist this child is create
      * */
-    public void findOrCreate(int ref) {
+    public void findOrCreate(int ref) throws DataBaseException {
         if (!this.hasSon(ref)) {
             this.insert(ref);
         }
@@ -136,22 +189,25 @@ public class DataBaseTreeManager {
      * */
     public void getFather() throws DataBaseException {
         if (this.cursor.level != 0) {
-            // the father of the current line is the nearest above which had a
-            // level equals to the
-            // current level +1
-            // here is the associated query
-            String selectQuery = "SELECT max( LINE ) , VALUE , LEVEL FROM "
-                    + this.table.getName() + " WHERE LINE < ? AND LEVEL = ?";
-            Cursor c = db.rawQuery(
-                    selectQuery,
-                    new String[] {
-                            Integer.toString(this.cursor.line),
-                            Integer.toString(this.cursor.level - 1)
-                    });
+            TreeNodeCache.Node node = this.nodes.getNode(this.cursor.father);
+            if (node != null) {
+                // father is known : no need to read it
+                this.cursor.update(node.id, node.father, node.value,
+                        node.level);
+                return;
+            }
+            // the father is directly found by its ID
+            Cursor c = db.rawQuery(nodeQuery, new String[] {
+                Integer.toString(this.cursor.father)
+            });
             if (c.moveToFirst()) {
                 // father is found : cursor is updated
-                this.cursor.update(c.getInt(0), c.getInt(1), c.getInt(2));
+                this.cursor.update(c.getInt(0), c.getInt(1), c.getInt(2),
+                        c.getInt(3));
+                this.nodes.put(c.getInt(0), c.getInt(1), c.getInt(2),
+                        c.getInt(3));
             } else {
+                c.close();
                 throw new DataBaseException(
                         "TREE MANAGER GET FATHER : can't find node father");
             }
@@ -159,9 +215,41 @@ public class DataBaseTreeManager {
         }
     }
 
+    /**
+     * Fill the node cache with every non leaf node of the tree, read level by
+     * level from the root. Leaves are never read.
+     */
+    public void loadNodes() {
+        this.nodes.clear();
+        this.nodes.put(ROOT_ID, 0, 0, 0);
+        ArrayList<Integer> fathers = new ArrayList<Integer>();
+        fathers.add(ROOT_ID);
+        // the children of the last non leaf level are leaves
+        for (int level = 0; level < LEAF_LEVEL - 1; level++) {
+            ArrayList<Integer> sons = new ArrayList<Integer>();
+            for (int father : fathers) {
+                Cursor c = db.rawQuery(childrenQuery, new String[] {
+                        Integer.toString(father), this.maxId
+                });
+                while (c.moveToNext()) {
+                    this.nodes.put(c.getInt(0), c.getInt(1), c.getInt(2),
+                            c.getInt(3));
+                    sons.add(c.getInt(0));
+                }
+                c.close();
+            }
+            fathers = sons;
+        }
+    }
+
     /** Method reseting manager on tree root */
     public void reset() {
         this.cursor.init();
+        // closing any ongoing exploration
+        for (Cursor c : this.explorationStack) {
+            c.close();
+        }
+        this.explorationStack.clear();
     }
 
     /** Returns the cursor's current position */
@@ -170,30 +258,76 @@ public class DataBaseTreeManager {
     }
 
     /**
-     * Makes manager move to the node associated to the next line in the
-     * reference table returns true if this line exists, if not it returns false
+     * Makes manager move to the next node of the tree in depth-first order,
+     * starting from the root. Returns true if this node exists, if not it
+     * returns false.
      */
-    public boolean moveToNextLine() {
-        boolean exists;
-        String selectQuery = "SELECT  LINE, VALUE , LEVEL FROM "
-                + this.table.getName() + " WHERE LINE = ?";
-        Cursor c = db.rawQuery(selectQuery, new String[] {
-            Integer.toString(this.cursor.line + 1)
-        });
-        if (c.moveToFirst()) {
-            this.cursor.update(c.getInt(0), c.getInt(1), c.getInt(2));
-            exists = true;
-        } else {
-            exists = false;
+    public boolean moveToNextNode() {
+        // going down : the children of the pointed node are explored first
+        if (this.cursor.level < LEAF_LEVEL) {
+            // leaves are read along with their details if needed
+            String query = childrenQuery;
+            if (this.leavesQuery != null
+                    && this.cursor.level == LEAF_LEVEL - 1) {
+                query = this.leavesQuery;
+            }
+            this.explorationStack.add(db.rawQuery(query, new String[] {
+                    Integer.toString(this.cursor.id), this.maxId
+            }));
+        }
+        // then the next brother of the deepest node having one
+        while (!this.explorationStack.isEmpty()) {
+            int top = this.explorationStack.size() - 1;
+            Cursor c = this.explorationStack.get(top);
+            if (c.moveToNext()) {
+                this.cursor.update(c.getInt(0), c.getInt(1), c.getInt(2),
+                        c.getInt(3));
+                return true;
+            }
+            // every child has been explored : going up
+            c.close();
+            this.explorationStack.remove(top);
         }
-        c.close();
-        return exists;
+        return false;
+    }
+
+    /**
+     * Returns one of the details of the pointed leaf, read by moveToNextNode()
+     * : 0 for DATE, 1 for LAT, 2 for LNG and 3 for DATA. The manager must have
+     * been built with the measure table.
+     */
+    public String getLeafDetail(int index) throws DataBaseException {
+        return getLeafDetailsCursor().getString(LEAF_DETAILS_COLUMN + index);
+    }
+
+    /** Returns one of the details of the pointed leaf, as a long */
+    public long getLeafDetailLong(int index) throws DataBaseException {
+        return getLeafDetailsCursor().getLong(LEAF_DETAILS_COLUMN + index);
+    }
+
+    /** Returns one of the details of the pointed leaf, as a double */
+    public double getLeafDetailDouble(int index) throws DataBaseException {
+        return getLeafDetailsCursor().getDouble(LEAF_DETAILS_COLUMN + index);
+    }
+
+    /** Returns the SQL cursor positioned on the pointed leaf's details */
+    private Cursor getLeafDetailsCursor() throws DataBaseException {
+        Cursor c = this.explorationStack.get(this.explorationStack.size() - 1);
+        // the measure ID is null if the leaf has no details
+        if (this.cursor.level != LEAF_LEVEL
+                || c.getColumnCount() <= MEASURE_ID_COLUMN
+                || c.isNull(MEASURE_ID_COLUMN)) {
+            throw new DataBaseException("can't find leaf ");
+        }
+        return c;
     }
 
     /** Internal class that describes cursor objects */
     public class TreeCursor {
-        /** Current pointed line's index */
-        private int line;
+        /** Current pointed line's ID */
+        private int id;
+        /** Current pointed line's father ID */
+        private int father;
         /** Current pointed line's reference */
         private int reference;
         /** Current pointed line's level */
@@ -209,21 +343,28 @@ public class DataBaseTreeManager {
             return this.reference;
         }
 
-        /** returns cursor's line */
-        public int getLine() {
-            return this.line;
+        /** returns cursor's line ID */
+        public int getId() {
+            return this.id;
+        }
+
+        /** returns cursor's father line ID */
+        public int getFather() {
+            return this.father;
         }
 
         /** initialize cursor on the root */
         public void init() {
-            this.line = 2;
+            this.id = ROOT_ID;
+            this.father = 0;
             this.reference = 0;
             this.level = 0;
         }
 
         /** update cursor with specified attributes */
-        public void update(int li, int ref, int lev) {
-            this.line = li;
+        public void update(int id, int fath, int ref, int lev) {
+            this.id = id;
+            this.father = fath;
             this.reference = ref;
             this.level = lev;
         }
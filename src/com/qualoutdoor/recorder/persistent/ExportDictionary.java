@@ -0,0 +1,73 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The preset dictionaries given to the compression of the exported files, see
+ * PendingArchive.setCompression(). A dictionary holds sequences that are
+ * likely to appear in a file : even the beginning of the file can then be
+ * compressed by reference to them. The server needs the same dictionary to
+ * read the files : it is identified by its Adler-32 checksum in the zlib
+ * stream, so a dictionary must never be changed, only a new one added.
+ *
+ * The text dictionary is built from the text format written by the
+ * SQLConnector : node paths `level/reference$` and leaves
+ * `7/date/latitude/longitude/data;`. The most frequent sequences are at its
+ * end, where deflate references them with the shortest distances.
+ *
+ * @author Gaborit Nicolas
+ */
+public final class ExportDictionary {
+
+    /** The text format dictionary */
+    private static final byte[] TEXT;
+
+    static {
+        StringBuilder text = new StringBuilder();
+        text.append("#...comments about file...#");
+        // Contexts : group, user, MCC, MNC, network type
+        for (int ntc = 0; ntc < 16; ntc++) {
+            text.append("1/1$2/1$3/208$4/1$5/").append(ntc).append('$');
+        }
+        for (int mnc = 1; mnc < 21; mnc++) {
+            text.append("4/").append(mnc).append('$');
+        }
+        // Metrics and their typical values
+        for (int metric = 1; metric < 6; metric++) {
+            text.append("6/").append(metric).append("$7/1");
+        }
+        for (int dbm = -51; dbm >= -121; dbm -= 2) {
+            text.append('/').append(dbm).append(';');
+        }
+        // Leaves : the date in seconds, then the coordinates
+        for (int digit = 0; digit < 10; digit++) {
+            text.append("7/14").append(digit).append("/4").append(digit)
+                    .append(".").append("/-").append(digit).append('.');
+        }
+        text.append("6/2$7/14/");
+        text.append(";7/14");
+        try {
+            TEXT = text.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Not meant to be instantiated */
+    private ExportDictionary() {}
+
+    /**
+     * Return the dictionary of the given file format
+     *
+     * @param format
+     *            SampleStore.FORMAT_TEXT or FORMAT_BINARY
+     * @return The dictionary, or null if there is none for this format : the
+     *         binary records are already compact
+     */
+    public static byte[] forFormat(int format) {
+        if (format == SampleStore.FORMAT_TEXT)
+            return TEXT.clone();
+        return null;
+    }
+
+}
@@ -1,135 +1,131 @@
 package com.qualoutdoor.recorder.persistent;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.OutputStream;
 
 import android.os.AsyncTask;
 import android.util.Log;
 
 /**
- * Class that generates text file from the content of reference tree
- * architecture is conserved. it asks SQLgenerator object for details about
- * leaves
+ * Class that generates a file from the content of the sample store, as text
+ * or as binary records : for the SQLConnector, the text file conserves the
+ * architecture of the reference tree
+ *
+ * The file is streamed into a new entry of the pending archive through a
+ * bounded buffer, so the memory used does not depend on the store size. The
+ * store is only cleared once the archive has been written.
  */
-public class FileGenerator extends AsyncTask<Void, Void, ByteArrayOutputStream> {
+public class FileGenerator extends AsyncTask<Void, Void, Boolean> {
 
-    /** file to write in database content */
-    private ByteArrayOutputStream file;
-    /** connector for having leaves' details */
-    private SQLConnector connecteur;
+    /** size of the buffer between the generator and the archive */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** archive to write store content in */
+    private PendingArchive archive;
+    /** name of the archive entry */
+    private String entryName;
+    /** store holding the samples */
+    private SampleStore store;
     /** object to call when file is ready */
     private FileReadyListener callback;
     /** comments to add at the beginning of the text */
     private String comments;
+    /** file format, SampleStore.FORMAT_TEXT or FORMAT_BINARY */
+    private int format;
 
-    public FileGenerator(SQLConnector conn, String com, FileReadyListener cb) {
-        this.file = new ByteArrayOutputStream();
+    public FileGenerator(SampleStore store, String com, int format,
+            PendingArchive arch, String name, FileReadyListener cb) {
+        this.format = format;
+        this.archive = arch;
+        this.entryName = name;
         this.comments = com;
-        this.connecteur = conn;
+        this.store = store;
         this.callback = cb;
     }
 
     /**
-     * Writing database content into file, tree is read from the given
-     * managerWriter leaves' details will be asked to the SQLconnector
+     * background task that generate the reading file into the archive.
+     * Returns true if the archive has been written.
+     *
+     * Only the samples written before the export begins are exported : the
+     * recording goes on meanwhile, the store is only locked while the
+     * exported samples are sealed then cleared.
      */
-    public void tablesRetransciption(DataBaseTreeManager managerWriter) {
+    @Override
+    protected Boolean doInBackground(Void... params) {
         try {
-            // new line is read
-            while (managerWriter.moveToNextLine()) {
-                // if it is a leaf
-                if (managerWriter.getCursor().getLevel() == 7) {
-                    // asking details to connector
-                    ArrayList<String> details = connecteur
-                            .getLeafDetails(managerWriter.getCursor()
-                                    .getReference());
-                    // and writing them into the file
-                    this.file
-                            .write((managerWriter.getCursor().getLevel() + "/")
-                                    .getBytes());
-                    int compteurslash1 = 1;
-                    for (String field : details) {
-                        this.file.write(field.getBytes());
-                        if (compteurslash1 != details.size()) {
-                            this.file.write("/".getBytes());
-                        }
-                        compteurslash1++;
-                    }
-                    this.file.write(";".getBytes());
-                    // if it's not a leaf
-                } else {
-                    // writing level and reference of the node into the file
-                    int refNode = managerWriter.getCursor().getReference();
-                    int levelNode = managerWriter.getCursor().getLevel();
-                    this.file.write((levelNode + "/" + refNode + "$")
-                            .getBytes());
-                }
-            }
-        } catch (DataBaseException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            // Only one export at a time
+            DBSemaphore.export.acquire();
+        } catch (InterruptedException e) {
+            Log.e("FileGenerator", "Interrupted Exception", e);
+            return false;
         }
 
-    }
-
-    /**
-     * Function that initializes tablesRetranscirption function, checks if tree
-     * is not empty, inserts comments in file,
-     */
-    public void completeRetranscription(String comments,
-            DataBaseTreeManager managerWriter) throws DataBaseException {
         try {
+            // freeze the samples to export
+            boolean sealed;
+            DBSemaphore.write.acquire();
+            try {
+                sealed = this.store.seal();
+            } finally {
+                DBSemaphore.write.release();
+            }
             // check if tree is not empty
-            if (this.connecteur.hasLeaf()) {
-                // writing comments
-                this.file.write(("#" + comments + "#").getBytes());
-                // calling tablesRetranscription
-                this.tablesRetransciption(managerWriter);
-                // flushing storage system
-                this.connecteur.completeReset();
-            } else {
+            if (!sealed) {
                 throw new DataBaseException("no leaf to be write!");
             }
+            OutputStream file = new BufferedOutputStream(
+                    this.archive.beginEntry(this.entryName), BUFFER_SIZE);
+            try {
+                this.store.export(this.comments, file, this.format);
+                file.flush();
+                this.archive.commitEntry();
+                // report how well the file has been compressed
+                long size = this.archive.getLastEntrySize();
+                long compressedSize = this.archive.getLastEntryCompressedSize();
+                Log.d("FileGenerator", this.entryName + " : " + size
+                        + " bytes compressed to " + compressedSize
+                        + " bytes (ratio "
+                        + (compressedSize == 0 ? 0 : (float) size
+                                / compressedSize) + "), CPU time "
+                        + this.archive.getLastEntryCpuTime() / 1000000 + " ms");
+            } finally {
+                // if the entry has not been committed, it is forgotten
+                this.archive.abortEntry();
+            }
+            // measures are safely archived : flushing storage system
+            DBSemaphore.write.acquire();
+            try {
+                this.store.clear();
+            } finally {
+                DBSemaphore.write.release();
+            }
+        } catch (DataBaseException e) {
+            Log.e("FileGenerator", "Database Exception", e);
+            return false;
         } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    /** background task that generate the reading file. */
-    @Override
-    protected ByteArrayOutputStream doInBackground(Void... params) {
-        try {
-            // Acquire the access to the database
-            DBSemaphore.ref.acquire();
+            Log.e("FileGenerator", "IO Exception", e);
+            return false;
         } catch (InterruptedException e) {
             Log.e("FileGenerator", "Interrupted Exception", e);
-            return null;
-        }
-        
-        try {
-            completeRetranscription(this.comments,
-                    this.connecteur.prepareManager());
-        } catch (DataBaseException e) {
-            Log.e("FileGenerator", "Database Exception", e);
-            return null;
+            return false;
         } finally {
-            // We are done with the database
-            DBSemaphore.ref.release();
+            // We are done with the export
+            DBSemaphore.export.release();
         }
-        
-        return this.file;
+
+        return true;
 
     }
 
-    /** Calling callback with the generated file */
+    /** Calling callback once the file is in the archive */
     @Override
-    protected void onPostExecute(ByteArrayOutputStream result) {
-        if (result == null) {
+    protected void onPostExecute(Boolean result) {
+        if (!result) {
             Log.d("DEBUG FILE GENERATOR", "NO TEXT GENERATED");
         } else {
-            Log.d("DEBUG FILE GENERATOR", result.toString());
+            Log.d("DEBUG FILE GENERATOR", "Added " + this.entryName);
         }
         this.callback.onFileReady(result);
     }
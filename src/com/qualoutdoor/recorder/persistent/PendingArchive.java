@@ -0,0 +1,828 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * The zip archive holding the files waiting to be uploaded. A new entry is
+ * appended in place : it is written over the central directory of the
+ * archive, which is then written again after it with the new entry. Adding an
+ * entry costs the size of the entry and of the central directory, the
+ * existing entries are neither read nor copied.
+ *
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~{.java}
+ * PendingArchive archive = new PendingArchive(file);
+ * OutputStream out = archive.beginEntry(name);
+ * try {
+ *     // write the entry content into out...
+ *     archive.commitEntry();
+ * } finally {
+ *     // does nothing if the entry has been committed
+ *     archive.abortEntry();
+ * }
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ * Before the archive is modified, its central directory is saved into a
+ * journal file, forced to the disk. If the entry is aborted, or if the
+ * application dies before the commit, the archive is restored from the
+ * journal (the next time an entry is begun). The commit is the deletion of
+ * the journal, once the archive has been forced to the disk : if the journal
+ * can't be deleted, the entry is rolled back and commitEntry() fails. A
+ * journal still there after a commit, if the deletion had not reached the
+ * disk before a crash, is recognized : the archive ends with one more entry
+ * than the journal and a valid central directory, the entry is kept.
+ *
+ * The entry content is streamed into the zip file : its size in memory does
+ * not depend on the size of the entry. It is compressed with the deflate
+ * level given to setCompression(). With a preset dictionary, the content is
+ * compressed as a zlib stream using the dictionary, stored in an entry whose
+ * name ends with DICTIONARY_SUFFIX : zip readers don't know the dictionary,
+ * they only give back the zlib stream. The sizes and CPU time of the last
+ * committed entry tell how well it has been compressed.
+ *
+ * Each committed entry is recorded in the manifest of the archive, a text
+ * file next to it, with the SHA-1 hash of its content as a zip reader reads
+ * it : before an upload, the server can be asked which entries it holds
+ * already, and an archive without the held ones is made with
+ * copyEntries(). An entry committed just before a crash may be missing from
+ * the manifest : it is then always uploaded.
+ *
+ * @author Gaborit Nicolas
+ */
+public class PendingArchive {
+
+    /** Local file header signature */
+    private static final int LOCAL_HEADER = 0x04034b50;
+    /** Data descriptor signature */
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    /** Central directory file header signature */
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    /** End of central directory record signature */
+    private static final int END_HEADER = 0x06054b50;
+    /** Size of the end of central directory record, without comment */
+    private static final int END_SIZE = 22;
+    /** Maximum size of the zip file comment */
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    /** Version needed to extract : 2.0, for deflate */
+    private static final short VERSION = 20;
+    /** Flags : sizes in the data descriptor, UTF-8 name */
+    private static final short FLAGS = 0x0808;
+    /** Compression method : deflate */
+    private static final short DEFLATED = 8;
+
+    /** Suffix of the entries holding a zlib stream with a preset dictionary */
+    public static final String DICTIONARY_SUFFIX = ".zdict";
+
+    /** Suffix of the manifest file, added to the archive file name */
+    public static final String MANIFEST_SUFFIX = ".manifest";
+
+    /** Magic number starting the journal */
+    private static final int JOURNAL_MAGIC = 0x514F504A;
+
+    /** The archive file */
+    private final File archiveFile;
+    /** The journal of the archive */
+    private final File journalFile;
+    /** The manifest of the archive */
+    private final File manifestFile;
+
+    /** The channel writing into the archive, null if no entry is begun */
+    private FileChannel channel;
+    /** Whether the archive has been created for the begun entry */
+    private boolean created;
+    /** Offset of the central directory before the begun entry */
+    private long directoryOffset;
+    /** Central directory before the begun entry */
+    private byte[] directory;
+    /** Number of entries before the begun entry */
+    private int entryCount;
+
+    /** Name of the begun entry */
+    private byte[] entryName;
+    /** DOS time and date of the begun entry */
+    private int entryTime;
+    /** Compressor of the begun entry */
+    private Deflater deflater;
+    /** Compressor with the preset dictionary, before the entry compressor */
+    private Deflater dictionaryDeflater;
+    /** Checksum of the begun entry */
+    private CRC32 entryCrc;
+    /** Hash of the begun entry, for the manifest */
+    private MessageDigest entryDigest;
+    /** Number of bytes written into the begun entry, before compression */
+    private long entrySize;
+    /** Size of the begun entry in the archive, once compressed */
+    private long entryCompressedSize;
+    /** CPU time in ns spent compressing the begun entry */
+    private long entryCpuTime;
+
+    /** Buffer receiving the compressed data of the begun entry */
+    private final byte[] deflateBuffer = new byte[8 * 1024];
+
+    /** Deflate level of the entries */
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    /** Preset dictionary of the entries, or null */
+    private byte[] dictionary;
+
+    /** Size of the last committed entry, before compression */
+    private long lastEntrySize;
+    /** Size of the last committed entry in the archive */
+    private long lastEntryCompressedSize;
+    /** CPU time in ns spent compressing the last committed entry */
+    private long lastEntryCpuTime;
+
+    /**
+     * Create the object managing the given archive file, it may not exist yet
+     *
+     * @param archiveFile
+     *            The archive file
+     */
+    public PendingArchive(File archiveFile) {
+        this.archiveFile = archiveFile;
+        this.journalFile = new File(archiveFile.getPath() + ".journal");
+        this.manifestFile = getManifestFile(archiveFile);
+    }
+
+    /** Return the manifest file of the given archive */
+    public static File getManifestFile(File archiveFile) {
+        return new File(archiveFile.getPath() + MANIFEST_SUFFIX);
+    }
+
+    /** Return the archive file */
+    public File getFile() {
+        return this.archiveFile;
+    }
+
+    /**
+     * Choose how the next entries are compressed
+     *
+     * @param level
+     *            The deflate level, from Deflater.NO_COMPRESSION to
+     *            Deflater.BEST_COMPRESSION, or Deflater.DEFAULT_COMPRESSION
+     * @param dictionary
+     *            The preset dictionary, see ExportDictionary, or null
+     */
+    public void setCompression(int level, byte[] dictionary) {
+        this.level = level;
+        this.dictionary = dictionary;
+    }
+
+    /** Return the size of the last committed entry, before compression */
+    public long getLastEntrySize() {
+        return this.lastEntrySize;
+    }
+
+    /** Return the size of the last committed entry in the archive */
+    public long getLastEntryCompressedSize() {
+        return this.lastEntryCompressedSize;
+    }
+
+    /** Return the CPU time in ns spent compressing the last committed entry */
+    public long getLastEntryCpuTime() {
+        return this.lastEntryCpuTime;
+    }
+
+    /**
+     * Move the archive to the given file, once an entry left begun by a crash
+     * has been forgotten. The next entry will begin a new archive. Must not be
+     * called while an entry is begun.
+     *
+     * @param destination
+     *            The new archive file
+     * @return Whether the archive has been moved, false if there is no
+     *         archive
+     * @throws IOException
+     */
+    public boolean moveTo(File destination) throws IOException {
+        if (this.channel != null)
+            throw new IllegalStateException("An entry is begun");
+        recover();
+        if (!this.archiveFile.exists())
+            return false;
+        if (!this.archiveFile.renameTo(destination))
+            throw new IOException("Can't move " + this.archiveFile + " to "
+                    + destination);
+        if (this.manifestFile.exists()
+                && !this.manifestFile.renameTo(getManifestFile(destination))) {
+            // Without manifest, the entries are all uploaded
+            Log.e("PendingArchive", "Can't move " + this.manifestFile);
+            this.manifestFile.delete();
+        }
+        return true;
+    }
+
+    /**
+     * Begin a new entry at the end of the archive, the returned stream writes
+     * into it. The stream must not be closed, call commitEntry() or
+     * abortEntry() instead.
+     *
+     * @param name
+     *            The name of the new entry, DICTIONARY_SUFFIX is added with a
+     *            preset dictionary
+     * @return The stream into the new entry
+     * @throws IOException
+     */
+    public OutputStream beginEntry(String name) throws IOException {
+        if (this.channel != null)
+            throw new IllegalStateException("An entry is already begun");
+        // An entry left begun by a crash is forgotten
+        recover();
+        readDirectory();
+        if (this.created)
+            // The manifest of an archive moved away without it
+            this.manifestFile.delete();
+        try {
+            this.entryDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 not available");
+        }
+        writeJournal();
+        this.channel = new RandomAccessFile(this.archiveFile, "rw")
+                .getChannel();
+        try {
+            // The new entry replaces the central directory
+            this.channel.position(this.directoryOffset);
+            if (this.dictionary != null)
+                name += DICTIONARY_SUFFIX;
+            this.entryName = name.getBytes("UTF-8");
+            this.entryTime = dosTime(System.currentTimeMillis());
+            ByteBuffer header = littleEndian(30 + this.entryName.length);
+            header.putInt(LOCAL_HEADER).putShort(VERSION).putShort(FLAGS)
+                    .putShort(DEFLATED).putInt(this.entryTime)
+                    // CRC and sizes are in the data descriptor
+                    .putInt(0).putInt(0).putInt(0)
+                    .putShort((short) this.entryName.length).putShort((short) 0)
+                    .put(this.entryName);
+            write(header);
+        } catch (IOException e) {
+            abortEntry();
+            throw e;
+        }
+        if (this.dictionary != null) {
+            this.dictionaryDeflater = new Deflater(this.level);
+            this.dictionaryDeflater.setDictionary(this.dictionary);
+            // The zlib stream is only stored by the zip entry
+            this.deflater = new Deflater(Deflater.NO_COMPRESSION, true);
+        } else {
+            this.deflater = new Deflater(this.level, true);
+        }
+        this.entryCrc = new CRC32();
+        this.entrySize = 0;
+        this.entryCpuTime = 0;
+        return new EntryOutputStream();
+    }
+
+    /**
+     * Close the begun entry and write the central directory after it
+     *
+     * @throws IOException
+     *             If the archive could not be written, the previous archive
+     *             is restored
+     */
+    public void commitEntry() throws IOException {
+        if (this.channel == null)
+            throw new IllegalStateException("No entry is begun");
+        try {
+            // Flush the compressed data
+            long start = Debug.threadCpuTimeNanos();
+            byte[] buffer = new byte[8 * 1024];
+            if (this.dictionaryDeflater != null) {
+                this.dictionaryDeflater.finish();
+                while (!this.dictionaryDeflater.finished()) {
+                    int length = this.dictionaryDeflater.deflate(buffer);
+                    deflate(buffer, 0, length);
+                }
+            }
+            this.deflater.finish();
+            while (!this.deflater.finished()) {
+                int length = this.deflater.deflate(buffer);
+                write(ByteBuffer.wrap(buffer, 0, length));
+            }
+            this.entryCpuTime += Debug.threadCpuTimeNanos() - start;
+            long compressedSize = this.deflater.getBytesWritten();
+            this.entryCompressedSize = compressedSize;
+            long size = this.deflater.getBytesRead();
+            int crc = (int) this.entryCrc.getValue();
+            ByteBuffer descriptor = littleEndian(16);
+            descriptor.putInt(DATA_DESCRIPTOR).putInt(crc)
+                    .putInt((int) compressedSize).putInt((int) size);
+            write(descriptor);
+            long newDirectoryOffset = this.channel.position();
+            if (newDirectoryOffset > 0xFFFFFFFFL || size > 0xFFFFFFFFL
+                    || this.entryCount >= 0xFFFF)
+                throw new IOException("Archive too large");
+            // The previous central directory, then the new entry
+            write(ByteBuffer.wrap(this.directory));
+            ByteBuffer central = littleEndian(46 + this.entryName.length);
+            central.putInt(CENTRAL_HEADER).putShort(VERSION).putShort(VERSION)
+                    .putShort(FLAGS).putShort(DEFLATED).putInt(this.entryTime)
+                    .putInt(crc).putInt((int) compressedSize).putInt((int) size)
+                    .putShort((short) this.entryName.length)
+                    // extra field, comment, disk, attributes
+                    .putShort((short) 0).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0).putInt(0)
+                    .putInt((int) this.directoryOffset).put(this.entryName);
+            write(central);
+            write(endRecord(this.entryCount + 1, this.directory.length
+                    + central.capacity(), newDirectoryOffset));
+            this.channel.truncate(this.channel.position());
+            this.channel.force(true);
+        } catch (IOException e) {
+            abortEntry();
+            throw e;
+        }
+        closeEntry();
+        // Commit
+        if (!this.journalFile.delete()) {
+            // The caller must not forget the content of the entry
+            rollback(this.created, this.directoryOffset, this.entryCount,
+                    this.directory);
+            throw new IOException("Can't delete " + this.journalFile);
+        }
+        writeManifest();
+        this.lastEntrySize = this.entrySize;
+        this.lastEntryCompressedSize = this.entryCompressedSize;
+        this.lastEntryCpuTime = this.entryCpuTime;
+    }
+
+    /**
+     * Forget the begun entry, the archive is restored. Does nothing if no
+     * entry is begun.
+     */
+    public void abortEntry() {
+        if (this.channel == null)
+            return;
+        closeEntry();
+        try {
+            rollback(this.created, this.directoryOffset, this.entryCount,
+                    this.directory);
+            this.journalFile.delete();
+        } catch (IOException e) {
+            // The journal is kept for the next try
+            Log.e("PendingArchive", "abortEntry", e);
+        }
+    }
+
+    /** Close the channel and forget the begun entry */
+    private void closeEntry() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            Log.e("PendingArchive", "closeEntry", e);
+        }
+        this.channel = null;
+        if (this.deflater != null) {
+            this.deflater.end();
+            this.deflater = null;
+        }
+        if (this.dictionaryDeflater != null) {
+            this.dictionaryDeflater.end();
+            this.dictionaryDeflater = null;
+        }
+    }
+
+    /**
+     * Record the committed entry in the manifest. The entry is committed
+     * whatever happens : an entry missing from the manifest is uploaded even
+     * if the server holds it.
+     */
+    private void writeManifest() {
+        String line = toHex(this.entryDigest.digest()) + " ";
+        try {
+            line += new String(this.entryName, "UTF-8") + "\n";
+            FileOutputStream manifest = new FileOutputStream(
+                    this.manifestFile, true);
+            try {
+                manifest.write(line.getBytes("UTF-8"));
+                manifest.getFD().sync();
+            } finally {
+                manifest.close();
+            }
+        } catch (IOException e) {
+            Log.e("PendingArchive", "writeManifest", e);
+        }
+    }
+
+    /**
+     * Read the manifest of the given archive
+     *
+     * @param archiveFile
+     *            The archive file
+     * @return The SHA-1 hashes of the entries in hexadecimal, by entry name,
+     *         in the archive order. Empty if the archive has no manifest.
+     * @throws IOException
+     */
+    public static Map<String, String> readManifest(File archiveFile)
+            throws IOException {
+        Map<String, String> hashes = new LinkedHashMap<String, String>();
+        File manifest = getManifestFile(archiveFile);
+        if (!manifest.exists())
+            return hashes;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(manifest), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space > 0)
+                    hashes.put(line.substring(space + 1),
+                            line.substring(0, space));
+            }
+        } finally {
+            reader.close();
+        }
+        return hashes;
+    }
+
+    /**
+     * Write a new archive holding the entries of the given archive, except
+     * some of them. The entries are copied as they are, without being
+     * decompressed.
+     *
+     * @param source
+     *            The archive to copy entries from
+     * @param excluded
+     *            The names of the entries not to copy
+     * @param destination
+     *            The new archive, replaced if it exists
+     * @return The number of copied entries
+     * @throws IOException
+     */
+    public static int copyEntries(File source, Collection<String> excluded,
+            File destination) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(source, "r");
+        try {
+            byte[] directory = readDirectory(in)[0];
+            FileChannel from = in.getChannel();
+            FileOutputStream out = new FileOutputStream(destination);
+            try {
+                FileChannel to = out.getChannel();
+                ByteBuffer header = littleEndian(30);
+                ByteBuffer central = ByteBuffer.wrap(directory).order(
+                        ByteOrder.LITTLE_ENDIAN);
+                // The central headers of the copied entries
+                ByteArrayOutputStream copied = new ByteArrayOutputStream();
+                int count = 0;
+                int p = 0;
+                while (p + 46 <= directory.length
+                        && central.getInt(p) == CENTRAL_HEADER) {
+                    int nameLength = central.getShort(p + 28) & 0xFFFF;
+                    int length = 46 + nameLength
+                            + (central.getShort(p + 30) & 0xFFFF)
+                            + (central.getShort(p + 32) & 0xFFFF);
+                    String name = new String(directory, p + 46, nameLength,
+                            "UTF-8");
+                    if (!excluded.contains(name)) {
+                        long offset = central.getInt(p + 42) & 0xFFFFFFFFL;
+                        long compressedSize = central.getInt(p + 20) & 0xFFFFFFFFL;
+                        // The local record : header, data and descriptor
+                        header.clear();
+                        from.read(header, offset);
+                        long recordLength = 30
+                                + (header.getShort(26) & 0xFFFF)
+                                + (header.getShort(28) & 0xFFFF)
+                                + compressedSize;
+                        if ((central.getShort(p + 8) & 0x08) != 0) {
+                            // The descriptor signature is optional
+                            ByteBuffer signature = littleEndian(4);
+                            from.read(signature, offset + recordLength);
+                            recordLength += signature.getInt(0) == DATA_DESCRIPTOR ? 16
+                                    : 12;
+                        }
+                        long newOffset = to.position();
+                        long done = 0;
+                        while (done < recordLength) {
+                            done += from.transferTo(offset + done,
+                                    recordLength - done, to);
+                        }
+                        byte[] entry = new byte[length];
+                        System.arraycopy(directory, p, entry, 0, length);
+                        ByteBuffer.wrap(entry).order(ByteOrder.LITTLE_ENDIAN)
+                                .putInt(42, (int) newOffset);
+                        copied.write(entry);
+                        count++;
+                    }
+                    p += length;
+                }
+                long directoryOffset = to.position();
+                out.write(copied.toByteArray());
+                out.write(endRecord(count, copied.size(), directoryOffset)
+                        .array());
+                return count;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Write the whole buffer at the channel position */
+    private void write(ByteBuffer buffer) throws IOException {
+        if (buffer.position() != 0)
+            buffer.flip();
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+    }
+
+    /**
+     * Read the central directory of the archive, or prepare an empty one if
+     * there is no archive yet
+     */
+    private void readDirectory() throws IOException {
+        this.created = !this.archiveFile.exists();
+        if (this.created) {
+            this.directoryOffset = 0;
+            this.entryCount = 0;
+            this.directory = new byte[0];
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(this.archiveFile, "r");
+        try {
+            byte[][] read = readDirectory(raf);
+            this.directory = read[0];
+            ByteBuffer end = ByteBuffer.wrap(read[1]).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            this.entryCount = end.getShort(10) & 0xFFFF;
+            this.directoryOffset = end.getInt(16) & 0xFFFFFFFFL;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Read the central directory of the given zip file, and its end of
+     * central directory record
+     *
+     * @return The central directory, then the end record
+     */
+    private static byte[][] readDirectory(RandomAccessFile raf)
+            throws IOException {
+        // The end record is at the end, before a comment
+        long length = raf.length();
+        int tailLength = (int) Math.min(length, END_SIZE + MAX_COMMENT_SIZE);
+        byte[] tail = new byte[tailLength];
+        raf.seek(length - tailLength);
+        raf.readFully(tail);
+        ByteBuffer buffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+        int end = tailLength - END_SIZE;
+        while (end >= 0 && buffer.getInt(end) != END_HEADER) {
+            end--;
+        }
+        if (end < 0)
+            throw new IOException("Not a zip archive");
+        byte[] endRecord = new byte[END_SIZE];
+        System.arraycopy(tail, end, endRecord, 0, END_SIZE);
+        int directorySize = buffer.getInt(end + 12);
+        long directoryOffset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+        if (directorySize < 0 || directoryOffset + directorySize > length)
+            throw new IOException("Bad central directory");
+        byte[] directory = new byte[directorySize];
+        raf.seek(directoryOffset);
+        raf.readFully(directory);
+        return new byte[][] {
+                directory, endRecord
+        };
+    }
+
+    /** Save the central directory into the journal, forced to the disk */
+    private void writeJournal() throws IOException {
+        FileOutputStream file = new FileOutputStream(this.journalFile);
+        try {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(
+                    new CheckedOutputStream(file, crc));
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeBoolean(this.created);
+            out.writeLong(this.directoryOffset);
+            out.writeInt(this.entryCount);
+            out.writeInt(this.directory.length);
+            out.write(this.directory);
+            out.flush();
+            // The checksum tells if the journal is complete
+            new DataOutputStream(file).writeLong(crc.getValue());
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Restore the archive from the journal, if an entry has been left begun.
+     * An incomplete journal is ignored : the archive had not been modified. A
+     * journal of a committed entry is only deleted.
+     */
+    private void recover() throws IOException {
+        if (!this.journalFile.exists())
+            return;
+        boolean complete = false;
+        boolean wasCreated = false;
+        long offset = 0;
+        int count = 0;
+        byte[] saved = null;
+        DataInputStream in = new DataInputStream(new FileInputStream(
+                this.journalFile));
+        try {
+            CRC32 crc = new CRC32();
+            if (in.readInt() == JOURNAL_MAGIC) {
+                wasCreated = in.readBoolean();
+                offset = in.readLong();
+                count = in.readInt();
+                saved = new byte[in.readInt()];
+                in.readFully(saved);
+                ByteBuffer fields = ByteBuffer.allocate(4 + 1 + 8 + 4 + 4);
+                fields.putInt(JOURNAL_MAGIC).put((byte) (wasCreated ? 1 : 0))
+                        .putLong(offset).putInt(count).putInt(saved.length);
+                crc.update(fields.array());
+                crc.update(saved);
+                complete = in.readLong() == crc.getValue();
+            }
+        } catch (IOException e) {
+            // Incomplete journal
+            complete = false;
+        } finally {
+            in.close();
+        }
+        if (complete && isCommitted(offset, count, saved)) {
+            Log.d("PendingArchive", "Keeping the last entry of "
+                    + this.archiveFile);
+        } else if (complete) {
+            Log.d("PendingArchive", "Restoring " + this.archiveFile);
+            rollback(wasCreated, offset, count, saved);
+        }
+        if (!this.journalFile.delete())
+            throw new IOException("Can't delete " + this.journalFile);
+    }
+
+    /**
+     * Indicate if the archive holds the entry begun after the given central
+     * directory, with the central directory written by its commit
+     */
+    private boolean isCommitted(long offset, int count, byte[] saved) {
+        if (!this.archiveFile.exists())
+            return false;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(this.archiveFile, "r");
+            try {
+                byte[][] read = readDirectory(raf);
+                byte[] directory = read[0];
+                ByteBuffer end = ByteBuffer.wrap(read[1]).order(
+                        ByteOrder.LITTLE_ENDIAN);
+                if ((end.getShort(10) & 0xFFFF) != count + 1
+                        || (end.getInt(16) & 0xFFFFFFFFL) <= offset
+                        || directory.length < saved.length + 46)
+                    return false;
+                // The saved central directory, then the new entry
+                for (int i = 0; i < saved.length; i++) {
+                    if (directory[i] != saved[i])
+                        return false;
+                }
+                ByteBuffer central = ByteBuffer.wrap(directory).order(
+                        ByteOrder.LITTLE_ENDIAN);
+                int header = saved.length;
+                int nameLength = central.getShort(header + 28) & 0xFFFF;
+                long entryOffset = central.getInt(header + 42) & 0xFFFFFFFFL;
+                return central.getInt(header) == CENTRAL_HEADER
+                        && directory.length == header + 46 + nameLength
+                        // the entry starts where the directory was
+                        && entryOffset == offset;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // Not even a zip archive
+            return false;
+        }
+    }
+
+    /** Put back the given central directory, or delete a created archive */
+    private void rollback(boolean wasCreated, long offset, int count,
+            byte[] saved) throws IOException {
+        if (wasCreated) {
+            if (this.archiveFile.exists() && !this.archiveFile.delete())
+                throw new IOException("Can't delete " + this.archiveFile);
+            return;
+        }
+        if (!this.archiveFile.exists())
+            // The archive has been uploaded meanwhile
+            return;
+        RandomAccessFile raf = new RandomAccessFile(this.archiveFile, "rw");
+        try {
+            raf.setLength(offset);
+            raf.seek(offset);
+            raf.write(saved);
+            raf.write(endRecord(count, saved.length, offset).array());
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Build the end of central directory record */
+    private static ByteBuffer endRecord(int count, int directorySize,
+            long directoryOffset) {
+        ByteBuffer end = littleEndian(END_SIZE);
+        end.putInt(END_HEADER).putShort((short) 0).putShort((short) 0)
+                .putShort((short) count).putShort((short) count)
+                .putInt(directorySize).putInt((int) directoryOffset)
+                .putShort((short) 0);
+        return end;
+    }
+
+    private static ByteBuffer littleEndian(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Convert a time to the MS-DOS time and date of the zip format */
+    private static int dosTime(long millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /** Compress data into the begun entry */
+    private void deflate(byte[] b, int off, int len) throws IOException {
+        this.entryCrc.update(b, off, len);
+        this.entryDigest.update(b, off, len);
+        this.deflater.setInput(b, off, len);
+        while (!this.deflater.needsInput()) {
+            int length = this.deflater.deflate(this.deflateBuffer);
+            write(ByteBuffer.wrap(this.deflateBuffer, 0, length));
+        }
+    }
+
+    /** Return the bytes in hexadecimal */
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(
+                    Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /** The stream compressing the begun entry into the archive */
+    private class EntryOutputStream extends OutputStream {
+
+        /** Buffer receiving the data compressed with the dictionary */
+        private final byte[] buffer = new byte[8 * 1024];
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {
+                (byte) b
+            }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (channel == null)
+                throw new IOException("The entry is closed");
+            long start = Debug.threadCpuTimeNanos();
+            entrySize += len;
+            if (dictionaryDeflater == null) {
+                deflate(b, off, len);
+            } else {
+                dictionaryDeflater.setInput(b, off, len);
+                while (!dictionaryDeflater.needsInput()) {
+                    int length = dictionaryDeflater.deflate(buffer);
+                    deflate(buffer, 0, length);
+                }
+            }
+            entryCpuTime += Debug.threadCpuTimeNanos() - start;
+        }
+    }
+
+}
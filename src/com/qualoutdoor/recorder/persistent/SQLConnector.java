@@ -1,19 +1,35 @@
 package com.qualoutdoor.recorder.persistent;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.List;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 import android.util.SparseArray;
 
 /**
  * Class interfacing between java code of android app and SQL local database.
+ * Samples are stored into a tree of measure contexts and exported as text.
  *  */
 
 
-public class SQLConnector {
+public class SQLConnector implements SampleStore {
+
+    /** Synchronous mode : SQLite doesn't wait for data to reach the disk */
+    public static final int SYNCHRONOUS_OFF = 0;
+    /**
+     * Synchronous mode : SQLite waits for the disk at the most critical
+     * moments only, the last transactions may be lost on power failure
+     */
+    public static final int SYNCHRONOUS_NORMAL = 1;
+    /** Synchronous mode : SQLite waits for the disk after every transaction */
+    public static final int SYNCHRONOUS_FULL = 2;
 
     /**database to interact with*/
     private SQLiteDatabase db;
@@ -25,24 +41,64 @@ public class SQLConnector {
     private MeasureContext oldContext;
     /** Value indicating if this connector is open already */
     private boolean isOpen = false;
+    /** Statements compiled for the database connection */
+    private StatementCache statements;
+    /** Memory copy of the non leaf nodes of the tree */
+    private TreeNodeCache nodes;
+    /** Query inserting leaf's details into measure table */
+    private String insertDataQuery;
+    /** Query checking if measure table is not empty */
+    private String hasLeafQuery;
+    /** Whether the current transaction has been marked as successful */
+    private boolean transactionSuccessful = false;
+    /** The synchronous mode used on the database */
+    private int synchronous = SYNCHRONOUS_NORMAL;
+    /** Query finding the greatest ID of the reference table */
+    private String maxNodeQuery;
+    /** Query finding the greatest ID of the measure table */
+    private String maxMeasureQuery;
+    /** Greatest reference table ID sealed for the export, 0 if none */
+    private long sealedNodeId = 0;
+    /** Greatest measure table ID sealed for the export, 0 if none */
+    private long sealedMeasureId = 0;
 
     /**Constructor
      * that calls database creator one*/
     public SQLConnector(Context context) {
         this.dbCreator = new SQLDataBaseCreator(context);
         this.oldContext = new MeasureContext();
+        // the queries are built once, values are bound at execution
+        String measureTable = this.dbCreator.getTableMeasure().getName();
+        this.insertDataQuery = "INSERT INTO " + measureTable
+                + " ( LAT , LNG, DATA) VALUES ( ? , ? , ? );";
+        this.hasLeafQuery = "SELECT EXISTS ( SELECT ID FROM " + measureTable
+                + " );";
+        this.maxNodeQuery = "SELECT IFNULL ( MAX ( ID ) , 0 ) FROM "
+                + this.dbCreator.getTableReference().getName() + " ;";
+        this.maxMeasureQuery = "SELECT IFNULL ( MAX ( ID ) , 0 ) FROM "
+                + measureTable + " ;";
     }
 
     /**
      * Method triggering the database content creation or if it's already done
      * it just get its content 
      * */
+    @Override
     public void open() throws SQLException {
         // creation or opening of database content
         this.db = this.dbCreator.getWritableDatabase();
-        // manager initialization
+        // the export reads on its own connection while samples are written
+        this.db.enableWriteAheadLogging();
+        this.db.execSQL("PRAGMA synchronous = " + this.synchronous + ";");
+        // statements will be compiled on first use
+        this.statements = new StatementCache(this.db);
+        // manager initialization, the tree is browsed in memory as much as
+        // possible
+        this.nodes = new TreeNodeCache();
         this.manager = new DataBaseTreeManager(this.db,
-                this.dbCreator.getTableReference());
+                this.dbCreator.getTableReference(), this.statements,
+                this.nodes);
+        this.manager.loadNodes();
         // The connector is now opened
         this.isOpen = true;
     }
@@ -50,19 +106,79 @@ public class SQLConnector {
     /**
      * Method for closing access to the database
      * */
+    @Override
     public void close() {
+        Log.d("SQLConnector", "Tree node cache : " + this.nodes);
+        this.statements.clear();
         this.dbCreator.close();
         // The connector is now closed
         this.isOpen = false;
     }
 
+    /**
+     * Returns the memory copy of the tree nodes, for reading its hit and miss
+     * counts
+     */
+    public TreeNodeCache getNodeCache() {
+        return this.nodes;
+    }
+
     /** 
      * Indicate if this connector is open already
      */
+    @Override
     public boolean isOpen() {
         return this.isOpen;
     }
 
+    /**
+     * Set how much SQLite waits for data to be written on the disk, one of
+     * SYNCHRONOUS_OFF, SYNCHRONOUS_NORMAL or SYNCHRONOUS_FULL. The mode is
+     * kept when the connector is opened again.
+     */
+    public void setSynchronous(int mode) {
+        this.synchronous = mode;
+        if (this.isOpen) {
+            this.db.execSQL("PRAGMA synchronous = " + mode + ";");
+        }
+    }
+
+    /**
+     * Begin a transaction : following insertions will be written on the disk
+     * all at once when the transaction ends
+     */
+    public void beginTransaction() {
+        this.db.beginTransaction();
+    }
+
+    /**
+     * Mark the current transaction as successful : its insertions will be kept
+     * when it ends
+     */
+    public void setTransactionSuccessful() {
+        this.db.setTransactionSuccessful();
+        this.transactionSuccessful = true;
+    }
+
+    /**
+     * End the current transaction. If it has not been marked as successful,
+     * its insertions are rolled back and the insertion and node caches are
+     * reset as they may point to nodes that no longer exist.
+     */
+    public void endTransaction() {
+        try {
+            this.db.endTransaction();
+        } finally {
+            if (!this.transactionSuccessful) {
+                this.oldContext.reset();
+                this.manager.reset();
+                // nodes will be read again from the database when needed
+                this.nodes.clear();
+            }
+            this.transactionSuccessful = false;
+        }
+    }
+
     /**
      * Method for inserting a new leaf into reference table
      */
@@ -120,23 +236,19 @@ public class SQLConnector {
      */
     public int insertData(double lat, double lng, String data)
             throws DataBaseException {
-        int id = -1;
-        // preparing SQL statement for insertion, date is generated by MySQL
-        String insertQuery = "INSERT INTO "
-                + this.dbCreator.getTableMeasure().getName()
-                + " ( LAT , LNG, DATA) VALUES (" + lat + "," + lng + ", '" + data
-                + "' );";
-        //executing it
-        db.execSQL(insertQuery);
-        //getting last inserted row id
-        Cursor c = db.rawQuery("SELECT last_insert_rowid()", null);
-        if (c.moveToFirst()) {
-            id = c.getInt(0);
-        } else {
+        // binding values to the precompiled statement, date is generated by
+        // SQLite
+        SQLiteStatement insert = this.statements.get(this.insertDataQuery);
+        insert.bindDouble(1, lat);
+        insert.bindDouble(2, lng);
+        insert.bindString(3, data);
+        // executing it and getting inserted row id
+        long id = insert.executeInsert();
+        if (id == -1) {
             throw new DataBaseException(
                     "SQL CONNECTOR : can't find ID of inserted measure ! ");
         }
-        return id;
+        return (int) id;
     }
 
     /**
@@ -162,6 +274,36 @@ public class SQLConnector {
     }
 
 
+    /**
+     * Insert the given samples in a single transaction, so that the disk is
+     * written once for all of them
+     */
+    @Override
+    public void writeSamples(List<Sample> samples) throws DataBaseException {
+        try {
+            this.beginTransaction();
+            try {
+                for (Sample sample : samples) {
+                    try {
+                        // Insert the sample data
+                        this.insertMeasure(sample.measureContext, sample.data,
+                                sample.latitude, sample.longitude);
+                    } catch (DataBaseException e) {
+                        Log.e("SQLConnector", "DataBaseException", e);
+                    } catch (CollectMeasureException e) {
+                        Log.e("SQLConnector", "CollectMeasureException", e);
+                    }
+                }
+                this.setTransactionSuccessful();
+            } finally {
+                // Commit, everything is written on the disk at once
+                this.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new DataBaseException("Batch rolled back", e);
+        }
+    }
+
     /**
      * Returns details of the specified leaf
      */
@@ -174,46 +316,219 @@ public class SQLConnector {
         Cursor c = db.rawQuery(selectQuery, new String[] {
             Integer.toString(ref)
         });
-        if (c.moveToFirst()) {
-            for (int i = 0; i < c.getColumnCount(); i++) {
-                //filling the list with found results
-                list.add(c.getString(i));
+        try {
+            if (c.moveToFirst()) {
+                for (int i = 0; i < c.getColumnCount(); i++) {
+                    //filling the list with found results
+                    list.add(c.getString(i));
+                }
+                return list;
+            } else {
+                throw new DataBaseException("can't find leaf ");
             }
-            return list;
-        } else {
-            throw new DataBaseException("can't find leaf ");
+        } finally {
+            c.close();
         }
     }
 
     /**
-     * Returns a manager initialized on the tree stored into reference table
+     * Returns a manager initialized on the tree stored into reference table,
+     * reading the leaves' details along with the leaves. Only the nodes
+     * sealed by seal() are read, this manager may be used while samples are
+     * inserted.
      */
     public DataBaseTreeManager prepareManager() throws DataBaseException {
         DataBaseTreeManager manager = null;
         manager = new DataBaseTreeManager(this.db,
-                this.dbCreator.getTableReference());
+                this.dbCreator.getTableReference(), this.statements,
+                this.nodes, this.dbCreator.getTableMeasure(),
+                this.sealedNodeId);
         return manager;
     }
 
     /**
-     * Checking if the stored tree is not empty : consists in counting lines of measures table
+     * Checking if the stored tree is not empty : consists in looking for a line in measures table
      */
     public boolean hasLeaf() {
-        boolean bool;
-        // preparing SQL statement
-        String selectQuery = "SELECT ID FROM "
-                + this.dbCreator.getTableMeasure().getName();
-        //exectuting it
-        Cursor c = db.rawQuery(selectQuery, null);
-        if (c.moveToFirst()) {
-            //if leaves are found
-            bool = true;
-        } else {
-            //if not
-            bool = false;
+        // executing the precompiled query
+        return this.statements.get(this.hasLeafQuery).simpleQueryForLong() != 0;
+    }
+
+    @Override
+    public boolean hasSamples() {
+        return this.hasLeaf();
+    }
+
+    /**
+     * Lines are only appended, with increasing IDs : the lines existing now
+     * are sealed by keeping the greatest IDs of both tables
+     */
+    @Override
+    public boolean seal() throws DataBaseException {
+        if (!this.hasLeaf()) {
+            this.sealedNodeId = 0;
+            this.sealedMeasureId = 0;
+            return false;
+        }
+        this.sealedNodeId = this.statements.get(this.maxNodeQuery)
+                .simpleQueryForLong();
+        this.sealedMeasureId = this.statements.get(this.maxMeasureQuery)
+                .simpleQueryForLong();
+        return true;
+    }
+
+    /**
+     * Writing database content in the given format. As text, architecture of
+     * the tree is conserved : comments between #, then every node in
+     * depth-first order, non leaf nodes as level/reference$ and leaves as
+     * level/date/latitude/longitude/data;
+     *
+     * As binary records, every leaf is written as a record with its context
+     * and a single metric, see SampleCodec.
+     */
+    @Override
+    public void export(String comments, OutputStream file, int format)
+            throws DataBaseException, IOException {
+        if (format == FORMAT_BINARY) {
+            this.binaryRetranscription(comments, this.prepareManager(), file);
+            return;
+        }
+        // writing comments
+        file.write(("#" + comments + "#").getBytes());
+        // writing the tree
+        this.tablesRetranscription(this.prepareManager(), file);
+    }
+
+    /**
+     * Writing the tree read from the given managerWriter into file, leaves'
+     * details are read along with the leaves. A non leaf node is only written
+     * once a leaf is found under it : branches whose leaves have all been
+     * exported already are skipped.
+     */
+    private void tablesRetranscription(DataBaseTreeManager managerWriter,
+            OutputStream file) throws DataBaseException, IOException {
+        // references of the path to the pointed node, by level
+        int[] path = new int[DataBaseTreeManager.LEAF_LEVEL];
+        // deepest level of the path written into the file
+        int writtenLevel = 0;
+        try {
+            // next node is read, in depth-first order
+            while (managerWriter.moveToNextNode()) {
+                // if it is a leaf
+                if (managerWriter.getCursor().getLevel()
+                        == DataBaseTreeManager.LEAF_LEVEL) {
+                    // writing level and reference of the nodes above it
+                    for (int level = writtenLevel + 1; level < DataBaseTreeManager.LEAF_LEVEL; level++) {
+                        file.write((level + "/" + path[level] + "$")
+                                .getBytes());
+                    }
+                    writtenLevel = DataBaseTreeManager.LEAF_LEVEL - 1;
+                    // details have been read along with the leaf
+                    file.write((managerWriter.getCursor().getLevel() + "/")
+                            .getBytes());
+                    for (int i = 0; i < DataBaseTreeManager.LEAF_DETAIL_COUNT; i++) {
+                        // and writing them into the file
+                        file.write(managerWriter.getLeafDetail(i).getBytes());
+                        if (i != DataBaseTreeManager.LEAF_DETAIL_COUNT - 1) {
+                            file.write("/".getBytes());
+                        }
+                    }
+                    file.write(";".getBytes());
+                    // if it's not a leaf
+                } else {
+                    // keeping level and reference of the node until a leaf
+                    int refNode = managerWriter.getCursor().getReference();
+                    int levelNode = managerWriter.getCursor().getLevel();
+                    path[levelNode] = refNode;
+                    writtenLevel = Math.min(writtenLevel, levelNode - 1);
+                }
+            }
+        } finally {
+            // closing the exploration if it has been interrupted
+            managerWriter.reset();
+        }
+    }
+
+    /**
+     * Writing the tree read from the given managerWriter into file, as binary
+     * records : one per leaf
+     */
+    private void binaryRetranscription(String comments,
+            DataBaseTreeManager managerWriter, OutputStream file)
+            throws DataBaseException, IOException {
+        SampleCodec codec = new SampleCodec();
+        codec.writeFileHeader(comments, file);
+        // stages of the path to the pointed node, without the metric
+        int stageCount = DataBaseTreeManager.LEAF_LEVEL - 2;
+        int[] stages = new int[stageCount];
+        int[] metric = new int[1];
+        String[] value = new String[1];
+        try {
+            while (managerWriter.moveToNextNode()) {
+                int level = managerWriter.getCursor().getLevel();
+                int ref = managerWriter.getCursor().getReference();
+                if (level == DataBaseTreeManager.LEAF_LEVEL) {
+                    // dates are stored in seconds
+                    long time = managerWriter.getLeafDetailLong(0) * 1000;
+                    value[0] = managerWriter.getLeafDetail(3);
+                    codec.encode(time, managerWriter.getLeafDetailDouble(1),
+                            managerWriter.getLeafDetailDouble(2), stages,
+                            stageCount, metric, value, 1);
+                    codec.writeRecord(file);
+                } else if (level == DataBaseTreeManager.LEAF_LEVEL - 1) {
+                    metric[0] = ref;
+                } else {
+                    stages[level - 1] = ref;
+                }
+            }
+        } finally {
+            // closing the exploration if it has been interrupted
+            managerWriter.reset();
+        }
+    }
+
+    /**
+     * Deleting the sealed leaves and their details, then the non leaf nodes
+     * left without children. Lines inserted since seal() are kept.
+     */
+    @Override
+    public void clear() throws DataBaseException {
+        String tree = this.dbCreator.getTableReference().getName();
+        String measures = this.dbCreator.getTableMeasure().getName();
+        Object[] sealedNode = new Object[] {
+            this.sealedNodeId
+        };
+        try {
+            this.db.beginTransaction();
+            try {
+                this.db.execSQL("DELETE FROM " + tree + " WHERE ID <= ? AND LEVEL = "
+                        + DataBaseTreeManager.LEAF_LEVEL + " ;", sealedNode);
+                this.db.execSQL("DELETE FROM " + measures + " WHERE ID <= ? ;",
+                        new Object[] {
+                            this.sealedMeasureId
+                        });
+                // from the deepest level up to the root's children
+                for (int level = DataBaseTreeManager.LEAF_LEVEL - 1; level > 0; level--) {
+                    this.db.execSQL("DELETE FROM " + tree
+                            + " WHERE ID <= ? AND LEVEL = " + level
+                            + " AND NOT EXISTS ( SELECT ID FROM " + tree
+                            + " AS CHILD WHERE CHILD.FATHER = " + tree
+                            + ".ID ) ;", sealedNode);
+                }
+                this.db.setTransactionSuccessful();
+            } finally {
+                this.db.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new DataBaseException("Can't clear exported measures", e);
+        } finally {
+            this.sealedNodeId = 0;
+            this.sealedMeasureId = 0;
+            //the nodes of the insertion path may have been deleted
+            this.oldContext.reset();
+            this.manager.reset();
+            this.manager.loadNodes();
         }
-        c.close();
-        return bool;
     }
 
   /**
@@ -226,9 +541,15 @@ public class SQLConnector {
         db.execSQL("DROP TABLE IF EXISTS '"
                 + this.dbCreator.getTableMeasure().getName() + "'");
         this.dbCreator.onCreate(db);
+        //statements were compiled for the dropped tables
+        this.statements.clear();
+        this.sealedNodeId = 0;
+        this.sealedMeasureId = 0;
         //reseting cursors
         this.oldContext.reset();
         this.manager.reset();
+        //only the root is left
+        this.manager.loadNodes();
 
     }
 
@@ -1,6 +1,7 @@
 package com.qualoutdoor.recorder.persistent;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
@@ -13,8 +14,17 @@ public class SQLDataBaseCreator extends SQLiteOpenHelper{
 	
     /**Database name*/
 	private static final String DATABASE_NAME = "recorder.db";
-	/**Database version*/
-	private static final int DATABASE_VERSION = 1;
+	/**
+	 * Database version :
+	 * 1 - tree stored with shifted lines
+	 * 2 - tree stored with father IDs
+	 * 3 - index for reading children ordered by ID
+	 * */
+	private static final int DATABASE_VERSION = 3;
+	/**Index of the reference table on father and value*/
+	private static final String INDEX_FATHER_VALUE = "recorder_tt_father_value";
+	/**Index of the reference table on father*/
+	private static final String INDEX_FATHER = "recorder_tt_father";
 	/**Table storing tree architecture*/
 	private TableDB table_reference;
 	/**Table storing leaves' details*/
@@ -27,25 +37,33 @@ public class SQLDataBaseCreator extends SQLiteOpenHelper{
 	 * */
 	public SQLDataBaseCreator(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
-		this.table_reference = new TableDB("recorder_tt",new String[] {"LINE","VALUE","LEVEL"}, new String[] {"INTEGER","INTEGER NOT NULL","INTEGER"});
+		this.table_reference = new TableDB("recorder_tt",new String[] {"ID","FATHER","VALUE","LEVEL"}, new String[] {"INTEGER PRIMARY KEY AUTOINCREMENT","INTEGER NOT NULL","INTEGER NOT NULL","INTEGER"});
 		this.table_measure = new TableDB("measure_it",new String[] {"ID","DATE","LAT","LNG","DATA"}, new String[] {"INTEGER PRIMARY KEY AUTOINCREMENT","TIMESTAMP default (strftime('%s', 'now'))","REAL","REAL","VARCHAR"});
 		
 	}
 	
 	/**
-	 * In case of dataBase upgrading : existing tables are replaced with new ones
+	 * In case of dataBase upgrading : existing tables are migrated one version
+	 * after the other, so that measures waiting to be sent are kept.
+	 * SQLiteOpenHelper runs this method inside a transaction.
 	 * */
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		//dropping existing tables 
-		db.execSQL("DROP TABLE IF EXISTS '" + this.table_reference.getName() + "' ");
-		db.execSQL("DROP TABLE IF EXISTS '" + this.table_measure.getName() + "'");
-		//creating them again
-		onCreate(db);
+		for (int version = oldVersion; version < newVersion; version++) {
+			switch (version) {
+			case 1:
+				upgradeToLinkedTree(db);
+				break;
+			case 2:
+				//children are now read back ordered by ID
+				db.execSQL(table_reference.createIndexintoDB(INDEX_FATHER, new String[] {"FATHER"}));
+				break;
+			}
+		}
 	}
 	
 	/**
 	 * this function is called only when database is not initialized.
-	 * Calling SQL statements for creating tables
+	 * Calling SQL statements for creating tables at their last version
 	 * 
 	 */
 	@Override
@@ -53,8 +71,62 @@ public class SQLDataBaseCreator extends SQLiteOpenHelper{
 			//calling creation statements
 			db.execSQL(table_reference.createTableintoDB());
 			db.execSQL(table_measure.createTableintoDB());
+			createReferenceIndexes(db);
 			//calling statement for initialize reference table with a root line
-			db.execSQL("INSERT INTO "+this.table_reference.getName()+" (LINE,VALUE,LEVEL) VALUES (2,0,0); ");
+			db.execSQL("INSERT INTO "+this.table_reference.getName()+" (ID,FATHER,VALUE,LEVEL) VALUES ("+DataBaseTreeManager.ROOT_ID+",0,0,0); ");
+	}
+	
+	/**
+	 * Creating the indexes of the reference table : a node is looked up by its
+	 * father and its value, and children of a node are read back ordered by ID
+	 * */
+	private void createReferenceIndexes(SQLiteDatabase db) {
+		db.execSQL(table_reference.createIndexintoDB(INDEX_FATHER_VALUE, new String[] {"FATHER","VALUE"}));
+		db.execSQL(table_reference.createIndexintoDB(INDEX_FATHER, new String[] {"FATHER"}));
+	}
+	
+	/**
+	 * Migration from version 1 to version 2 : the tree stored with shifted
+	 * (LINE,VALUE,LEVEL) lines is converted into (ID,FATHER,VALUE,LEVEL) lines.
+	 * 
+	 * Lines are read in LINE order, the father of a node being the last node
+	 * read at the level above. IDs are given in reverse LINE order so that
+	 * children read back by decreasing ID keep their former order, the root
+	 * keeping the ROOT_ID.
+	 * */
+	private void upgradeToLinkedTree(SQLiteDatabase db) {
+		String name = this.table_reference.getName();
+		String oldName = name + "_v1";
+		//keeping the former table aside
+		db.execSQL("ALTER TABLE " + name + " RENAME TO " + oldName + ";");
+		db.execSQL(table_reference.createTableintoDB());
+		//the root line has the lowest LINE, every other line gets an ID above ROOT_ID
+		Cursor max = db.rawQuery("SELECT max( LINE ) FROM " + oldName, null);
+		int maxLine = max.moveToFirst() ? max.getInt(0) : 0;
+		max.close();
+		//last node ID read at each level
+		int[] fathers = new int[DataBaseTreeManager.LEAF_LEVEL + 1];
+		String insertQuery = "INSERT INTO " + name
+				+ " (ID,FATHER,VALUE,LEVEL) VALUES (?,?,?,?);";
+		Cursor c = db.rawQuery("SELECT LINE , VALUE , LEVEL FROM " + oldName
+				+ " ORDER BY LINE ASC", null);
+		while (c.moveToNext()) {
+			int level = c.getInt(2);
+			int id;
+			int father;
+			if (level == 0) {
+				id = DataBaseTreeManager.ROOT_ID;
+				father = 0;
+			} else {
+				id = maxLine - c.getInt(0) + DataBaseTreeManager.ROOT_ID + 1;
+				father = fathers[level - 1];
+			}
+			fathers[level] = id;
+			db.execSQL(insertQuery, new Object[] {id, father, c.getInt(1), level});
+		}
+		c.close();
+		db.execSQL("DROP TABLE IF EXISTS '" + oldName + "'");
+		db.execSQL(table_reference.createIndexintoDB(INDEX_FATHER_VALUE, new String[] {"FATHER","VALUE"}));
 	}
 	
 	
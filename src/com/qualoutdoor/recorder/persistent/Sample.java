@@ -8,6 +8,8 @@ import android.util.SparseArray;
  * 
  * An instance of this class contains :
  * 
+ * - The time it was made
+ * 
  * - A latitude and longitude
  * 
  * - A measure context (Group, User, MCC, MNC, NTC)
@@ -17,6 +19,8 @@ import android.util.SparseArray;
  * @author Gaborit Nicolas
  */
 public class Sample {
+    /** The time the sample was made, in milliseconds since the epoch */
+    public long time;
     /** The measure context of the sample */
     public MeasureContext measureContext;
     /** The metrics that have been sampled and their values */
@@ -39,6 +43,7 @@ public class Sample {
      */
     public Sample(MeasureContext measureContext, SparseArray<String> data,
             double latitude, double longitude) {
+        this.time = System.currentTimeMillis();
         this.measureContext = measureContext;
         this.data = data;
         this.latitude = latitude;
@@ -0,0 +1,285 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import android.util.SparseArray;
+
+/**
+ * Compact binary encoding of the samples, used by the segment log and by the
+ * binary file format. A record is encoded as :
+ *
+ * - time : difference in ms with the previous record, zigzag varint
+ *
+ * - latitude and longitude : fixed point with 7 decimals, zigzag varint each
+ *
+ * - context : number of stages then each stage, varints
+ *
+ * - metrics : number of metrics then, for each metric, its code (varint), the
+ * type of its value (byte) and its value : zigzag varint for TYPE_INTEGER,
+ * length (varint) and UTF-8 bytes for TYPE_STRING
+ *
+ * Times are encoded relatively to the previous record : a codec must be reset
+ * at the beginning of each file. The encoded record is kept in the codec
+ * buffer until the next one is encoded.
+ *
+ * The binary file format is made of a header : magic `QOBF` (int, big
+ * endian), format version (byte), comments length (varint) and UTF-8
+ * comments, followed by the records, each one preceded by its length
+ * (varint).
+ *
+ * BinarySampleDecoder reads these records back.
+ *
+ * @author Gaborit Nicolas
+ */
+public class SampleCodec {
+
+    /** Metric value type : integer */
+    public static final byte TYPE_INTEGER = 0;
+    /** Metric value type : string */
+    public static final byte TYPE_STRING = 1;
+    /** Scale of the fixed point coordinates */
+    public static final double COORDINATE_SCALE = 1e7;
+    /** Magic number starting every binary file : "QOBF" */
+    public static final int FILE_MAGIC = 0x514F4246;
+    /** Version of the binary file format */
+    public static final byte FILE_VERSION = 1;
+
+    /** Initial size of the record buffer */
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    /** The encoded record */
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    /** The length of the encoded record */
+    private int length;
+    /** The time of the previous record */
+    private long previousTime;
+
+    /** Stages of the context of the encoded sample, reused */
+    private int[] stages = new int[0];
+    /** Metric codes of the encoded sample, reused */
+    private int[] metrics = new int[0];
+    /** Metric values of the encoded sample, reused */
+    private String[] values = new String[0];
+
+    /** Forget the time of the previous record, at the beginning of a file */
+    public void reset() {
+        this.previousTime = 0;
+    }
+
+    /** Return the time of the previous record, the next one is relative to */
+    public long getPreviousTime() {
+        return this.previousTime;
+    }
+
+    /**
+     * Set the time of the previous record, when the records encoded since
+     * have not been written
+     */
+    public void setPreviousTime(long time) {
+        this.previousTime = time;
+    }
+
+    /** Return the buffer holding the encoded record */
+    public byte[] getBuffer() {
+        return this.buffer;
+    }
+
+    /** Return the length of the encoded record */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Write the header of a binary file and reset the codec
+     *
+     * @param comments
+     *            The comments about the file
+     * @param out
+     *            The stream to write into
+     */
+    public void writeFileHeader(String comments, OutputStream out)
+            throws IOException {
+        reset();
+        byte[] bytes = toUTF8(comments);
+        out.write(FILE_MAGIC >>> 24);
+        out.write(FILE_MAGIC >>> 16);
+        out.write(FILE_MAGIC >>> 8);
+        out.write(FILE_MAGIC);
+        out.write(FILE_VERSION);
+        this.length = 0;
+        writeVarint(bytes.length);
+        out.write(this.buffer, 0, this.length);
+        out.write(bytes);
+        this.length = 0;
+    }
+
+    /**
+     * Write the encoded record into a binary file, preceded by its length
+     *
+     * @param out
+     *            The stream to write into
+     */
+    public void writeRecord(OutputStream out) throws IOException {
+        long value = this.length;
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+        out.write(this.buffer, 0, this.length);
+    }
+
+    /**
+     * Encode a sample : its context without the metric stage, and its data
+     *
+     * @param sample
+     *            The sample to encode
+     */
+    public void encode(Sample sample) {
+        // The metric stage is given by the data
+        int stageCount = sample.measureContext.getlength() - 1;
+        if (this.stages.length < stageCount) {
+            this.stages = new int[stageCount];
+        }
+        for (int i = 0; i < stageCount; i++) {
+            this.stages[i] = sample.measureContext.getStage(i);
+        }
+        SparseArray<String> data = sample.data;
+        int metricCount = data.size();
+        if (this.metrics.length < metricCount) {
+            this.metrics = new int[metricCount];
+            this.values = new String[metricCount];
+        }
+        for (int i = 0; i < metricCount; i++) {
+            this.metrics[i] = data.keyAt(i);
+            this.values[i] = data.valueAt(i);
+        }
+        encode(sample.time, sample.latitude, sample.longitude, this.stages,
+                stageCount, this.metrics, this.values, metricCount);
+    }
+
+    /**
+     * Encode a record
+     *
+     * @param time
+     *            The time in ms since the epoch
+     * @param latitude
+     *            The latitude in degrees
+     * @param longitude
+     *            The longitude in degrees
+     * @param stages
+     *            The stages of the context
+     * @param stageCount
+     *            The number of stages to read from stages
+     * @param metrics
+     *            The metric codes
+     * @param values
+     *            The metric values, in the same order
+     * @param metricCount
+     *            The number of metrics to read from metrics and values
+     */
+    public void encode(long time, double latitude, double longitude,
+            int[] stages, int stageCount, int[] metrics, String[] values,
+            int metricCount) {
+        this.length = 0;
+        writeSignedVarint(time - this.previousTime);
+        this.previousTime = time;
+        writeSignedVarint(Math.round(latitude * COORDINATE_SCALE));
+        writeSignedVarint(Math.round(longitude * COORDINATE_SCALE));
+        writeVarint(stageCount);
+        for (int i = 0; i < stageCount; i++) {
+            writeVarint(stages[i] & 0xFFFFFFFFL);
+        }
+        writeVarint(metricCount);
+        for (int i = 0; i < metricCount; i++) {
+            writeVarint(metrics[i] & 0xFFFFFFFFL);
+            writeValue(values[i]);
+        }
+    }
+
+    /** Write a metric value with its type */
+    private void writeValue(String value) {
+        long integer = parseInteger(value);
+        if (integer != Long.MIN_VALUE) {
+            writeByte(TYPE_INTEGER);
+            writeSignedVarint(integer);
+        } else {
+            byte[] bytes = toUTF8(value);
+            writeByte(TYPE_STRING);
+            writeVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, this.buffer, this.length, bytes.length);
+            this.length += bytes.length;
+        }
+    }
+
+    private static byte[] toUTF8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Return the integer written in the given string, or Long.MIN_VALUE if it
+     * is not the canonical decimal writing of an integer (so that decoding
+     * gives back the same string)
+     */
+    private static long parseInteger(String value) {
+        int length = value.length();
+        if (length == 0 || length > 18)
+            return Long.MIN_VALUE;
+        int start = value.charAt(0) == '-' ? 1 : 0;
+        if (start == length)
+            return Long.MIN_VALUE;
+        // No leading zero, no "-0"
+        if (value.charAt(start) == '0' && (length - start > 1 || start == 1))
+            return Long.MIN_VALUE;
+        long result = 0;
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9')
+                return Long.MIN_VALUE;
+            result = result * 10 + (c - '0');
+        }
+        return start == 1 ? -result : result;
+    }
+
+    /** Write a signed value, zigzag encoded so that small values are short */
+    private void writeSignedVarint(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    /** Write an unsigned value on 7 bits per byte, least significant first */
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            this.buffer[this.length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.buffer[this.length++] = (byte) value;
+    }
+
+    private void writeByte(byte value) {
+        ensureCapacity(1);
+        this.buffer[this.length++] = value;
+    }
+
+    /** Grow the buffer if it can't hold the given number of bytes more */
+    private void ensureCapacity(int size) {
+        if (this.buffer.length - this.length >= size)
+            return;
+        int capacity = this.buffer.length;
+        while (capacity - this.length < size) {
+            capacity *= 2;
+        }
+        byte[] bigger = new byte[capacity];
+        System.arraycopy(this.buffer, 0, bigger, 0, this.length);
+        this.buffer = bigger;
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * A persistence backend for the recorded samples. Samples are written by the
+ * SampleWriter, then sealed, exported into the pending archive by the
+ * FileGenerator, and forgotten.
+ *
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~{.java}
+ * store.open();
+ * store.writeSamples(batch);
+ * // ...
+ * if (store.seal()) {
+ *     store.export(comments, out, SampleStore.FORMAT_TEXT);
+ *     store.clear();
+ * }
+ * store.close();
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ * Implementations are not thread safe : they must only be used while holding
+ * the DBSemaphore.write semaphore, except export() which may run while
+ * samples are written.
+ *
+ * @author Gaborit Nicolas
+ */
+public interface SampleStore {
+
+    /** File format : the samples written as text */
+    int FORMAT_TEXT = 0;
+    /** File format : the samples written as binary records, see SampleCodec */
+    int FORMAT_BINARY = 1;
+
+    /**
+     * Open the store, creating it if needed
+     *
+     * @throws DataBaseException
+     *             If the store can't be opened
+     */
+    void open() throws DataBaseException;
+
+    /** Indicate if this store is open already */
+    boolean isOpen();
+
+    /** Close the store, the written samples are kept */
+    void close();
+
+    /**
+     * Write the given samples. A sample that can't be written is skipped.
+     *
+     * @param samples
+     *            The samples to write
+     * @throws DataBaseException
+     *             If none of the samples could be written
+     */
+    void writeSamples(List<Sample> samples) throws DataBaseException;
+
+    /** Indicate if samples are waiting to be exported */
+    boolean hasSamples();
+
+    /**
+     * Freeze the samples written so far : they are the ones written by
+     * export() and forgotten by clear(), samples written afterwards are kept
+     * for the next export.
+     *
+     * @return Whether some samples have been sealed
+     */
+    boolean seal() throws DataBaseException;
+
+    /**
+     * Write every sealed sample into the given stream. This can be called
+     * while other samples are written.
+     *
+     * @param comments
+     *            The comments about the file, if the format has room for them
+     * @param out
+     *            The stream to write into
+     * @param format
+     *            The file format : FORMAT_TEXT or FORMAT_BINARY. A store may
+     *            always use its own format.
+     */
+    void export(String comments, OutputStream out, int format)
+            throws DataBaseException, IOException;
+
+    /** Forget the sealed samples, once they have been exported */
+    void clear() throws DataBaseException;
+
+}
@@ -0,0 +1,223 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.util.ArrayList;
+
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+/**
+ * This class is the single writer of the samples into the sample store.
+ * Samples are queued and written in batches on a dedicated thread, so that
+ * the disk is written once per batch instead of once per sample (for the
+ * SQLConnector, each batch is a single SQLite transaction).
+ *
+ * A batch is written as soon as it holds `maxBatchSize` samples, or when its
+ * oldest sample has been waiting for `maxBatchAge` milliseconds, or when
+ * flush() is called.
+ *
+ * A batch that can't be written (the transaction is rolled back) is kept, and
+ * written again `maxBatchAge` milliseconds later along with the samples
+ * queued meanwhile. A batch failing MAX_ATTEMPTS times in a row is given up,
+ * and the oldest samples are given up when more than MAX_KEPT_BATCHES full
+ * batches are waiting.
+ *
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~{.java}
+ * SampleWriter writer = new SampleWriter(store, 20, 20000, listener);
+ * writer.write(sample);
+ * // ...
+ * writer.flush();
+ * writer.quit();
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ * @author Gaborit Nicolas
+ */
+public class SampleWriter {
+
+    /** Message code for queuing a sample, the sample being the message object */
+    private static final int MESSAGE_WRITE = 1;
+    /** Message code for writing the pending batch */
+    private static final int MESSAGE_FLUSH = 2;
+
+    /** Number of times a batch is written before it is given up */
+    static final int MAX_ATTEMPTS = 5;
+    /** Number of full batches kept at most while the writes are failing */
+    static final int MAX_KEPT_BATCHES = 4;
+
+    /**
+     * Callback interface for being notified when samples have been written
+     * into the database
+     */
+    public interface SamplesWrittenListener {
+        /**
+         * Called on the writer thread when a batch has been written, or
+         * when samples have been given up
+         *
+         * @param count
+         *            The number of samples handled, including the ones that
+         *            failed to be inserted or have been given up. A batch
+         *            kept to be written again is not counted yet.
+         */
+        void onSamplesWritten(int count);
+    }
+
+    /** The store the samples are written into */
+    private final SampleStore store;
+    /** The maximum number of samples in a batch */
+    private final int maxBatchSize;
+    /** The maximum time in milliseconds a sample waits before being written */
+    private final long maxBatchAge;
+    /** The object to notify when a batch is written */
+    private final SamplesWrittenListener listener;
+
+    /** The thread on which samples are written */
+    private final HandlerThread thread;
+    /** The handler receiving the messages on the writer thread */
+    private final Handler handler;
+
+    /** The samples waiting to be written, only used on the writer thread */
+    private final ArrayList<Sample> batch;
+    /**
+     * The number of times the samples of the batch failed to be written, only
+     * used on the writer thread
+     */
+    private int failures = 0;
+
+    /**
+     * Create a SampleWriter and start its thread.
+     *
+     * @param store
+     *            The store the samples are written into, it must be open
+     *            when samples are written
+     * @param maxBatchSize
+     *            The maximum number of samples written at once
+     * @param maxBatchAge
+     *            The maximum number of milliseconds a sample waits before
+     *            being written
+     * @param listener
+     *            The object notified when batches are written
+     */
+    public SampleWriter(SampleStore store, int maxBatchSize, long maxBatchAge,
+            SamplesWrittenListener listener) {
+        this.store = store;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchAge = maxBatchAge;
+        this.listener = listener;
+        this.batch = new ArrayList<Sample>(maxBatchSize);
+        // Start the writer thread
+        this.thread = new HandlerThread("SampleWriter");
+        this.thread.start();
+        this.handler = new WriterHandler(thread.getLooper());
+    }
+
+    /**
+     * Queue a sample for being written. Can be called from any thread.
+     *
+     * @param sample
+     *            The sample to write
+     */
+    public void write(Sample sample) {
+        handler.sendMessage(handler.obtainMessage(MESSAGE_WRITE, sample));
+    }
+
+    /**
+     * Write the pending samples as soon as possible, without waiting for the
+     * batch to be full. Can be called from any thread.
+     */
+    public void flush() {
+        handler.sendEmptyMessage(MESSAGE_FLUSH);
+    }
+
+    /**
+     * Stop the writer thread. The samples not written yet are lost, call
+     * flush() and wait for them to be written beforehand.
+     */
+    public void quit() {
+        thread.quit();
+    }
+
+    /** Handle the messages on the writer thread */
+    private class WriterHandler extends Handler {
+
+        public WriterHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+            case MESSAGE_WRITE:
+                batch.add((Sample) msg.obj);
+                if (failures > 0) {
+                    // The batch is written again later, don't keep too much
+                    if (batch.size() > maxBatchSize * MAX_KEPT_BATCHES) {
+                        batch.remove(0);
+                        Log.e("SampleWriter", "Gave up the oldest sample");
+                        listener.onSamplesWritten(1);
+                    }
+                } else if (batch.size() >= maxBatchSize) {
+                    // The batch is full
+                    writeBatch();
+                } else if (batch.size() == 1) {
+                    // The batch should not wait longer than its first sample
+                    sendEmptyMessageDelayed(MESSAGE_FLUSH, maxBatchAge);
+                }
+                break;
+            case MESSAGE_FLUSH:
+                writeBatch();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Write the pending samples all at once. They are cleared once committed
+     * only, else they are written again later.
+     */
+    private void writeBatch() {
+        // The delayed flush is not needed anymore
+        handler.removeMessages(MESSAGE_FLUSH);
+        int count = batch.size();
+        if (count == 0)
+            return;
+        try {
+            // Acquire the access to the database
+            DBSemaphore.write.acquire();
+        } catch (InterruptedException e) {
+            Log.e("SampleWriter", "InterruptedException", e);
+            // Try again later
+            handler.sendEmptyMessageDelayed(MESSAGE_FLUSH, maxBatchAge);
+            return;
+        }
+        boolean written = false;
+        try {
+            store.writeSamples(batch);
+            written = true;
+            Log.d("SampleWriter", "Wrote " + count + " samples");
+        } catch (DataBaseException e) {
+            Log.e("SampleWriter", "Batch not written", e);
+        } catch (SQLException e) {
+            Log.e("SampleWriter", "Batch not written", e);
+        } finally {
+            // Release access
+            DBSemaphore.write.release();
+        }
+        if (!written && ++failures < MAX_ATTEMPTS) {
+            // Keep the batch, it is written again with the next samples
+            Log.d("SampleWriter", "Keeping " + count + " samples, "
+                    + failures + " failed attempts");
+            handler.sendEmptyMessageDelayed(MESSAGE_FLUSH, maxBatchAge);
+            return;
+        }
+        if (!written)
+            Log.e("SampleWriter", "Gave up " + count + " samples after "
+                    + failures + " failed attempts");
+        failures = 0;
+        batch.clear();
+        listener.onSamplesWritten(count);
+    }
+
+}
@@ -0,0 +1,436 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * A sample store that appends the samples to binary segment files, without
+ * any index to maintain : writing a batch costs one write call, whatever the
+ * number of samples already stored.
+ *
+ * The active segment is named `segment-<sequence>.open`. Once it reaches the
+ * maximum segment size, or when the store is closed or sealed for an export,
+ * it is sealed by renaming it to `segment-<sequence>.log`. Sealed segments are
+ * never written again : the export copies them as they are, while new samples
+ * go to a new active segment.
+ *
+ * Segment format, big endian :
+ *
+ * - header : magic `QOSL` (int), format version (short), sequence (long)
+ *
+ * - then records : payload length (int), CRC32 of the payload (int), payload
+ *
+ * - payload : the sample encoded by SampleCodec, its time being relative to
+ * the previous record of the segment
+ *
+ * When the store is opened, a segment left open by a crash is read back and
+ * cut after its last valid record, then sealed.
+ *
+ * @author Gaborit Nicolas
+ */
+public class SegmentLogStore implements SampleStore {
+
+    /** Magic number starting every segment : "QOSL" */
+    public static final int MAGIC = 0x514F534C;
+    /** Version of the segment format */
+    public static final short VERSION = 2;
+    /** Size of the segment header in bytes */
+    public static final int HEADER_SIZE = 4 + 2 + 8;
+    /** Size of the record header in bytes : length and checksum */
+    public static final int RECORD_HEADER_SIZE = 4 + 4;
+
+    /** Prefix of the segment file names */
+    private static final String PREFIX = "segment-";
+    /** Suffix of the active segment file name */
+    private static final String OPEN_SUFFIX = ".open";
+    /** Suffix of the sealed segment file names */
+    private static final String SEALED_SUFFIX = ".log";
+
+    /** Initial size of the encoding buffer */
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    /** The directory holding the segments */
+    private final File directory;
+    /** The size in bytes above which the active segment is sealed */
+    private final long maxSegmentSize;
+    /**
+     * The minimum time in ms between two forced writes to the disk, 0 for
+     * forcing after every batch
+     */
+    private final long forceInterval;
+
+    /** Value indicating if this store is open already */
+    private boolean isOpen = false;
+    /** The sequence number of the next segment */
+    private long nextSequence;
+    /** The active segment file, null if there is none */
+    private File activeFile;
+    /** The channel writing into the active segment */
+    private FileChannel activeChannel;
+    /** The time of the last forced write */
+    private long lastForce;
+    /** The segments sealed for the next export */
+    private List<File> sealed = new ArrayList<File>();
+
+    /** Buffer the records are encoded into before being written */
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    /** Checksum of the records */
+    private final CRC32 crc = new CRC32();
+    /** Encoder of the records */
+    private final SampleCodec codec = new SampleCodec();
+
+    /**
+     * Create a store writing segments into the given directory
+     *
+     * @param directory
+     *            The directory holding the segments, created if needed
+     * @param maxSegmentSize
+     *            The size in bytes above which a segment is sealed
+     * @param forceInterval
+     *            The minimum time in ms between two forced writes to the
+     *            disk, 0 for forcing after every batch
+     */
+    public SegmentLogStore(File directory, long maxSegmentSize,
+            long forceInterval) {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        this.forceInterval = forceInterval;
+    }
+
+    @Override
+    public void open() throws DataBaseException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new DataBaseException("Can't create " + directory);
+        }
+        nextSequence = 0;
+        for (File file : directory.listFiles()) {
+            long sequence = getSequence(file);
+            if (sequence < 0)
+                continue;
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            if (file.getName().endsWith(OPEN_SUFFIX)) {
+                // Left open by a crash
+                try {
+                    recover(file);
+                } catch (IOException e) {
+                    throw new DataBaseException("Can't recover " + file, e);
+                }
+            }
+        }
+        isOpen = true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    @Override
+    public void close() {
+        try {
+            sealActive();
+        } catch (IOException e) {
+            Log.e("SegmentLogStore", "Can't seal " + activeFile, e);
+        }
+        isOpen = false;
+    }
+
+    /**
+     * Append the batch to the active segment with a single write. If the
+     * write fails, the segment is cut back to its previous records : the
+     * batch can be written again. Once written, a failure to force or seal
+     * the segment is only logged, the batch must not be written twice.
+     */
+    @Override
+    public void writeSamples(List<Sample> samples) throws DataBaseException {
+        try {
+            if (activeChannel == null) {
+                // The times of the codec start over
+                createSegment();
+            }
+        } catch (IOException e) {
+            throw new DataBaseException("Can't create a segment in "
+                    + directory, e);
+        }
+        // Encode the whole batch, its first time being relative to the last
+        // record of the segment
+        long previousTime = codec.getPreviousTime();
+        buffer.clear();
+        for (Sample sample : samples) {
+            encodeRecord(sample);
+        }
+        buffer.flip();
+        try {
+            long validSize = activeChannel.position();
+            try {
+                // A single write for the batch
+                while (buffer.hasRemaining()) {
+                    activeChannel.write(buffer);
+                }
+            } catch (IOException e) {
+                // The next record follows the last one of the segment
+                codec.setPreviousTime(previousTime);
+                // Don't leave a partial record before the next batches
+                activeChannel.truncate(validSize);
+                activeChannel.position(validSize);
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new DataBaseException("Can't write into " + activeFile, e);
+        }
+        File file = activeFile;
+        try {
+            long now = System.currentTimeMillis();
+            if (now - lastForce >= forceInterval) {
+                activeChannel.force(false);
+                lastForce = now;
+            }
+            if (activeChannel.size() >= maxSegmentSize) {
+                sealActive();
+            }
+        } catch (IOException e) {
+            // The segment is recovered when the store is opened again
+            Log.e("SegmentLogStore", "Can't force or seal " + file, e);
+        }
+    }
+
+    @Override
+    public boolean hasSamples() {
+        return activeFile != null || getSealedSegments().length != 0;
+    }
+
+    /**
+     * Seal the active segment, then take every sealed segment for the next
+     * export
+     */
+    @Override
+    public boolean seal() throws DataBaseException {
+        try {
+            sealActive();
+        } catch (IOException e) {
+            throw new DataBaseException("Can't seal " + activeFile, e);
+        }
+        sealed = Arrays.asList(getSealedSegments());
+        return !sealed.isEmpty();
+    }
+
+    /**
+     * Write the segments taken by seal(), in order, into the given stream.
+     * They are written as they are, whatever the format, and the comments are
+     * not written. Only new segments are written meanwhile.
+     */
+    @Override
+    public void export(String comments, OutputStream out, int format)
+            throws DataBaseException, IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        for (File file : sealed) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                long position = 0;
+                while (position < size) {
+                    position += channel.transferTo(position, size - position,
+                            target);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /** Delete the segments taken by seal() */
+    @Override
+    public void clear() throws DataBaseException {
+        for (File file : sealed) {
+            if (file.exists() && !file.delete()) {
+                throw new DataBaseException("Can't delete " + file);
+            }
+        }
+        sealed = new ArrayList<File>();
+    }
+
+    /** Create a new active segment and write its header */
+    private void createSegment() throws IOException {
+        long sequence = nextSequence++;
+        File file = new File(directory, PREFIX + sequence + OPEN_SUFFIX);
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putLong(sequence).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        activeFile = file;
+        activeChannel = channel;
+        // Times are relative to the previous record of the segment
+        codec.reset();
+    }
+
+    /**
+     * Force the active segment to the disk and seal it, if there is one. If
+     * it can't be sealed, it will be recovered when the store is opened again.
+     */
+    private void sealActive() throws IOException {
+        if (activeChannel == null)
+            return;
+        File file = activeFile;
+        try {
+            activeChannel.force(true);
+        } finally {
+            activeChannel.close();
+            activeChannel = null;
+            activeFile = null;
+        }
+        if (!file.renameTo(sealedFile(file))) {
+            throw new IOException("Can't seal " + file);
+        }
+    }
+
+    /** Return the sealed file name of the given segment */
+    private File sealedFile(File segment) {
+        return new File(directory, PREFIX + getSequence(segment)
+                + SEALED_SUFFIX);
+    }
+
+    /**
+     * Cut a segment left open after its last valid record, then seal it, or
+     * delete it if it has no valid record
+     */
+    private void recover(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long validSize;
+        try {
+            FileChannel channel = raf.getChannel();
+            validSize = readValidSize(channel);
+            channel.truncate(validSize);
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+        if (validSize <= HEADER_SIZE) {
+            file.delete();
+        } else if (!file.renameTo(sealedFile(file))) {
+            throw new IOException("Can't seal " + file);
+        }
+        Log.d("SegmentLogStore", "Recovered " + file + " : " + validSize
+                + " bytes");
+    }
+
+    /**
+     * Return the size of the segment part holding a valid header and valid
+     * records
+     */
+    private long readValidSize(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (size < HEADER_SIZE || channel.read(header, 0) < HEADER_SIZE
+                || header.getInt(0) != MAGIC) {
+            return 0;
+        }
+        long position = HEADER_SIZE;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= size) {
+            recordHeader.clear();
+            channel.read(recordHeader, position);
+            int length = recordHeader.getInt(0);
+            int checksum = recordHeader.getInt(4);
+            long end = position + RECORD_HEADER_SIZE + length;
+            if (length < 0 || end > size)
+                break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            while (payload.hasRemaining()) {
+                channel.read(payload, position + RECORD_HEADER_SIZE
+                        + payload.position());
+            }
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum)
+                break;
+            position = end;
+        }
+        return position;
+    }
+
+    /** Return the sealed segments, in writing order */
+    private File[] getSealedSegments() {
+        ArrayList<File> sealed = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SEALED_SUFFIX)
+                        && getSequence(file) >= 0) {
+                    sealed.add(file);
+                }
+            }
+        }
+        File[] result = sealed.toArray(new File[sealed.size()]);
+        Arrays.sort(result, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = getSequence(lhs);
+                long r = getSequence(rhs);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Return the sequence number of a segment file, or -1 if it is not a
+     * segment
+     */
+    private static long getSequence(File file) {
+        String name = file.getName();
+        if (!name.startsWith(PREFIX))
+            return -1;
+        int end = name.lastIndexOf('.');
+        if (end <= PREFIX.length())
+            return -1;
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Append the record of a sample to the encoding buffer */
+    private void encodeRecord(Sample sample) {
+        codec.encode(sample);
+        int length = codec.getLength();
+        ensureCapacity(RECORD_HEADER_SIZE + length);
+        crc.reset();
+        crc.update(codec.getBuffer(), 0, length);
+        buffer.putInt(length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(codec.getBuffer(), 0, length);
+    }
+
+    /** Grow the encoding buffer if it can't hold the given number of bytes */
+    private void ensureCapacity(int size) {
+        if (buffer.remaining() >= size)
+            return;
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < size) {
+            capacity *= 2;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+    }
+
+}
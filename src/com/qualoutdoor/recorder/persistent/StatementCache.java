@@ -0,0 +1,73 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.util.HashMap;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * This class keeps the SQL statements compiled for a database connection, so
+ * that each query is parsed and planned by SQLite only once. Values are given
+ * through bind parameters instead of being concatenated into the SQL text.
+ *
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~{.java}
+ * SQLiteStatement insert = cache.get(INSERT_QUERY);
+ * insert.bindLong(1, value);
+ * long id = insert.executeInsert();
+ * ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ * The statements are not thread safe : the cache must only be used while
+ * holding the DBSemaphore.write semaphore.
+ *
+ * @author Gaborit Nicolas
+ */
+public class StatementCache {
+
+    /** The database the statements are compiled for */
+    private final SQLiteDatabase db;
+    /** The compiled statements, by SQL text */
+    private final HashMap<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+
+    /**
+     * Create an empty cache for the given database connection
+     *
+     * @param db
+     *            The open database
+     */
+    public StatementCache(SQLiteDatabase db) {
+        this.db = db;
+    }
+
+    /**
+     * Return the statement compiled from the given SQL text, compiling it the
+     * first time. Its bindings are cleared.
+     *
+     * @param sql
+     *            The SQL text, with `?` for each bound value
+     * @return The compiled statement
+     */
+    public SQLiteStatement get(String sql) {
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            // First use of this query
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        } else {
+            // Forget the values bound the last time
+            statement.clearBindings();
+        }
+        return statement;
+    }
+
+    /**
+     * Release every compiled statement. This must be called when the tables
+     * are dropped, or before closing the database.
+     */
+    public void clear() {
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+    }
+
+}
@@ -77,4 +77,21 @@ public class TableDB {
         return request;
     }
 
+    /**
+     * return the SQL statement into a string that order to create into SQL
+     * database an index with the given name on the given columns of the table
+     */
+    public String createIndexintoDB(String indexName, String[] indexColumns) {
+        String columnsFields = "";
+        for (int i = 0; i < indexColumns.length; i++) {
+            if (i != 0) {
+                columnsFields = columnsFields + ",";
+            }
+            columnsFields = columnsFields + " " + indexColumns[i] + " ";
+        }
+        String request = "CREATE INDEX " + indexName + " ON " + this.name
+                + " ( " + columnsFields + " );";
+        return request;
+    }
+
 }
@@ -0,0 +1,144 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.util.HashMap;
+
+import android.util.SparseArray;
+
+/**
+ * Memory copy of the non leaf nodes of the reference tree. These nodes only
+ * change when the measure context changes (group, user, MCC, MNC, network
+ * type, metric), so they are few and a DataBaseTreeManager can move along them
+ * without reading the database.
+ *
+ * Nodes are found either by their ID, or by their father's ID and their value.
+ * The cache counts how many lookups it could answer (hits) and how many had to
+ * be answered by the database (misses).
+ *
+ * @author Gaborit Nicolas
+ */
+public class TreeNodeCache {
+
+    /** Returned by findChild() when no such child is cached */
+    public static final int NOT_FOUND = -1;
+
+    /** The cached nodes, by ID */
+    private final SparseArray<Node> nodes = new SparseArray<Node>();
+    /** The cached node IDs, by father's ID and value */
+    private final HashMap<Long, Integer> children = new HashMap<Long, Integer>();
+
+    /** Number of lookups answered by the cache */
+    private long hits = 0;
+    /** Number of lookups not answered by the cache */
+    private long misses = 0;
+
+    /** A cached node of the tree */
+    public static class Node {
+        /** Line ID */
+        public final int id;
+        /** Father line ID */
+        public final int father;
+        /** Node reference */
+        public final int value;
+        /** Node level */
+        public final int level;
+
+        public Node(int id, int father, int value, int level) {
+            this.id = id;
+            this.father = father;
+            this.value = value;
+            this.level = level;
+        }
+    }
+
+    /** Build the key of a node from its father's ID and its value */
+    private static Long childKey(int father, int value) {
+        return Long.valueOf(((long) father << 32) | (value & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Add a node to the cache
+     *
+     * @param id
+     *            The node line ID
+     * @param father
+     *            The father line ID
+     * @param value
+     *            The node reference
+     * @param level
+     *            The node level
+     */
+    public void put(int id, int father, int value, int level) {
+        nodes.put(id, new Node(id, father, value, level));
+        children.put(childKey(father, value), id);
+    }
+
+    /**
+     * Look for the ID of the child having the given value
+     *
+     * @param father
+     *            The father line ID
+     * @param value
+     *            The child reference
+     * @return The child line ID, or NOT_FOUND if it is not cached
+     */
+    public int findChild(int father, int value) {
+        Integer id = children.get(childKey(father, value));
+        if (id == null) {
+            misses++;
+            return NOT_FOUND;
+        }
+        hits++;
+        return id;
+    }
+
+    /**
+     * Look for a node from its ID
+     *
+     * @param id
+     *            The node line ID
+     * @return The cached node, or null if it is not cached
+     */
+    public Node getNode(int id) {
+        Node node = nodes.get(id);
+        if (node == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return node;
+    }
+
+    /** Forget every cached node, the counters are kept */
+    public void clear() {
+        nodes.clear();
+        children.clear();
+    }
+
+    /** Return the number of lookups answered by the cache */
+    public long getHitCount() {
+        return hits;
+    }
+
+    /** Return the number of lookups that had to be answered by the database */
+    public long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Return the proportion of lookups answered by the cache, between 0 and 1.
+     * Return 0 if no lookup has been made.
+     */
+    public double getHitRate() {
+        long total = hits + misses;
+        if (total == 0)
+            return 0;
+        return (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return nodes.size() + " nodes, " + hits + " hits, " + misses
+                + " misses";
+    }
+
+}
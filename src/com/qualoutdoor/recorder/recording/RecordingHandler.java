@@ -1,35 +1,29 @@
 package com.qualoutdoor.recorder.recording;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import android.database.SQLException;
-import android.os.AsyncTask;
+import android.content.res.Resources;
 import android.os.Handler;
 import android.os.Message;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.qualoutdoor.recorder.QualOutdoorRecorderApp;
 import com.qualoutdoor.recorder.R;
-import com.qualoutdoor.recorder.network.DataSendingManager;
 import com.qualoutdoor.recorder.network.SendCompleteListener;
-import com.qualoutdoor.recorder.persistent.CollectMeasureException;
-import com.qualoutdoor.recorder.persistent.DBSemaphore;
+import com.qualoutdoor.recorder.network.UploadScheduler;
 import com.qualoutdoor.recorder.persistent.DataBaseException;
 import com.qualoutdoor.recorder.persistent.FileGenerator;
 import com.qualoutdoor.recorder.persistent.FileReadyListener;
+import com.qualoutdoor.recorder.persistent.PendingArchive;
 import com.qualoutdoor.recorder.persistent.SQLConnector;
 import com.qualoutdoor.recorder.persistent.Sample;
+import com.qualoutdoor.recorder.persistent.SampleStore;
+import com.qualoutdoor.recorder.persistent.SampleWriter;
+import com.qualoutdoor.recorder.persistent.SegmentLogStore;
 
 /**
  * This Handler is used to manage AsyncTask related to the database by sending
@@ -58,6 +52,16 @@ public class RecordingHandler extends Handler {
     public static final int MESSAGE_UPLOAD_DATABASE = 103;
     /** Message code for a sample action (used only internally) */
     private static final int MESSAGE_SAMPLE = 104;
+    /**
+     * Message code indicating that samples have been written, their number
+     * being arg1 (used only internally)
+     */
+    private static final int MESSAGE_SAMPLES_WRITTEN = 105;
+    /**
+     * Message code for a periodic export, when the automatic upload is on
+     * (used only internally)
+     */
+    private static final int MESSAGE_AUTOMATIC_EXPORT = 106;
 
     /** The recording service using this handler */
     private RecordingService recordingService;
@@ -67,12 +71,18 @@ public class RecordingHandler extends Handler {
     /** Indicate if the handler is currently recording */
     private boolean isRecording = false;
 
-    /** The number of ongoing sample task */
-    private int sampleTaskCount = 0;
+    /** The number of samples waiting to be written in the database */
+    private int pendingSampleCount = 0;
 
     /** The number of ongoing upload database task */
     private int uploadTaskCount = 0;
 
+    /**
+     * Indicate if the recording must be exported once its pending samples
+     * are written
+     */
+    private boolean exportWhenWritten = false;
+
     /** The delay between samples */
     private int sampleRate;
 
@@ -81,8 +91,31 @@ public class RecordingHandler extends Handler {
      */
     private boolean shouldClose = true;
 
-    /** The SQLConnector used for all the database operations */
-    private SQLConnector connector;
+    /** The store used for all the database operations */
+    private SampleStore store;
+
+    /** The writer inserting samples in the store while recording */
+    private SampleWriter sampleWriter;
+
+    /** The archive holding the files waiting to be uploaded */
+    private PendingArchive archive;
+
+    /**
+     * The scheduler uploading the archive, held by the application : it
+     * outlives this handler
+     */
+    private UploadScheduler uploadScheduler;
+
+    /** Let the scheduler upload the archive when an automatic export is done */
+    private final FileReadyListener automaticExportCallback = new FileReadyListener() {
+        @Override
+        public void onFileReady(boolean written) {
+            // The export task is over
+            uploadTaskCount--;
+            checkCloseDatabase();
+            uploadScheduler.check();
+        }
+    };
 
     /**
      * Create a new RecordingHandler with the given sampleRate
@@ -95,7 +128,18 @@ public class RecordingHandler extends Handler {
     public RecordingHandler(RecordingService recordingService, int sampleRate) {
         this.sampleRate = sampleRate;
         this.recordingService = recordingService;
-        this.connector = new SQLConnector(recordingService);
+        this.store = createStore();
+        this.archive = QualOutdoorRecorderApp.getPendingArchive();
+        this.uploadScheduler = QualOutdoorRecorderApp.getUploadScheduler();
+    }
+
+    /**
+     * Stop the periodic exports, this handler won't be used anymore. The
+     * exports still running are uploaded when they are done : the scheduler
+     * is not stopped.
+     */
+    public void release() {
+        removeMessages(MESSAGE_AUTOMATIC_EXPORT);
     }
 
     @Override
@@ -117,6 +161,12 @@ public class RecordingHandler extends Handler {
         case MESSAGE_SAMPLE:
             actionSample();
             break;
+        case MESSAGE_SAMPLES_WRITTEN:
+            actionSamplesWritten(msg.arg1);
+            break;
+        case MESSAGE_AUTOMATIC_EXPORT:
+            actionAutomaticExport();
+            break;
         }
     }
 
@@ -129,20 +179,30 @@ public class RecordingHandler extends Handler {
         if (!isRecording) {
             try {
                 // If we need to open the database
-                if (!connector.isOpen())
-                    connector.open();
+                if (!store.isOpen())
+                    store.open();
+                // Start the writer if needed
+                if (sampleWriter == null)
+                    sampleWriter = createSampleWriter();
                 // Start the sampling now
                 this.sendEmptyMessage(MESSAGE_SAMPLE);
+                // Measure the throughputs meanwhile
+                recordingService.startThroughputTests();
+                // Export regularly for the automatic upload
+                this.sendEmptyMessageDelayed(MESSAGE_AUTOMATIC_EXPORT,
+                        getAutomaticExportInterval());
                 // We are now recording
                 setNotifyRecording(true);
                 // Thus we don't want the database to be closed
                 shouldClose = false;
+            } catch (DataBaseException exc) {
+                Log.e("RecordingService", "Can't open SampleStore", exc);
+                // Toast the user that recording won't be available
+                toastOpenError();
             } catch (SQLException exc) {
                 Log.e("RecordingService", "Can't open SQLConnector", exc);
                 // Toast the user that recording won't be available
-                Toast.makeText(recordingService,
-                        R.string.error_open_sql_connector, Toast.LENGTH_SHORT)
-                        .show();
+                toastOpenError();
             }
         }
     }
@@ -159,6 +219,14 @@ public class RecordingHandler extends Handler {
             shouldClose = false;
             // Clear any remaining sample message
             removeMessages(MESSAGE_SAMPLE);
+            recordingService.stopThroughputTests();
+            removeMessages(MESSAGE_AUTOMATIC_EXPORT);
+            // Write the pending samples without waiting
+            if (sampleWriter != null)
+                sampleWriter.flush();
+            // Export what has been recorded for the automatic upload, once
+            // the pending samples are in the store (see finishRecording())
+            exportWhenWritten = isAutomaticUpload();
             // Finish recording if
             finishRecording();
         }
@@ -173,18 +241,53 @@ public class RecordingHandler extends Handler {
      *            The protocol used for the upload
      */
     private void actionUploadDatabase(int chosenProtocol) {
+        // Upload the archive once the database has been added to it
+        exportStore(new WritingCallbackPreferences(chosenProtocol));
+    }
+
+    /**
+     * Action performed when a MESSAGE_AUTOMATIC_EXPORT is received. Add the
+     * database to the archive, the scheduler will upload it when the
+     * automatic upload preferences allow it.
+     */
+    private void actionAutomaticExport() {
+        if (isAutomaticUpload())
+            exportStore(automaticExportCallback);
+        // Export again later
+        sendEmptyMessageDelayed(MESSAGE_AUTOMATIC_EXPORT,
+                getAutomaticExportInterval());
+    }
+
+    /**
+     * Convert the whole database into a new file of the archive
+     * 
+     * @param writingCallback
+     *            The listener called when the file has been added
+     */
+    private void exportStore(FileReadyListener writingCallback) {
         // Open database if needed
-        if (!connector.isOpen())
-            connector.open();
+        try {
+            if (!store.isOpen())
+                store.open();
+        } catch (DataBaseException exc) {
+            Log.e("RecordingService", "Can't open SampleStore", exc);
+            toastOpenError();
+            return;
+        } catch (SQLException exc) {
+            Log.e("RecordingService", "Can't open SQLConnector", exc);
+            toastOpenError();
+            return;
+        }
         // Increment the number of upload task
         uploadTaskCount++;
-        // Create a callback that will upload the generated file when done
-        FileReadyListener writingCallback = new WritingCallbackPreferences(
-                chosenProtocol);
         // Define the comment added at the beginning of the file
         String comments = "...comments about file...";
-        // Create a writer that will convert the database into a file
-        FileGenerator writer = new FileGenerator(connector, comments,
+        // generating file name with timestamp to preserve unicity
+        String name = "file" + System.currentTimeMillis();
+        // Create a writer that will convert the database into a file of the
+        // archive
+        FileGenerator writer = new FileGenerator(store, comments,
+                QualOutdoorRecorderApp.getExportFormat(), archive, name,
                 writingCallback);
         // Start conversion
         writer.execute();
@@ -197,8 +300,9 @@ public class RecordingHandler extends Handler {
             // Try to make a sample
             try {
                 Sample sample = recordingService.sample();
-                // Insert the sample in the database
-                new InsertSampleTask().execute(sample);
+                // Queue the sample for insertion in the database
+                pendingSampleCount++;
+                sampleWriter.write(sample);
             } catch (SampleFailedException e) {} finally {
                 // Sample again later
                 this.sendEmptyMessageDelayed(MESSAGE_SAMPLE, sampleRate);
@@ -209,6 +313,82 @@ public class RecordingHandler extends Handler {
         }
     }
 
+    /**
+     * Action performed when a MESSAGE_SAMPLES_WRITTEN is received
+     * 
+     * @param count
+     *            The number of samples that have been written
+     */
+    private void actionSamplesWritten(int count) {
+        // These samples are not pending anymore
+        pendingSampleCount -= count;
+        // Should we stop the recording ?
+        if (!isRecording) {
+            // Finish recording
+            finishRecording();
+        }
+    }
+
+    /** Indicate if the automatic upload preference is on */
+    private boolean isAutomaticUpload() {
+        return PreferenceManager.getDefaultSharedPreferences(recordingService)
+                .getBoolean(
+                        recordingService
+                                .getString(R.string.pref_key_automatic_data_upload),
+                        recordingService.getResources().getBoolean(
+                                R.bool.pref_default_automatic_data_upload));
+    }
+
+    /** Return the time in ms between two automatic exports */
+    private long getAutomaticExportInterval() {
+        return recordingService.getResources().getInteger(
+                R.integer.automatic_export_interval);
+    }
+
+    /** Toast the user that the database can't be opened */
+    private void toastOpenError() {
+        Toast.makeText(recordingService, R.string.error_open_sql_connector,
+                Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Create the sample store chosen in the application resources : a
+     * SegmentLogStore, or by default a SQLConnector
+     */
+    private SampleStore createStore() {
+        Resources res = recordingService.getResources();
+        if (res.getBoolean(R.bool.sample_store_segment_log)) {
+            return new SegmentLogStore(new File(recordingService.getFilesDir(),
+                    QualOutdoorRecorderApp.SEGMENT_DIRECTORY),
+                    res.getInteger(R.integer.segment_max_size),
+                    res.getInteger(R.integer.segment_force_interval));
+        }
+        SQLConnector connector = new SQLConnector(recordingService);
+        // Choose how much SQLite should wait for the disk
+        if (res.getBoolean(R.bool.sample_batch_full_synchronous))
+            connector.setSynchronous(SQLConnector.SYNCHRONOUS_FULL);
+        return connector;
+    }
+
+    /**
+     * Create a SampleWriter configured from the application resources, that
+     * will notify this handler when samples are written
+     */
+    private SampleWriter createSampleWriter() {
+        Resources res = recordingService.getResources();
+        return new SampleWriter(store,
+                res.getInteger(R.integer.sample_batch_size),
+                res.getInteger(R.integer.sample_batch_max_age),
+                new SampleWriter.SamplesWrittenListener() {
+                    @Override
+                    public void onSamplesWritten(int count) {
+                        // Get back on the handler thread
+                        sendMessage(obtainMessage(MESSAGE_SAMPLES_WRITTEN,
+                                count, 0));
+                    }
+                });
+    }
+
     /**
      * Check that no task will use the database in the future and close it if
      * needed
@@ -216,24 +396,36 @@ public class RecordingHandler extends Handler {
     private void checkCloseDatabase() {
         // Check that no task are remaining and that we should close the
         // database
-        if (shouldClose && (sampleTaskCount + uploadTaskCount == 0)) {
+        if (shouldClose && (pendingSampleCount + uploadTaskCount == 0)) {
             // Close the database
-            if (connector.isOpen())
-                connector.close();
+            if (store.isOpen())
+                store.close();
         }
     }
 
     /**
-     * Close the database if needed then stop the RecordingService if no task
-     * are remaining in order to finish the recording process.
+     * Export the recording once its samples are written, close the database
+     * if needed then stop the RecordingService if no task are remaining in
+     * order to finish the recording process.
      */
     private void finishRecording() {
 
         Log.d("RecordingHandler", "trying to finishRecording");
+        // The writer reports the samples once committed : the export seals
+        // every recorded sample
+        if (exportWhenWritten && pendingSampleCount == 0) {
+            exportWhenWritten = false;
+            exportStore(automaticExportCallback);
+        }
         // Check and close database
         checkCloseDatabase();
-        // If no more sampling task are waiting
-        if (sampleTaskCount == 0) {
+        // If no more samples are waiting
+        if (pendingSampleCount == 0) {
+            // Stop the writer
+            if (sampleWriter != null) {
+                sampleWriter.quit();
+                sampleWriter = null;
+            }
             // Indicate that the recording service does not need to run in
             // foreground anymore and remove notification
             recordingService.stopForeground(true);
@@ -298,54 +490,6 @@ public class RecordingHandler extends Handler {
         sampleRate = millis;
     }
 
-    /**
-     * This task insert a given Sample in the database
-     */
-    private class InsertSampleTask extends AsyncTask<Sample, Void, Void> {
-        @Override
-        protected void onPreExecute() {
-            // Increment the number of sample task running
-            sampleTaskCount++;
-        }
-
-        @Override
-        protected Void doInBackground(Sample... params) {
-            // Get the passed parameters
-            Sample parameters = params[0];
-            // Insert the measure in the database
-            try {
-                // Acquire access to database
-                DBSemaphore.ref.acquire();
-                // Insert the sample data
-                connector.insertMeasure(parameters.measureContext,
-                        parameters.data, parameters.latitude,
-                        parameters.longitude);
-                // Release access
-                DBSemaphore.ref.release();
-                Log.d("SampleTask",
-                        "Insertion effectuée :\n" + parameters.data.toString());
-            } catch (DataBaseException e) {
-                Log.e("SampleTask", "DataBaseException", e);
-            } catch (CollectMeasureException e) {
-                Log.e("SampleTask", "CollectMeasureException", e);
-            } catch (InterruptedException e) {
-                Log.e("SampleTaks", "InterruptedException", e);
-            }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void result) {
-            // The task is over
-            sampleTaskCount--;
-            // Should we stop the recording ?
-            if (!isRecording) {
-                // Finish recording
-                finishRecording();
-            }
-        }
-    }
-
     /**
      * This object defines the action to be performed when the database has been
      * converted and it should be uploaded
@@ -359,45 +503,21 @@ public class RecordingHandler extends Handler {
         }
 
         @Override
-        public void onFileReady(ByteArrayOutputStream file) {
-
-            // If some data were converted
-            if (file != null) {
-                // generating file name with timestamp to preserve unicity
-                String name = "file" + System.currentTimeMillis();
-                // adding file to archive
-                try {
-                    addFileToArchive(name, file);
-                } catch (IOException e) {
-                    Log.e(RecordingHandler.class.toString(),
-                            "Add to archive failed", e);
-                }
-            }
-
-            // The possibly existing archive file
-            File archive = new File(recordingService.getFilesDir(),
-                    QualOutdoorRecorderApp.ARCHIVE_NAME);
+        public void onFileReady(boolean written) {
+            // The converted data, if any, have been added to the archive
 
-            // If there is no data to send
-            if (!archive.exists()) {
-                // No data waiting to be uploaded : toast it
-                Toast.makeText(recordingService,
-                        R.string.error_no_data_to_upload, Toast.LENGTH_SHORT)
-                        .show();
-                // Don't upload anything
-                return;
-            }
-            // Else continue...
+            // The export task is over
+            uploadTaskCount--;
+            // Check if we should close the database
+            checkCloseDatabase();
 
             // Creation of a sending CallBack : called when one sending is
-            // done : if file had not been send it is stored into app file
-            // systeme
+            // done : if file had not been send it stays in the upload queue
             SendCompleteListener sendingCallback = new SendCompleteListener() {
                 @Override
                 public void onTaskCompleted(String protocol, File fileSent,
                         boolean success) {
-                    if (!success) {// if files can't be send, it's stored
-                                   // into internal storage:
+                    if (!success) {
                         Toast.makeText(recordingService,
                                 R.string.error_sending_file, Toast.LENGTH_SHORT)
                                 .show();
@@ -405,122 +525,19 @@ public class RecordingHandler extends Handler {
                         Toast.makeText(recordingService,
                                 R.string.information_upload_succeeded,
                                 Toast.LENGTH_SHORT).show();
-                        // archive is deleted
-                        fileSent.delete();
                     }
-
-                    // The upload task is over
-                    uploadTaskCount--;
-                    // Check if we should close the database
-                    checkCloseDatabase();
                 }
             };
 
-            // sending archive
-            if (this.chosenProtocol == QualOutdoorRecorderApp.UPLOAD_PROTOCOL_HTTP) {
-                // setting server URL : normaly feching if from constant
-                // Class
-                String url = QualOutdoorRecorderApp.URL_SERVER_HTTP;
-                // creation and execution of a DataSendingManager : printing
-                // widget has to be resolved
-                DataSendingManager managerHTTP = new DataSendingManager(url,
-                        archive, "http", sendingCallback);
-                managerHTTP.execute();
-            } else if (this.chosenProtocol == QualOutdoorRecorderApp.UPLOAD_PROTOCOL_FTP) {
-                // setting server URL : normaly feching if from constant
-                // Class
-                String url = QualOutdoorRecorderApp.URL_SERVER_FTP;
-                // creation and execution of a DataSendingManager : printing
-                // widget has to be resolved
-                DataSendingManager managerFTP = new DataSendingManager(url,
-                        archive, "ftp", sendingCallback);
-                managerFTP.execute();
-
-            }
-        }
-    }
-
-    private static final byte[] BUFFER = new byte[4096 * 1024];
-
-    /**
-     * Add file into the archive destined for the pending uploads
-     * 
-     * @param fileName
-     *            The name of the file to add
-     * @param fileContent
-     *            The content of the file to add
-     * @throws IOException
-     */
-    public void addFileToArchive(String fileName,
-            ByteArrayOutputStream fileContent) throws IOException {
-        // The possibly already existing zip file
-        File archiveFile1 = new File(recordingService.getFilesDir(),
-                QualOutdoorRecorderApp.ARCHIVE_NAME);
-
-        // The new temporary zip file
-        File archiveFile2 = new File(recordingService.getFilesDir(),
-                QualOutdoorRecorderApp.ARCHIVE_NAME + "2");
-
-        // For reading the entries of the existing archive
-        ZipFile archive1 = null;
-        // For writing into the temporary archive
-        ZipOutputStream zos2 = null;
-
-        try {
-            // Open a stream into the temporary archive
-            FileOutputStream archiveStream2;
-            archiveStream2 = new FileOutputStream(archiveFile2);
-            zos2 = new ZipOutputStream(new BufferedOutputStream(archiveStream2));
-
-            // Check if there was actually an existing zip file
-            if (archiveFile1.exists()) {
-                // Open a ZipFile from the existing archive
-                archive1 = new ZipFile(archiveFile1);
-
-                // Get the entries in the existing zip file
-                Enumeration<? extends ZipEntry> previousEntries = archive1
-                        .entries();
-                // Copy every previous entry into the new zip file
-                while (previousEntries.hasMoreElements()) {
-                    ZipEntry entry = previousEntries.nextElement();
-                    zos2.putNextEntry(entry);
-                    // If not a directory, copy the content
-                    if (!entry.isDirectory()) {
-                        // Copy the entry input stream into our output stream
-                        InputStream inputStream1 = archive1
-                                .getInputStream(entry);
-                        int bytesRead;
-                        while ((bytesRead = inputStream1.read(BUFFER)) != -1) {
-                            zos2.write(BUFFER, 0, bytesRead);
-                        }
-                    }
-                    zos2.closeEntry();
-                }
+            // sending the archive and the files left by the previous uploads
+            int count = uploadScheduler.uploadNow(this.chosenProtocol,
+                    sendingCallback);
+            if (count == 0) {
+                // No data waiting to be uploaded : toast it
+                Toast.makeText(recordingService,
+                        R.string.error_no_data_to_upload, Toast.LENGTH_SHORT)
+                        .show();
             }
-
-            // Add our new content
-            String filename = fileName;
-            byte[] bytes = (fileContent.toByteArray());
-            ZipEntry entry = new ZipEntry(filename);
-            zos2.putNextEntry(entry);
-            zos2.write(bytes);
-            zos2.closeEntry();
-
-        } catch (IOException exc) {
-            Log.e("RecordingHandler", "addFileToArchive", exc);
-        } finally {
-            // Close the open files
-            if (archive1 != null)
-                archive1.close();
-            if (zos2 != null)
-                zos2.close();
         }
-
-        // Delete the previous archive
-        Log.d("RecordingHandler", "Delete " + archiveFile1.delete());
-        // Rename the new zip file to replace the first zip file
-        Log.d("RecordingHandler",
-                "Rename " + archiveFile2.renameTo(archiveFile1));
-
     }
 }
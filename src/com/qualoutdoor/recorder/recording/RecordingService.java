@@ -25,6 +25,8 @@ import com.qualoutdoor.recorder.R;
 import com.qualoutdoor.recorder.IServiceListener;
 import com.qualoutdoor.recorder.ServiceProvider.ServiceNotBoundException;
 import com.qualoutdoor.recorder.location.LocationService;
+import com.qualoutdoor.recorder.network.ThroughputTester;
+import com.qualoutdoor.recorder.network.UploadThrottle;
 import com.qualoutdoor.recorder.notifications.NotificationCenter;
 import com.qualoutdoor.recorder.persistent.MeasureContext;
 import com.qualoutdoor.recorder.persistent.Sample;
@@ -78,6 +80,13 @@ public class RecordingService extends Service implements LocationListener {
                         .getInteger(R.integer.default_sampling_rate));
 
                 setSamplingRate(newSampleRate);
+            } else if (key
+                    .equals(getString(R.string.pref_key_throughput_server))) {
+                // Measure against the new server, from now on
+                throughputTester.stop();
+                throughputTester = createThroughputTester(prefs);
+                if (isRecording())
+                    startThroughputTests();
             }
         };
     };
@@ -95,6 +104,8 @@ public class RecordingService extends Service implements LocationListener {
 
     /** The recording handler */
     private RecordingHandler handler;
+    /** The tester measuring the download and upload throughputs */
+    private ThroughputTester throughputTester;
 
     @Override
     public void onCreate() {
@@ -115,6 +126,13 @@ public class RecordingService extends Service implements LocationListener {
         // Initialize the measure context
         measureContext = new MeasureContext();
 
+        // Slow down the uploads during the throughput measurements
+        UploadThrottle.setThrottledRate(getResources().getInteger(
+                R.integer.upload_throttled_rate));
+
+        // Initialize the throughput tester
+        throughputTester = createThroughputTester(prefs);
+
         // Initialize the RecordingHandler
         handler = new RecordingHandler(this, sampleRate);
 
@@ -178,6 +196,10 @@ public class RecordingService extends Service implements LocationListener {
             locServiceConnection.getService().removeLocationUpdate(this);
         } catch (ServiceNotBoundException e) {}
 
+        // Stop the periodic exports of the handler
+        handler.release();
+        // Stop the throughput measures
+        stopThroughputTests();
         // Unbind from the TelephonyService if needed
         telServiceConnection.unbindService();
         // Unbind from the LocationService if needed
@@ -294,6 +316,15 @@ public class RecordingService extends Service implements LocationListener {
         SparseArray<String> dataList = new SparseArray<String>(metrics.size());
 
         // Fill the fields
+        fillFields(dataList, primaryCell);
+
+        // Return the newly created Sample object
+        return new Sample(measureContext.clone(), dataList,
+                location.getLatitude(), location.getLongitude());
+    }
+
+    /** Fill the data array with the measures of the sampled metrics */
+    private void fillFields(SparseArray<String> dataList, ICellInfo primaryCell) {
         for (Integer field : metrics) {
             String value = "";
             switch (field) {
@@ -308,19 +339,66 @@ public class RecordingService extends Service implements LocationListener {
                 value += primaryCell.getSignalStrength().getDbm();
                 break;
             case QualOutdoorRecorderApp.FIELD_DOWNLOAD:
-                value = "TODO";
+                // The last measure, if not sampled yet
+                ThroughputTester.Result download = throughputTester
+                        .takeDownload();
+                if (download != null)
+                    value += download;
                 break;
             case QualOutdoorRecorderApp.FIELD_UPLOAD:
-                value = "TODO";
+                ThroughputTester.Result upload = throughputTester.takeUpload();
+                if (upload != null)
+                    value += upload;
                 break;
             }
             // Insert in the database
             dataList.put(field, value);
         }
+    }
 
-        // Return the newly created Sample object
-        return new Sample(measureContext.clone(), dataList,
-                location.getLatitude(), location.getLongitude());
+    /**
+     * Start measuring the throughputs in the background, if the download or
+     * upload metric is sampled
+     */
+    void startThroughputTests() {
+        boolean download = metrics
+                .contains(QualOutdoorRecorderApp.FIELD_DOWNLOAD);
+        boolean upload = metrics.contains(QualOutdoorRecorderApp.FIELD_UPLOAD);
+        if (download || upload)
+            throughputTester.start(download, upload);
+    }
+
+    /** Stop measuring the throughputs */
+    void stopThroughputTests() {
+        throughputTester.stop();
+    }
+
+    /**
+     * Create the throughput tester of the test server preference, given as
+     * host:port
+     */
+    private ThroughputTester createThroughputTester(SharedPreferences prefs) {
+        Resources res = getResources();
+        String server = prefs.getString(
+                getString(R.string.pref_key_throughput_server),
+                getString(R.string.pref_default_throughput_server));
+        String host = server;
+        int port = 80;
+        int colon = server.lastIndexOf(':');
+        if (colon >= 0) {
+            host = server.substring(0, colon);
+            try {
+                port = Integer.parseInt(server.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                Log.e("RecordingService", "Bad throughput server " + server);
+            }
+        }
+        return new ThroughputTester(host, port,
+                getString(R.string.throughput_download_path),
+                getString(R.string.throughput_upload_path),
+                res.getInteger(R.integer.throughput_test_duration),
+                res.getInteger(R.integer.throughput_test_interval),
+                res.getInteger(R.integer.throughput_latency_probes));
     }
 
     /**
@@ -26,6 +26,8 @@ public class StatisticsPagerAdapter extends FragmentPagerAdapter {
     private static final int WEB_VIEW = 0;
     /** Position of the neighbors chart fragment */
     private static final int NEIGHBORS = 1;
+    /** Position of the upload diagnostics fragment */
+    private static final int UPLOADS = 2;
 
     /** The list of the fragment titles */
     /*
@@ -33,7 +35,7 @@ public class StatisticsPagerAdapter extends FragmentPagerAdapter {
      * example in the HomePagerAdapter class
      */
     private CharSequence[] fragmentTitles = {
-            "Signal Strength", "Neighbor Cells"
+            "Signal Strength", "Neighbor Cells", "Uploads"
     };
 
     public StatisticsPagerAdapter(FragmentManager fm) {
@@ -57,6 +59,9 @@ public class StatisticsPagerAdapter extends FragmentPagerAdapter {
         case NEIGHBORS:
             result = new NeighborsChartFragment();
             break;
+        case UPLOADS:
+            result = new UploadDiagnosticsFragment();
+            break;
         }
 
         // Attach the arguments
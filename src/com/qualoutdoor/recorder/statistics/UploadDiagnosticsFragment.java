@@ -0,0 +1,167 @@
+package com.qualoutdoor.recorder.statistics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v4.app.Fragment;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.qualoutdoor.recorder.R;
+import com.qualoutdoor.recorder.network.TransferStats;
+import com.qualoutdoor.recorder.network.UploadMonitor;
+
+/**
+ * This fragment displays the measures of the last uploads kept by the
+ * UploadMonitor : a summary, then each transfer, the last one first. The
+ * measures can be exported as a CSV file.
+ * 
+ * @author Gaborit Nicolas
+ */
+public class UploadDiagnosticsFragment extends Fragment {
+
+    /** Time in ms between two refreshes of the displayed measures */
+    private static final long REFRESH_INTERVAL = 2000;
+    /** Name of the exported file, in the application external files */
+    private static final String EXPORT_FILE_NAME = "upload_diagnostics.csv";
+
+    /** The summary of the measures */
+    private TextView summaryView;
+    /** The adapter of the transfer list */
+    private ArrayAdapter<String> transfersAdapter;
+
+    /** The handler refreshing the measures */
+    private final Handler handler = new Handler();
+    /** Refresh the measures, then schedule the next refresh */
+    private final Runnable refreshTask = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            handler.postDelayed(this, REFRESH_INTERVAL);
+        }
+    };
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container,
+            Bundle savedInstanceState) {
+        View view = inflater.inflate(R.layout.fragment_upload_diagnostics,
+                container, false);
+        summaryView = (TextView) view.findViewById(R.id.upload_summary);
+        transfersAdapter = new ArrayAdapter<String>(getActivity(),
+                android.R.layout.simple_list_item_1);
+        ((ListView) view.findViewById(R.id.upload_transfers))
+                .setAdapter(transfersAdapter);
+        ((Button) view.findViewById(R.id.upload_export))
+                .setOnClickListener(new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        export();
+                    }
+                });
+        return view;
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        handler.post(refreshTask);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refreshTask);
+    }
+
+    /** Display the measures kept by the UploadMonitor */
+    private void refresh() {
+        List<TransferStats> transfers = UploadMonitor.getTransfers();
+        int failures = 0;
+        int retries = 0;
+        long bytes = 0;
+        long duration = 0;
+        long connectTime = 0;
+        int connectCount = 0;
+        long firstByteTime = 0;
+        int firstByteCount = 0;
+        transfersAdapter.setNotifyOnChange(false);
+        transfersAdapter.clear();
+        // The last transfer first
+        for (int i = transfers.size() - 1; i >= 0; i--) {
+            TransferStats stats = transfers.get(i);
+            if (stats.isSuccess()) {
+                // The mean throughput is the one of the files sent
+                bytes += stats.getBytesSent();
+                duration += stats.getDuration();
+            } else {
+                failures++;
+            }
+            retries += stats.getRetries();
+            if (stats.getConnectTime() >= 0) {
+                connectTime += stats.getConnectTime();
+                connectCount++;
+            }
+            if (stats.getTimeToFirstByte() >= 0) {
+                firstByteTime += stats.getTimeToFirstByte();
+                firstByteCount++;
+            }
+            transfersAdapter.add(getString(
+                    R.string.upload_diagnostics_transfer,
+                    stats.getStartTime(),
+                    stats.getProtocol(),
+                    stats.getFileName(),
+                    getString(stats.isSuccess() ? R.string.upload_diagnostics_success
+                            : R.string.upload_diagnostics_failure),
+                    stats.getBytesSent() / 1024, stats.getDuration(),
+                    stats.getThroughput() / 1024, stats.getStatus(),
+                    stats.getRetries()));
+        }
+        transfersAdapter.notifyDataSetChanged();
+        summaryView.setText(getString(R.string.upload_diagnostics_summary,
+                transfers.size(), failures,
+                duration == 0 ? 0 : bytes * 1000 / duration / 1024,
+                connectCount == 0 ? 0 : connectTime / connectCount,
+                firstByteCount == 0 ? 0 : firstByteTime / firstByteCount,
+                retries));
+    }
+
+    /** Write the measures into the CSV file, and tell where it is */
+    private void export() {
+        File directory = getActivity().getExternalFilesDir(null);
+        if (directory == null)
+            // No external storage
+            directory = getActivity().getFilesDir();
+        File file = new File(directory, EXPORT_FILE_NAME);
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                    "UTF-8");
+            try {
+                UploadMonitor.writeCsv(out);
+            } finally {
+                out.close();
+            }
+            Toast.makeText(getActivity(),
+                    getString(R.string.information_upload_diagnostics_exported,
+                            file.getPath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e("UploadDiagnosticsFragment", "Can't export", e);
+            Toast.makeText(getActivity(),
+                    R.string.error_upload_diagnostics_export,
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+package com.qualoutdoor.recorder.telephony;
+
+import org.json.JSONObject;
+
+import android.os.Build;
+import android.telephony.CellIdentityGsm;
+import android.telephony.CellIdentityLte;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoCdma;
+import android.telephony.CellInfoGsm;
+import android.telephony.CellInfoLte;
+import android.telephony.CellSignalStrength;
+
+/**
+ * The mutable cell into which an Android CellInfo is parsed before a
+ * CustomCellInfo is built from it. It is its own signal strength.
+ *
+ * The CellInfoParser pools its builders and fills them again at each refresh,
+ * on the refresh thread : a builder is never given to the listeners, they only
+ * get the immutable CustomCellInfo built from it.
+ *
+ * @author Gaborit Nicolas
+ */
+class CellInfoBuilder implements ICellInfo, ISignalStrength {
+
+    /* *************************************
+     * The cell infos, forgotten when the builder is filled again. The unknown
+     * values are Integer.MAX_VALUE (Long.MAX_VALUE for the timestamp).
+     */
+    /** The cell type code */
+    int cellType = ICellInfo.CELL_UNKNOWN;
+    /** The timestamp value */
+    long timeStamp = Long.MAX_VALUE;
+    /** Whether the cell is registered */
+    boolean registered = false;
+    /** The signal strength dBm value */
+    int dbm = ISignalStrength.UNKNOWN_DBM;
+    /** The signal strength asu level */
+    int asu = ISignalStrength.UNKNOWN_ASU;
+    /** The Cell ID */
+    int cid = Integer.MAX_VALUE;
+    /** The Location Area Code (GSM, WCDMA) */
+    int lac = Integer.MAX_VALUE;
+    /** The Mobile Country Code */
+    int mcc = Integer.MAX_VALUE;
+    /** The Mobile Network Code */
+    int mnc = Integer.MAX_VALUE;
+    /** The Primary Scrambling Code (WCDMA) */
+    int psc = Integer.MAX_VALUE;
+    /** The Physical Cell ID (LTE) */
+    int pci = Integer.MAX_VALUE;
+    /** The Tracking Area Code (LTE) */
+    int tac = Integer.MAX_VALUE;
+    /** The Timing Advance (LTE) */
+    int ta = Integer.MAX_VALUE;
+
+    /**
+     * Forget the values of the builder and fill it again from an Android
+     * CellInfo, trying to detect its actual type (CellInfoLte, CellInfoGsm,
+     * CellInfoWcdma or CellInfoCdma). Nothing is allocated.
+     *
+     * @param cell
+     *            The CellInfo to inspect thoroughly
+     * @return This builder
+     */
+    CellInfoBuilder fill(CellInfo cell) {
+        clear();
+        // If we can parse Wcdma cells, try the more recent parser first
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && CustomCellInfoWcdma.fillWcdma(this, cell))
+            return this;
+        if (cell instanceof CellInfoCdma) {
+            fillCdma((CellInfoCdma) cell);
+        } else if (cell instanceof CellInfoGsm) {
+            fillGsm((CellInfoGsm) cell);
+        } else if (cell instanceof CellInfoLte) {
+            fillLte((CellInfoLte) cell);
+        } else {
+            // We only have a generic CellInfo...
+            fillGeneric(cell);
+        }
+        return this;
+    }
+
+    /** Forget all the values */
+    void clear() {
+        cellType = ICellInfo.CELL_UNKNOWN;
+        timeStamp = Long.MAX_VALUE;
+        registered = false;
+        dbm = ISignalStrength.UNKNOWN_DBM;
+        asu = ISignalStrength.UNKNOWN_ASU;
+        cid = lac = mcc = mnc = psc = pci = tac = ta = Integer.MAX_VALUE;
+    }
+
+    /** Build a new immutable CustomCellInfo holding the values */
+    CustomCellInfo build() {
+        return new CustomCellInfo(this);
+    }
+
+    /** Fill the generic fields from the CellInfo class */
+    void fillGeneric(CellInfo cell) {
+        // Timestamp the data
+        timeStamp = cell.getTimeStamp();
+        // Indicate if this cell is registered
+        registered = cell.isRegistered();
+    }
+
+    /** Fill the signal strength values */
+    void fillSignalStrength(CellSignalStrength cellSS) {
+        dbm = cellSS.getDbm();
+        asu = cellSS.getAsuLevel();
+    }
+
+    /** Fill the fields from a CellInfoGsm */
+    private void fillGsm(CellInfoGsm cell) {
+        // Initialize the the generic fields from the CellInfo class
+        fillGeneric(cell);
+        // We have a GSM type of cell
+        cellType = ICellInfo.CELL_GSM;
+        // Initialize Signal Strength
+        fillSignalStrength(cell.getCellSignalStrength());
+        // Initialize Cell identity
+        {
+            // Get the cell identity
+            CellIdentityGsm cellId = cell.getCellIdentity();
+            // Fill the available fields
+            cid = cellId.getCid();
+            lac = cellId.getLac();
+            mcc = cellId.getMcc();
+            mnc = cellId.getMnc();
+        }
+    }
+
+    /** Fill the fields from a CellInfoLte */
+    private void fillLte(CellInfoLte cell) {
+        // Initialize the the generic fields from the CellInfo class
+        fillGeneric(cell);
+        // We have a LTE type of cell
+        cellType = ICellInfo.CELL_LTE;
+        // Initialize Signal Strength
+        fillSignalStrength(cell.getCellSignalStrength());
+        // Initialize Cell identity
+        {
+            // Get the cell identity
+            CellIdentityLte cellId = cell.getCellIdentity();
+            // Fill the available fields
+            cid = cellId.getCi();
+            mcc = cellId.getMcc();
+            mnc = cellId.getMnc();
+            tac = cellId.getTac();
+            pci = cellId.getPci();
+            ta = cell.getCellSignalStrength().getTimingAdvance();
+        }
+    }
+
+    /** Fill the fields from a CellInfoCdma */
+    private void fillCdma(CellInfoCdma cell) {
+        // Initialize the the generic fields from the CellInfo class
+        fillGeneric(cell);
+        // We have a CDMA type of cell
+        cellType = ICellInfo.CELL_CDMA;
+        // Initialize Signal Strength
+        fillSignalStrength(cell.getCellSignalStrength());
+        // TODO The CDMA cells are actually very different from the others...
+    }
+
+    @Override
+    public JSONObject toJSON() {
+        return build().toJSON();
+    }
+
+    @Override
+    public int getCellType() {
+        return cellType;
+    }
+
+    @Override
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+
+    @Override
+    public boolean isRegistered() {
+        return registered;
+    }
+
+    @Override
+    public ISignalStrength getSignalStrength() {
+        return this;
+    }
+
+    @Override
+    public int getDbm() {
+        return dbm;
+    }
+
+    @Override
+    public int getAsuLevel() {
+        return asu;
+    }
+
+    @Override
+    public int getCid() {
+        return cid;
+    }
+
+    @Override
+    public int getLac() {
+        return lac;
+    }
+
+    @Override
+    public int getMcc() {
+        return mcc;
+    }
+
+    @Override
+    public int getMnc() {
+        return mnc;
+    }
+
+    @Override
+    public int getPsc() {
+        return psc;
+    }
+
+    @Override
+    public int getPci() {
+        return pci;
+    }
+
+    @Override
+    public int getTac() {
+        return tac;
+    }
+
+    @Override
+    public int getTimingAdvance() {
+        return ta;
+    }
+
+}
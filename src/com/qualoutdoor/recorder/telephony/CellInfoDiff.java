@@ -0,0 +1,95 @@
+package com.qualoutdoor.recorder.telephony;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The differences between the cells of two refreshes of the TelephonyService
+ * : the cells added, removed, or whose values changed. A cell is identified by
+ * its type, CID, PCI and PSC ; its timestamp is not a change.
+ *
+ * The TelephonyService computes a diff when the cells of a refresh changed,
+ * and only notifies the cell info listeners then (see
+ * TelephonyListener.onCellInfoDiff()). A diff is immutable, as its cells.
+ *
+ * @author Gaborit Nicolas
+ */
+public class CellInfoDiff {
+
+    /** The cells that were not visible before */
+    private final List<ICellInfo> added;
+    /** The cells that are no longer visible, as they were */
+    private final List<ICellInfo> removed;
+    /** The cells still visible whose values changed, as they are now */
+    private final List<ICellInfo> changed;
+
+    /**
+     * Create a diff from the lists of cells, which must not be modified
+     * afterwards
+     *
+     * @param added
+     *            The cells that were not visible before
+     * @param removed
+     *            The cells that are no longer visible
+     * @param changed
+     *            The cells still visible whose values changed
+     */
+    CellInfoDiff(List<ICellInfo> added, List<ICellInfo> removed,
+            List<ICellInfo> changed) {
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+        this.changed = Collections.unmodifiableList(changed);
+    }
+
+    /** Return the read only list of the cells that were not visible before */
+    public List<ICellInfo> getAdded() {
+        return added;
+    }
+
+    /** Return the read only list of the cells that are no longer visible */
+    public List<ICellInfo> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Return the read only list of the cells still visible whose values
+     * changed
+     */
+    public List<ICellInfo> getChanged() {
+        return changed;
+    }
+
+    /** Indicate if the cells are the same as before */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    /**
+     * Indicate if two cell infos describe the same cell : same type, CID, PCI
+     * and PSC
+     */
+    public static boolean isSameCell(ICellInfo a, ICellInfo b) {
+        return a.getCellType() == b.getCellType() && a.getCid() == b.getCid()
+                && a.getPci() == b.getPci() && a.getPsc() == b.getPsc();
+    }
+
+    /**
+     * Indicate if two cell infos of the same cell have the same values, apart
+     * from their timestamps
+     */
+    public static boolean hasSameValues(ICellInfo a, ICellInfo b) {
+        return a.isRegistered() == b.isRegistered()
+                && a.getLac() == b.getLac() && a.getMcc() == b.getMcc()
+                && a.getMnc() == b.getMnc() && a.getTac() == b.getTac()
+                && a.getTimingAdvance() == b.getTimingAdvance()
+                && isSameSignalStrength(a.getSignalStrength(),
+                        b.getSignalStrength());
+    }
+
+    /** Indicate if two signal strengths have the same values */
+    public static boolean isSameSignalStrength(ISignalStrength a,
+            ISignalStrength b) {
+        return a.getDbm() == b.getDbm() && a.getAsuLevel() == b.getAsuLevel();
+    }
+
+}
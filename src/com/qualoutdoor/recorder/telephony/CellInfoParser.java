@@ -0,0 +1,154 @@
+package com.qualoutdoor.recorder.telephony;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.telephony.CellInfo;
+
+/**
+ * Parse the CellInfo lists of the refreshes into cell snapshots, on the
+ * refresh thread of the TelephonyService.
+ *
+ * The cells are parsed into pooled builders, then compared with the last
+ * snapshot : a refresh that changes nothing does not allocate anything. When
+ * the cells changed, a new snapshot is built, which keeps the cells that did
+ * not change and only builds new cells for the others. The snapshots and their
+ * cells are immutable, the listeners are never given a pooled object.
+ *
+ * @author Gaborit Nicolas
+ */
+class CellInfoParser {
+
+    /** The builders, filled again at each refresh, some of them unused */
+    private final ArrayList<CellInfoBuilder> builders;
+    /**
+     * The index of the last snapshot cell matched with each builder, -1 if
+     * none
+     */
+    private int[] matches;
+    /** The cells of the last snapshot matched with a builder */
+    private boolean[] matched;
+    /** The last snapshot built */
+    private CellSnapshot snapshot = CellSnapshot.EMPTY;
+
+    /**
+     * Create a parser
+     *
+     * @param capacity
+     *            The expected number of cells
+     */
+    CellInfoParser(int capacity) {
+        builders = new ArrayList<CellInfoBuilder>(capacity);
+        matches = new int[capacity];
+        matched = new boolean[capacity];
+    }
+
+    /** Return the last snapshot built */
+    CellSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Parse a CellInfo list and build a new snapshot if the cells changed
+     *
+     * @param cellInfos
+     *            The CellInfo list to parse
+     * @return The new snapshot, or null if the cells did not change
+     */
+    CellSnapshot parse(List<CellInfo> cellInfos) {
+        // Indexed loop, an iterator would be allocated
+        int count = cellInfos.size();
+        for (int i = 0; i < count; i++) {
+            getBuilder(i).fill(cellInfos.get(i));
+        }
+        return update(count);
+    }
+
+    /**
+     * Return the builder of the given index, created if needed
+     *
+     * @param index
+     *            The index of the cell in the CellInfo list
+     */
+    CellInfoBuilder getBuilder(int index) {
+        while (builders.size() <= index)
+            // A new cell is needed
+            builders.add(new CellInfoBuilder());
+        return builders.get(index);
+    }
+
+    /**
+     * Compare the first builders with the cells of the last snapshot, and
+     * build a new snapshot if they changed
+     *
+     * @param count
+     *            The number of builders filled
+     * @return The new snapshot, or null if the cells did not change
+     */
+    CellSnapshot update(int count) {
+        List<ICellInfo> oldCells = snapshot.getCells();
+        int oldCount = oldCells.size();
+        if (matches.length < count)
+            matches = new int[count];
+        if (matched.length < oldCount)
+            matched = new boolean[oldCount];
+        for (int j = 0; j < oldCount; j++) {
+            matched[j] = false;
+        }
+        // Match each builder with the same cell among the old ones
+        boolean changed = count != oldCount;
+        for (int i = 0; i < count; i++) {
+            CellInfoBuilder builder = builders.get(i);
+            int j = 0;
+            while (j < oldCount
+                    && (matched[j] || !CellInfoDiff.isSameCell(
+                            oldCells.get(j), builder)))
+                j++;
+            if (j == oldCount) {
+                matches[i] = -1;
+                changed = true;
+            } else {
+                matches[i] = j;
+                matched[j] = true;
+                if (!CellInfoDiff.hasSameValues(oldCells.get(j), builder))
+                    changed = true;
+            }
+        }
+        if (!changed)
+            return null;
+
+        // Build the new snapshot, keeping the cells that did not change
+        ArrayList<ICellInfo> cells = new ArrayList<ICellInfo>(count);
+        ArrayList<ICellInfo> addedCells = new ArrayList<ICellInfo>();
+        ArrayList<ICellInfo> removedCells = new ArrayList<ICellInfo>();
+        ArrayList<ICellInfo> changedCells = new ArrayList<ICellInfo>();
+        ICellInfo registeredCell = null;
+        for (int i = 0; i < count; i++) {
+            CellInfoBuilder builder = builders.get(i);
+            int j = matches[i];
+            ICellInfo cell;
+            if (j < 0) {
+                cell = builder.build();
+                addedCells.add(cell);
+            } else if (CellInfoDiff.hasSameValues(oldCells.get(j), builder)) {
+                cell = oldCells.get(j);
+            } else {
+                cell = builder.build();
+                changedCells.add(cell);
+            }
+            cells.add(cell);
+            if (registeredCell == null && cell.isRegistered())
+                registeredCell = cell;
+        }
+        for (int j = 0; j < oldCount; j++) {
+            if (!matched[j])
+                removedCells.add(oldCells.get(j));
+        }
+        snapshot = new CellSnapshot(Collections.unmodifiableList(cells),
+                registeredCell, new CellInfoDiff(addedCells, removedCells,
+                        changedCells), snapshot.getSequence() + 1);
+        return snapshot;
+    }
+
+}
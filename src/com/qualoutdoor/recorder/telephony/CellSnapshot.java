@@ -0,0 +1,83 @@
+package com.qualoutdoor.recorder.telephony;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The cells visible at a refresh of the TelephonyService, immutable. A
+ * snapshot is built by the CellInfoParser on the refresh thread when the cells
+ * changed, then published to the main thread : the listeners may keep its
+ * cells and its diff.
+ *
+ * The snapshots are numbered in sequence : the diff of a snapshot is relative
+ * to the snapshot built just before it.
+ *
+ * @author Gaborit Nicolas
+ */
+class CellSnapshot {
+
+    /** The snapshot without any cell, before the first refresh */
+    static final CellSnapshot EMPTY = new CellSnapshot(
+            Collections.<ICellInfo> emptyList(), null, new CellInfoDiff(
+                    Collections.<ICellInfo> emptyList(),
+                    Collections.<ICellInfo> emptyList(),
+                    Collections.<ICellInfo> emptyList()), 0);
+
+    /** The read only list of the cells */
+    private final List<ICellInfo> cells;
+    /** The first registered cell, or null */
+    private final ICellInfo registeredCell;
+    /** The differences with the previous snapshot */
+    private final CellInfoDiff diff;
+    /** The number of the snapshot in the sequence */
+    private final long sequence;
+
+    /**
+     * Create a snapshot
+     *
+     * @param cells
+     *            The read only list of the cells
+     * @param registeredCell
+     *            The first registered cell, or null if there is none
+     * @param diff
+     *            The differences with the previous snapshot
+     * @param sequence
+     *            The number of the snapshot in the sequence
+     */
+    CellSnapshot(List<ICellInfo> cells, ICellInfo registeredCell,
+            CellInfoDiff diff, long sequence) {
+        this.cells = cells;
+        this.registeredCell = registeredCell;
+        this.diff = diff;
+        this.sequence = sequence;
+    }
+
+    /** Return the read only list of the cells */
+    List<ICellInfo> getCells() {
+        return cells;
+    }
+
+    /** Return the first registered cell, or null if there is none */
+    ICellInfo getRegisteredCell() {
+        return registeredCell;
+    }
+
+    /** Return the differences with the previous snapshot */
+    CellInfoDiff getDiff() {
+        return diff;
+    }
+
+    /** Return the number of the snapshot in the sequence */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Indicate if this snapshot was built just after the given one, its diff
+     * is then relative to it
+     */
+    boolean follows(CellSnapshot previous) {
+        return sequence == previous.sequence + 1;
+    }
+
+}
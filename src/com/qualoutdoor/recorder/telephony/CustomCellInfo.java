@@ -9,18 +9,21 @@ import com.qualoutdoor.recorder.QualOutdoorRecorderApp;
 import com.qualoutdoor.recorder.R;
 import com.qualoutdoor.recorder.Utils;
 
-import android.os.Build;
 import android.os.Bundle;
-import android.telephony.CellIdentityGsm;
-import android.telephony.CellIdentityLte;
 import android.telephony.CellInfo;
 import android.telephony.CellInfoCdma;
 import android.telephony.CellInfoGsm;
 import android.telephony.CellInfoLte;
-import android.telephony.CellSignalStrength;
 
 /**
- * Implementation of ICellInfo using a Bundle to store data.
+ * Implementation of ICellInfo, immutable. The values are held in plain final
+ * fields, and the signal strength is parsed once : the getters are called many
+ * times per refresh by the views. A Bundle is only built when the cell is
+ * passed between components or saved (see getBundle()).
+ * 
+ * The TelephonyService parses the cells into pooled builders, and only builds
+ * new cells for the cells that changed (see CellInfoParser) : the listeners
+ * may keep the cells they are given.
  * 
  * The most convenient way to construct a CustomCellInfo is to use the static
  * method `buildFromCellInfo(CellInfo cell)` which take as argument a CellInfo
@@ -31,13 +34,6 @@ import android.telephony.CellSignalStrength;
  */
 public class CustomCellInfo implements ICellInfo {
 
-    /**
-     * This bundle hold all the cell infos. We are using bundles because they
-     * let us provide partial informations. Plus they are easily passed between
-     * activities.
-     */
-    protected Bundle infoBundle;
-
     /** The name of the cells */
     private static final String[] radioNames = QualOutdoorRecorderApp
             .getAppResources().getStringArray(R.array.radio_type_name);
@@ -73,41 +69,86 @@ public class CustomCellInfo implements ICellInfo {
     /** Store the Timing Advance (LTE). Holds an int. */
     protected static final String TA = "ta";
 
+    /* *************************************
+     * The cell infos, set by the constructors only. The unknown values are
+     * Integer.MAX_VALUE (Long.MAX_VALUE for the timestamp).
+     */
+    /** The cell type code */
+    private final int cellType;
+    /** The timestamp value */
+    private final long timeStamp;
+    /** Whether the cell is registered */
+    private final boolean registered;
+    /** The signal strength, parsed once */
+    private final CustomSignalStrength signalStrength;
+    /** The Cell ID */
+    private final int cid;
+    /** The Location Area Code (GSM, WCDMA) */
+    private final int lac;
+    /** The Mobile Country Code */
+    private final int mcc;
+    /** The Mobile Network Code */
+    private final int mnc;
+    /** The Primary Scrambling Code (WCDMA) */
+    private final int psc;
+    /** The Physical Cell ID (LTE) */
+    private final int pci;
+    /** The Tracking Area Code (LTE) */
+    private final int tac;
+    /** The Timing Advance (LTE) */
+    private final int ta;
+
     /** Create an empty CustomCellInfo */
     public CustomCellInfo() {
-        // Initialize a new empty bundle
-        infoBundle = new Bundle();
+        this(new CellInfoBuilder());
     }
 
     /**
      * Create a new CustomCellInfo from a bundle containing the necessary
-     * informations.
+     * informations, as built by getBundle().
      * 
      * @param infos
      *            The bundle that contains all the known informations about the
      *            cell.
      */
     public CustomCellInfo(Bundle infos) {
-        // initialize empty
-        this();
-        // Copy the infos
-        infoBundle.putAll(infos);
+        cellType = infos.getInt(CELL_TYPE, ICellInfo.CELL_UNKNOWN);
+        timeStamp = infos.getLong(TIMESTAMP, Long.MAX_VALUE);
+        registered = infos.getBoolean(IS_REGISTERED, false);
+        signalStrength = new CustomSignalStrength(
+                infos.getBundle(SIGNAL_STRENGTH));
+        cid = infos.getInt(CID, Integer.MAX_VALUE);
+        lac = infos.getInt(LAC, Integer.MAX_VALUE);
+        mcc = infos.getInt(MCC, Integer.MAX_VALUE);
+        mnc = infos.getInt(MNC, Integer.MAX_VALUE);
+        psc = infos.getInt(PSC, Integer.MAX_VALUE);
+        pci = infos.getInt(PCI, Integer.MAX_VALUE);
+        tac = infos.getInt(TAC, Integer.MAX_VALUE);
+        ta = infos.getInt(TA, Integer.MAX_VALUE);
     }
 
     /**
-     * Create a new CustomCellInfo from the Android CellInfo implementation.
-     * This only initialize the generic fields from the CellInfo class.
+     * Create a new CustomCellInfo holding the current values of another
+     * ICellInfo, which may change afterwards.
      * 
      * @param cell
-     *            The CellInfo to initialize from.
+     *            The ICellInfo to copy.
      */
-    protected CustomCellInfo(CellInfo cell) {
-        // initialize empty
-        this();
-        // Timestamp the data
-        infoBundle.putLong(TIMESTAMP, cell.getTimeStamp());
-        // Indicate if this cell is registered
-        infoBundle.putBoolean(IS_REGISTERED, cell.isRegistered());
+    public CustomCellInfo(ICellInfo cell) {
+        cellType = cell.getCellType();
+        timeStamp = cell.getTimeStamp();
+        registered = cell.isRegistered();
+        ISignalStrength cellSS = cell.getSignalStrength();
+        signalStrength = new CustomSignalStrength(cellSS.getDbm(),
+                cellSS.getAsuLevel());
+        cid = cell.getCid();
+        lac = cell.getLac();
+        mcc = cell.getMcc();
+        mnc = cell.getMnc();
+        psc = cell.getPsc();
+        pci = cell.getPci();
+        tac = cell.getTac();
+        ta = cell.getTimingAdvance();
     }
 
     /**
@@ -117,22 +158,7 @@ public class CustomCellInfo implements ICellInfo {
      *            The CellInfoGsm to initialize from.
      */
     public CustomCellInfo(CellInfoGsm cell) {
-        // Initialize the the generic fields from the CellInfo class
-        this((CellInfo) cell);
-        // We have a GSM type of cell
-        infoBundle.putInt(CELL_TYPE, ICellInfo.CELL_GSM);
-        // Initialize Signal Strength
-        putSignalStrength(cell.getCellSignalStrength());
-        // Initialize Cell identity
-        {
-            // Get the cell identity
-            CellIdentityGsm cellId = cell.getCellIdentity();
-            // Fill the available fields
-            infoBundle.putInt(CID, cellId.getCid());
-            infoBundle.putInt(LAC, cellId.getLac());
-            infoBundle.putInt(MCC, cellId.getMcc());
-            infoBundle.putInt(MNC, cellId.getMnc());
-        }
+        this(new CellInfoBuilder().fill(cell));
     }
 
     /**
@@ -142,25 +168,7 @@ public class CustomCellInfo implements ICellInfo {
      *            The CellInfoLte to initialize from.
      */
     public CustomCellInfo(CellInfoLte cell) {
-        // Initialize the the generic fields from the CellInfo class
-        this((CellInfo) cell);
-        // We have a LTE type of cell
-        infoBundle.putInt(CELL_TYPE, ICellInfo.CELL_LTE);
-        // Initialize Signal Strength
-        putSignalStrength(cell.getCellSignalStrength());
-        // Initialize Cell identity
-        {
-            // Get the cell identity
-            CellIdentityLte cellId = cell.getCellIdentity();
-            // Fill the available fields
-            infoBundle.putInt(CID, cellId.getCi());
-            infoBundle.putInt(MCC, cellId.getMcc());
-            infoBundle.putInt(MNC, cellId.getMnc());
-            infoBundle.putInt(TAC, cellId.getTac());
-            infoBundle.putInt(PCI, cellId.getPci());
-            infoBundle.putInt(TA, cell.getCellSignalStrength()
-                    .getTimingAdvance());
-        }
+        this(new CellInfoBuilder().fill(cell));
     }
 
     /**
@@ -170,28 +178,7 @@ public class CustomCellInfo implements ICellInfo {
      *            The CellInfoCdma to initialize from.
      */
     public CustomCellInfo(CellInfoCdma cell) {
-        // Initialize the the generic fields from the CellInfo class
-        this((CellInfo) cell);
-        // We have a CDMA type of cell
-        infoBundle.putInt(CELL_TYPE, ICellInfo.CELL_CDMA);
-        // Initialize Signal Strength
-        putSignalStrength(cell.getCellSignalStrength());
-        // Initialize Cell identity
-        {
-            // Get the cell identity
-            // CellIdentityCdma cellId = cell.getCellIdentity();
-            // Fill the available fields
-            // TODO The CDMA cells are actually very different from the
-            // others...
-        }
-    }
-
-    /** Parse and put the signal strength into the bundle */
-    protected void putSignalStrength(CellSignalStrength cellSS) {
-        // Parse the CellSignalStrength by creating a CustomSignalStrength
-        CustomSignalStrength ss = new CustomSignalStrength(cellSS);
-        // Bundle it and store it
-        infoBundle.putBundle(SIGNAL_STRENGTH, ss.getBundle());
+        this(new CellInfoBuilder().fill(cell));
     }
 
     /**
@@ -205,106 +192,106 @@ public class CustomCellInfo implements ICellInfo {
      *         grabbed from the input CellInfo.
      */
     public static CustomCellInfo buildFromCellInfo(CellInfo cell) {
-        // If we can parse Wcdma cells, call the more recent builder
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
-            return CustomCellInfoWcdma.buildFromCellInfo(cell);
-        }
-        // Initialize the result
-        CustomCellInfo result = null;
-        // Continue by inspecting which type of CellInfo we actually
-        // have and cast accordingly.
-        if (cell instanceof CellInfoCdma) {
-            // Call the CDMA constructor
-            result = new CustomCellInfo((CellInfoCdma) cell);
-        } else if (cell instanceof CellInfoGsm) {
-            // Call the GSM constructor
-            result = new CustomCellInfo((CellInfoGsm) cell);
-        } else if (cell instanceof CellInfoLte) {
-            // Call the LTE constructor
-            result = new CustomCellInfo((CellInfoLte) cell);
-        } else {
-            // We only have a generic CellInfo...
-            result = new CustomCellInfo(cell);
-        }
-        return result;
+        return new CellInfoBuilder().fill(cell).build();
     }
 
     /**
-     * Return a bundle containing the cell information.
+     * Return a new bundle containing the known cell information, to pass
+     * this cell to another component or to save it.
      * 
      * @return This cell info as a Bundle
      */
     public Bundle getBundle() {
-        return this.infoBundle;
+        Bundle infoBundle = new Bundle();
+        if (cellType != ICellInfo.CELL_UNKNOWN)
+            infoBundle.putInt(CELL_TYPE, cellType);
+        if (timeStamp != Long.MAX_VALUE)
+            infoBundle.putLong(TIMESTAMP, timeStamp);
+        infoBundle.putBoolean(IS_REGISTERED, registered);
+        infoBundle.putBundle(SIGNAL_STRENGTH, signalStrength.getBundle());
+        putKnown(infoBundle, CID, cid);
+        putKnown(infoBundle, LAC, lac);
+        putKnown(infoBundle, MCC, mcc);
+        putKnown(infoBundle, MNC, mnc);
+        putKnown(infoBundle, PSC, psc);
+        putKnown(infoBundle, PCI, pci);
+        putKnown(infoBundle, TAC, tac);
+        putKnown(infoBundle, TA, ta);
+        return infoBundle;
+    }
+
+    /** Put the value into the bundle, unless unknown (Integer.MAX_VALUE) */
+    private static void putKnown(Bundle bundle, String key, int value) {
+        if (value != Integer.MAX_VALUE)
+            bundle.putInt(key, value);
     }
 
     @Override
     public int getCellType() {
         // Return the cell type, or CELL_UNKNOWN if unknown
-        return infoBundle.getInt(CELL_TYPE, ICellInfo.CELL_UNKNOWN);
+        return cellType;
     }
 
     @Override
     public long getTimeStamp() {
-        return infoBundle.getLong(TIMESTAMP, Long.MAX_VALUE);
+        return timeStamp;
     }
 
     @Override
     public boolean isRegistered() {
-        return infoBundle.getBoolean(IS_REGISTERED, false);
+        return registered;
     }
 
     @Override
     public ISignalStrength getSignalStrength() {
-        // Get the bundled signal strength and create a CustomSignalStrength
-        // from it
-        return new CustomSignalStrength(infoBundle.getBundle(SIGNAL_STRENGTH));
+        // Parsed once, with the cell
+        return signalStrength;
     }
 
     @Override
     public int getCid() {
-        return infoBundle.getInt(CID, Integer.MAX_VALUE);
+        return cid;
     }
 
     @Override
     public int getLac() {
-        return infoBundle.getInt(LAC, Integer.MAX_VALUE);
+        return lac;
     }
 
     @Override
     public int getMcc() {
-        return infoBundle.getInt(MCC, Integer.MAX_VALUE);
+        return mcc;
     }
 
     @Override
     public int getMnc() {
-        return infoBundle.getInt(MNC, Integer.MAX_VALUE);
+        return mnc;
     }
 
     @Override
     public int getPsc() {
-        return infoBundle.getInt(PSC, Integer.MAX_VALUE);
+        return psc;
     }
 
     @Override
     public int getPci() {
-        return infoBundle.getInt(PCI, Integer.MAX_VALUE);
+        return pci;
     }
 
     @Override
     public int getTac() {
-        return infoBundle.getInt(TAC, Integer.MAX_VALUE);
+        return tac;
     }
 
     @Override
     public int getTimingAdvance() {
-        return infoBundle.getInt(TA, Integer.MAX_VALUE);
+        return ta;
     }
 
     @Override
     public JSONObject toJSON() {
-        // Convert the infoBundle into a JSON :
-        return Utils.bundleToJSON(infoBundle);
+        // Convert the cell into a JSON through its bundle
+        return Utils.bundleToJSON(getBundle());
     }
 
     /*
@@ -2,9 +2,6 @@ package com.qualoutdoor.recorder.telephony;
 
 import android.telephony.CellIdentityWcdma;
 import android.telephony.CellInfo;
-import android.telephony.CellInfoCdma;
-import android.telephony.CellInfoGsm;
-import android.telephony.CellInfoLte;
 import android.telephony.CellInfoWcdma;
 
 /**
@@ -15,43 +12,48 @@ import android.telephony.CellInfoWcdma;
 public class CustomCellInfoWcdma extends CustomCellInfo {
 
     /**
-     * Create a new CustomCellInfoWcdma from the Android CellInfo
-     * implementation. This only initialize the generic fields from the CellInfo
-     * class.
+     * Create a new CustomCellInfoWcdma from the Android CellInfoWcdma
+     * implementation.
      * 
      * @param cell
-     *            The CellInfo to initialize from.
+     *            The CellInfoWcdma to initialize from.
      */
-    private CustomCellInfoWcdma(CellInfo cell) {
-        super(cell);
+    public CustomCellInfoWcdma(CellInfoWcdma cell) {
+        super(new CellInfoBuilder().fill(cell));
     }
 
-
     /**
-     * Create a new CustomCellInfoWcdma from the Android CellInfoWcdma
-     * implementation.
+     * Fill the given builder from the Android CellInfo if it is a
+     * CellInfoWcdma
      * 
+     * @param target
+     *            The builder to fill, already cleared
      * @param cell
-     *            The CellInfoWcdma to initialize from.
+     *            The CellInfo to initialize from
+     * @return true if the CellInfo was a CellInfoWcdma
      */
-    public CustomCellInfoWcdma(CellInfoWcdma cell) {
+    static boolean fillWcdma(CellInfoBuilder target, CellInfo cell) {
+        if (!(cell instanceof CellInfoWcdma))
+            return false;
+        CellInfoWcdma wcdmaCell = (CellInfoWcdma) cell;
         // Initialize the the generic fields from the CellInfo class
-        this((CellInfo) cell);
+        target.fillGeneric(cell);
         // We have a WCDMA type of cell
-        infoBundle.putInt(CELL_TYPE, ICellInfo.CELL_WCDMA);
+        target.cellType = ICellInfo.CELL_WCDMA;
         // Initialize Signal Strength
-        putSignalStrength(cell.getCellSignalStrength());
+        target.fillSignalStrength(wcdmaCell.getCellSignalStrength());
         // Initialize Cell identity
         {
             // Get the cell identity
-            CellIdentityWcdma cellId = cell.getCellIdentity();
+            CellIdentityWcdma cellId = wcdmaCell.getCellIdentity();
             // Fill the available fields
-            infoBundle.putInt(CID, cellId.getCid());
-            infoBundle.putInt(MCC, cellId.getMcc());
-            infoBundle.putInt(MNC, cellId.getMnc());
-            infoBundle.putInt(LAC, cellId.getLac());
-            infoBundle.putInt(PSC, cellId.getPsc());
+            target.cid = cellId.getCid();
+            target.mcc = cellId.getMcc();
+            target.mnc = cellId.getMnc();
+            target.lac = cellId.getLac();
+            target.psc = cellId.getPsc();
         }
+        return true;
     }
 
     /**
@@ -65,26 +67,6 @@ public class CustomCellInfoWcdma extends CustomCellInfo {
      *         grabbed from the input CellInfo.
      */
     public static CustomCellInfo buildFromCellInfo(CellInfo cell) {
-        // Initialize the result
-        CustomCellInfo result = null;
-        // Continue by inspecting which type of CellInfo we actually
-        // have and cast accordingly.
-        if (cell instanceof CellInfoCdma) {
-            // Call the CDMA constructor
-            result = new CustomCellInfo((CellInfoCdma) cell);
-        } else if (cell instanceof CellInfoGsm) {
-            // Call the GSM constructor
-            result = new CustomCellInfo((CellInfoGsm) cell);
-        } else if (cell instanceof CellInfoLte) {
-            // Call the LTE constructor
-            result = new CustomCellInfo((CellInfoLte) cell);
-        } else if (cell instanceof CellInfoWcdma) {
-            // Call the WCDMA constructor
-            result = new CustomCellInfoWcdma((CellInfoWcdma) cell);
-        } else {
-            // We only have a generic CellInfo...
-            result = new CustomCellInfo(cell);
-        }
-        return result;
+        return CustomCellInfo.buildFromCellInfo(cell);
     }
 }
@@ -4,18 +4,19 @@ import android.os.Bundle;
 import android.telephony.CellSignalStrength;
 
 /**
- * Implementation of ISignalStrength using a Bundle
+ * Implementation of ISignalStrength, immutable. The values are held in plain
+ * final fields, a Bundle is only built when the signal strength is passed
+ * between components (see getBundle()).
  * 
  * @author Gaborit Nicolas
  * 
  */
 public class CustomSignalStrength implements ISignalStrength {
 
-    /**
-     * We encapsulate the signal values in a bundle. They are parcelable and all
-     * the fields are not required to be filled.
-     */
-    private Bundle valuesBundle;
+    /** The signal strength dBm value, UNKNOWN_DBM if unknown */
+    private final int dbm;
+    /** The signal strength asu level, UNKNOWN_ASU if unknown */
+    private final int asu;
 
     /************ The bundle keys ****************/
     /** Stores the signal strength dBm value. Holds an int. */
@@ -25,8 +26,20 @@ public class CustomSignalStrength implements ISignalStrength {
 
     /** Create an empty CustomSignalStrength. */
     public CustomSignalStrength() {
-        // Initialize an empty bundle
-        this.valuesBundle = new Bundle();
+        this(UNKNOWN_DBM, UNKNOWN_ASU);
+    }
+
+    /**
+     * Create a CustomSignalStrength from the given values.
+     * 
+     * @param dbm
+     *            The dBm value, UNKNOWN_DBM if unknown
+     * @param asu
+     *            The asu level, UNKNOWN_ASU if unknown
+     */
+    public CustomSignalStrength(int dbm, int asu) {
+        this.dbm = dbm;
+        this.asu = asu;
     }
 
     /**
@@ -37,11 +50,9 @@ public class CustomSignalStrength implements ISignalStrength {
      *            The bundle from which the values will be read.
      */
     public CustomSignalStrength(Bundle initValues) {
-        // Initialize empty
-        this();
-        if (initValues != null)
-            // Copy the values from the given bundle
-            this.valuesBundle.putAll(initValues);
+        this(initValues == null ? UNKNOWN_DBM : initValues.getInt(DBM,
+                UNKNOWN_DBM), initValues == null ? UNKNOWN_ASU : initValues
+                .getInt(ASU, UNKNOWN_ASU));
     }
 
     /**
@@ -52,43 +63,34 @@ public class CustomSignalStrength implements ISignalStrength {
      *            The cell signal strength to initialize from.
      */
     public CustomSignalStrength(CellSignalStrength cellSS) {
-        // Initialize an empty CustomSignalStrength
-        this();
-        // Add the dBm value
-        this.valuesBundle.putInt(DBM, cellSS.getDbm());
-        // Add the asu level
-        this.valuesBundle.putInt(ASU, cellSS.getAsuLevel());
+        this(cellSS.getDbm(), cellSS.getAsuLevel());
     }
 
     // TODO add a constructor from a SignalStrength object...
 
     /**
-     * Return this signal strength as a Bundle.
+     * Return this signal strength as a new Bundle, holding only the known
+     * values.
      * 
      * @return The Bundle representing this signal strength
      */
     public Bundle getBundle() {
+        Bundle valuesBundle = new Bundle();
+        if (dbm != UNKNOWN_DBM)
+            valuesBundle.putInt(DBM, dbm);
+        if (asu != UNKNOWN_ASU)
+            valuesBundle.putInt(ASU, asu);
         return valuesBundle;
     }
 
     @Override
     public int getDbm() {
-        if (valuesBundle.containsKey(DBM))
-            // Return the stored dBm value
-            return valuesBundle.getInt(DBM);
-        else
-            // Return error value
-            return UNKNOWN_DBM;
+        return dbm;
     }
 
     @Override
     public int getAsuLevel() {
-        if (valuesBundle.containsKey(ASU))
-            // Return the stored ASU level
-            return valuesBundle.getInt(ASU);
-        else
-            // Return error value
-            return UNKNOWN_ASU;
+        return asu;
     }
 
 }
@@ -134,14 +134,26 @@ public interface ITelephony {
 
     /**
      * Register a listener object to receive notification concerning the
-     * specified events type
+     * specified events type, as soon as they change. LISTEN_NONE unregisters
+     * the listener.
      */
     void listen(TelephonyListener listener, int events);
 
     /**
-     * Set the minimum refresh rate for non event-driven data. These data can't
-     * be monitored through a listener, so they need to be refreshed manually by
-     * requesting the data provider at a fixed rate.
+     * Register a listener object to receive notification concerning the
+     * specified events type, at most once per interval : the changes coming
+     * sooner are coalesced into their latest values. The non event-driven data
+     * are refreshed as often as the listeners need them, and no more.
+     * Registering the listener again replaces its previous subscription,
+     * LISTEN_NONE unregisters it.
+     * 
+     * @param listener
+     *            The listener to notify
+     * @param events
+     *            The bitwise-or of the LISTEN_xxx flags
+     * @param minimumInterval
+     *            The minimum time in ms between two notifications, 0 to be
+     *            notified of every change
      */
-    void setMinimumRefreshRate(int milliseconds);
+    void listen(TelephonyListener listener, int events, int minimumInterval);
 }
\ No newline at end of file
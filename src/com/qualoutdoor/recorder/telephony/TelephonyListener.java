@@ -9,7 +9,8 @@ import java.util.List;
  * flags to `ITelephony.listen()`
  * 
  * Using the LISTEN_xxx flags inform the ITelephony implementation which events
- * you wish to monitor.
+ * you wish to monitor. A minimum interval between the notifications can be
+ * given too, see `ITelephony.listen(listener, events, minimumInterval)`.
  * 
  * @author Gaborit Nicolas
  */
@@ -47,14 +48,24 @@ public class TelephonyListener {
 
     /**
      * Callback invoked when a observed cell info has changed, or new cells have
-     * been added or removed.
+     * been added or removed. The list and its cells are immutable, they may be
+     * kept.
      */
     public void onCellInfoChanged(List<ICellInfo> cellInfo) {}
 
+    /**
+     * Callback invoked before onCellInfoChanged() with the differences between
+     * the previous cell info list and the new one. Updating from the diff
+     * avoids rebuilding everything. The diff is immutable. It is null when the
+     * listener registers, or when the changes of several refreshes have been
+     * coalesced : the listener must then rebuild from the list.
+     */
+    public void onCellInfoDiff(CellInfoDiff diff) {}
+
     /** Callback invoked when network type or data connection state change. */
     public void onDataStateChanged(int state, int networkType) {}
 
-    /** Callback invoked when network signal strengths changes. */
+    /** Callback invoked when network signal strengths value changes. */
     public void onSignalStrengthsChanged(ISignalStrength signalStrength) {}
 
     /** Callback invoked when the MCC changed. */
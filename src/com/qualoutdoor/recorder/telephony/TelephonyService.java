@@ -1,8 +1,9 @@
 package com.qualoutdoor.recorder.telephony;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.Service;
 import android.content.Intent;
@@ -12,7 +13,9 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.telephony.CellInfo;
 import android.telephony.PhoneStateListener;
@@ -31,6 +34,23 @@ import com.qualoutdoor.recorder.Utils;
  * This class is able to refresh data based on the implemented callbacks of the
  * Android API, but also to force the refresh itself at a regular pace.
  * 
+ * A refresh does not allocate anything when the cells did not change : the
+ * cells are parsed into pooled builders, and a new immutable snapshot is only
+ * built from them when they changed (see CellInfoParser). The listeners are
+ * only notified of what changed : the cell info listeners receive the
+ * differences with the previous snapshot (see CellInfoDiff), and nothing when
+ * the cells did not change.
+ * 
+ * The cells are polled and parsed on a refresh thread : the main thread only
+ * dispatches the published snapshots to the listeners, which are always
+ * notified on the main thread.
+ * 
+ * Each listener subscribes with a minimum interval between its notifications
+ * : the changes coming sooner are coalesced, and the listener is notified of
+ * the latest values once the interval is over. The forced refresh polls at
+ * the longest period that satisfies every subscriber, and stops when no
+ * listener needs the cells.
+ * 
  * @author Gaborit Nicolas
  */
 public class TelephonyService extends Service implements ITelephony {
@@ -41,12 +61,32 @@ public class TelephonyService extends Service implements ITelephony {
     private final IBinder mTelephonyBinder = new LocalBinder<TelephonyService>(
             this);
 
+    /** The events that need the cells to be refreshed */
+    private static final int CELL_EVENTS = TelephonyListener.LISTEN_CELL_INFO
+            | TelephonyListener.LISTEN_SIGNAL_STRENGTHS
+            | TelephonyListener.LISTEN_MCC | TelephonyListener.LISTEN_MNC;
+
     /** Indicates if the datas must be force refreshed regularly */
-    private boolean forceRefresh;
-    /** The minimum refresh rate in milliseconds */
-    private int minimumRefreshRate;
+    private volatile boolean forceRefresh;
+    /**
+     * The refresh rate preference in milliseconds, used for the listeners
+     * without interval
+     */
+    private volatile int minimumRefreshRate;
+    /** The forced refresh period in milliseconds, 0 if not needed */
+    private volatile int refreshPeriod;
+    /** The last refresh period requested from the main thread */
+    private int requestedPeriod;
+    /** The events the phone state listener is currently monitoring */
+    private int phoneStateEvents = PhoneStateListener.LISTEN_NONE;
+    /**
+     * Indicates if the service has been destroyed (main thread only) : a
+     * refresher still running may publish cells afterwards, they are not
+     * dispatched
+     */
+    private boolean destroyed;
 
-    /** The current signal strength value */
+    /** The current signal strength value, the one of the registered cell */
     private ISignalStrength signalStrength;
     /** The current data connection state */
     private int dataState;
@@ -60,30 +100,102 @@ public class TelephonyService extends Service implements ITelephony {
     private int callState;
     /** The incomingNumber */
     private String incomingNumber = "";
-    /** The current visible cells */
-    private ArrayList<ICellInfo> allCellInfos;
-
-    /****** The listeners list ******/
-    // Note : Might use CopyOnWriteArrayList to avoid
-    // ConcurrentModificationExceptions if a
-    // listener attempts to remove itself during event notification.
-    /** Store the listeners listening to LISTEN_CALL_STATE */
-    private ArrayList<TelephonyListener> listenersCallState = new ArrayList<TelephonyListener>();
-    /** Store the listeners listening to LISTEN_CELL_INFO */
-    private ArrayList<TelephonyListener> listenersCellInfo = new ArrayList<TelephonyListener>();
-    /** Store the listeners listening to LISTEN_DATA_STATE */
-    private ArrayList<TelephonyListener> listenersDataState = new ArrayList<TelephonyListener>();
-    /** Store the listeners listening to LISTEN_SIGNAL_STRENGTHS */
-    private ArrayList<TelephonyListener> listenersSignalStrength = new ArrayList<TelephonyListener>();
-    /** Store the listeners listening to LISTEN_MCC */
-    private ArrayList<TelephonyListener> listenersMCC = new ArrayList<TelephonyListener>();
-    /** Store the listeners listening to LISTEN_MNC */
-    private ArrayList<TelephonyListener> listenersMNC = new ArrayList<TelephonyListener>();
-
-    /** This handler is used to post regular data refresh task */
+    /****** The cell snapshots ******/
+    /** The parser of the refreshed cells (refresh thread only) */
+    private CellInfoParser cellInfoParser;
+    /**
+     * The current visible cells, the last snapshot taken by the main thread
+     * for dispatching
+     */
+    private volatile CellSnapshot cellSnapshot;
+    /** The snapshot published and not taken by the main thread yet */
+    private final AtomicReference<CellSnapshot> pendingCellSnapshot = new AtomicReference<CellSnapshot>();
+
+    /**
+     * The subscriptions of the listeners. Copied on write : a listener may
+     * remove itself during event notification.
+     */
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    /**
+     * The subscription of a listener to some events, notified at most once per
+     * interval. Run on the main thread, it notifies the listener of the events
+     * coalesced during the interval.
+     */
+    private class Subscription implements Runnable {
+        /** The subscribed listener */
+        final TelephonyListener listener;
+        /** The subscribed events */
+        final int events;
+        /** The minimum time in ms between two notifications, 0 if none */
+        final int interval;
+        /** The time of the last notification, in ms since boot */
+        long lastNotified;
+        /** The events that occurred since the last notification */
+        int pendingEvents;
+
+        Subscription(TelephonyListener listener, int events, int interval) {
+            this.listener = listener;
+            this.events = events;
+            this.interval = interval;
+        }
+
+        /**
+         * Notify the listener of the given events now, or once the interval is
+         * over
+         * 
+         * @param occurred
+         *            The events that occurred
+         * @param diff
+         *            The differences of the cells with the previous refresh,
+         *            if the cells changed
+         */
+        void notifyEvents(int occurred, CellInfoDiff diff) {
+            occurred &= events;
+            if (occurred == 0)
+                return;
+            long now = SystemClock.uptimeMillis();
+            if (pendingEvents == 0 && now - lastNotified >= interval) {
+                // Not notified for a while
+                lastNotified = now;
+                notifyListener(this, occurred, diff);
+            } else {
+                // Coalesced with the next notification
+                if (pendingEvents == 0)
+                    handler.postAtTime(this, lastNotified + interval);
+                pendingEvents |= occurred;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (destroyed)
+                return;
+            int occurred = pendingEvents;
+            pendingEvents = 0;
+            lastNotified = SystemClock.uptimeMillis();
+            // The cell changes of several refreshes can't be given as a diff
+            notifyListener(this, occurred, null);
+        }
+    }
+
+    /** This handler is used to dispatch the refreshed data on the main thread */
     private final Handler handler = new Handler();
 
-    /** The runnable associated with the Handler */
+    /** The thread polling and parsing the cells */
+    private HandlerThread refreshThread;
+    /** This handler is used to post the refresh tasks on the refresh thread */
+    private Handler refreshHandler;
+
+    /** Dispatch the published snapshot, on the main thread */
+    private final Runnable dispatcher = new Runnable() {
+        @Override
+        public void run() {
+            dispatchCellInfos();
+        }
+    };
+
+    /** The runnable refreshing the data regularly, on the refresh thread */
     private final Runnable refresher = new Runnable() {
         @Override
         public void run() {
@@ -94,10 +206,11 @@ public class TelephonyService extends Service implements ITelephony {
                 // Log the error
                 Log.e("Refresher", "", exc);
             } finally {
-                // If forced refresh are active
-                if (forceRefresh) {
+                // If forced refresh are active and needed
+                int period = refreshPeriod;
+                if (period > 0) {
                     // Call again later
-                    handler.postDelayed(this, minimumRefreshRate);
+                    refreshHandler.postDelayed(this, period);
                 }
             }
         }
@@ -133,20 +246,27 @@ public class TelephonyService extends Service implements ITelephony {
         };
 
         @Override
-        public void onCellInfoChanged(List<CellInfo> newCellInfos) {
+        public void onCellInfoChanged(final List<CellInfo> newCellInfos) {
             Log.d("TelephonyService", "onCellInfoChanged");
 
-            // TODO Keep a log for the phones for which newCellInfos == null
-            List<CellInfo> cellInfos = newCellInfos;
-            // Return if cellInfos is null
-            if (cellInfos == null) {
-                Log.e("TelephonyService", "newCellInfo = null");
-                // Manually get all CellInfos
-                cellInfos = getAllCellInfo();
-            }
-
-            // Update the cell infos and notify
-            updateCellInfos(cellInfos);
+            // Parse on the refresh thread
+            refreshHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // TODO Keep a log for the phones for which newCellInfos ==
+                    // null
+                    List<CellInfo> cellInfos = newCellInfos;
+                    // Return if cellInfos is null
+                    if (cellInfos == null) {
+                        Log.e("TelephonyService", "newCellInfo = null");
+                        // Manually get all CellInfos
+                        cellInfos = getAllCellInfo();
+                    }
+
+                    // Update the cell infos and notify
+                    updateCellInfos(cellInfos);
+                }
+            });
         };
 
         @Override
@@ -183,6 +303,7 @@ public class TelephonyService extends Service implements ITelephony {
                 // Update the refresh rate preference
                 minimumRefreshRate = prefs.getInt(key, getResources()
                         .getInteger(R.integer.default_display_refresh_rate));
+                updateRefresh();
             }
             if (key.equals(getString(R.string.pref_key_force_display_refresh))) {
                 // Get the force refresh preference, default to false
@@ -190,6 +311,7 @@ public class TelephonyService extends Service implements ITelephony {
                         key,
                         getResources().getBoolean(
                                 R.bool.pref_default_force_display_refresh));
+                updateRefresh();
             }
         };
     };
@@ -216,8 +338,16 @@ public class TelephonyService extends Service implements ITelephony {
             mnc = Integer.MAX_VALUE;
             // Initialize the data state
             dataState = telephonyManager.getDataState();
-            // Initialize the cell list
-            allCellInfos = new ArrayList<ICellInfo>(ESTIMATED_MAX_CELLS);
+            // Initialize the cell parser, no cells are visible yet
+            cellInfoParser = new CellInfoParser(ESTIMATED_MAX_CELLS);
+            cellSnapshot = cellInfoParser.getSnapshot();
+        }
+
+        // Start the refresh thread
+        {
+            refreshThread = new HandlerThread("TelephonyRefresh");
+            refreshThread.start();
+            refreshHandler = new Handler(refreshThread.getLooper());
         }
 
         // Get the app preferences
@@ -234,18 +364,8 @@ public class TelephonyService extends Service implements ITelephony {
         // Listen to changes to the preferences
         prefs.registerOnSharedPreferenceChangeListener(prefListener);
 
-        // If the refresh is forced
-        if (forceRefresh) {
-            // Trigger the refreshing process
-            handler.postDelayed(refresher, minimumRefreshRate);
-            // Start listening to phone state
-            telephonyManager.listen(phoneStateListener, nonForcedEvents);
-        } else {
-            // Start listening to phone state including cell infos and signal
-            // strength
-            telephonyManager.listen(phoneStateListener, nonForcedEvents
-                    + forcedEvents);
-        }
+        // Start listening to phone state
+        updateRefresh();
         super.onCreate();
     }
 
@@ -255,8 +375,15 @@ public class TelephonyService extends Service implements ITelephony {
         // Unregister our listener from the telephony manager system service
         telephonyManager.listen(phoneStateListener,
                 PhoneStateListener.LISTEN_NONE);
+        // Nothing is dispatched anymore, even by a refresher still running
+        destroyed = true;
         // The refresher should stop
-        forceRefresh = false;
+        refreshPeriod = 0;
+        refreshThread.quit();
+        handler.removeCallbacks(dispatcher);
+        for (Subscription subscription : subscriptions) {
+            handler.removeCallbacks(subscription);
+        }
     }
 
     @Override
@@ -380,68 +507,130 @@ public class TelephonyService extends Service implements ITelephony {
 
     @Override
     public void listen(TelephonyListener listener, int events) {
-        // Check if we are unregistering a listener
-        if (events == TelephonyListener.LISTEN_NONE) {
-            // Unregister the listener from all the lists
-            listenersCallState.remove(listener);
-            listenersCellInfo.remove(listener);
-            listenersDataState.remove(listener);
-            listenersSignalStrength.remove(listener);
-            listenersMCC.remove(listener);
-            listenersMNC.remove(listener);
-        } else {
-            // Add the listener to the corresponding list, according to the
-            // events
-            // it is subscribing to.
-            // We are making bitwise comparison because 'events' is used as a
-            // boolean mask.
-            if ((events & TelephonyListener.LISTEN_CALL_STATE) == TelephonyListener.LISTEN_CALL_STATE) {
-                // The listener wish to monitor the call state, add it to the
-                // list
-                listenersCallState.add(listener);
-                // Notify it immediatly with the current data
-                listener.onCallStateChanged(callState, incomingNumber);
-            }
-            if ((events & TelephonyListener.LISTEN_CELL_INFO) == TelephonyListener.LISTEN_CELL_INFO) {
-                // The listener wish to monitor the cells infos, add it to the
-                // list
-                listenersCellInfo.add(listener);
-                // Notify it immediatly with a read only copy of allCellInfos
-                listener.onCellInfoChanged(Collections
-                        .unmodifiableList(allCellInfos));
-            }
-            if ((events & TelephonyListener.LISTEN_DATA_STATE) == TelephonyListener.LISTEN_DATA_STATE) {
-                // The listener wish to monitor the data state, add it to the
-                // list
-                listenersDataState.add(listener);
-                // Notify it immediatly with the current data
-                listener.onDataStateChanged(dataState, networkType);
-            }
-            if ((events & TelephonyListener.LISTEN_SIGNAL_STRENGTHS) == TelephonyListener.LISTEN_SIGNAL_STRENGTHS) {
-                // The listener wish to monitor the signal strength, add it to
-                // the list
-                listenersSignalStrength.add(listener);
-                // Notify it immediatly with the current data
-                listener.onSignalStrengthsChanged(signalStrength);
-            }
-            if ((events & TelephonyListener.LISTEN_MCC) == TelephonyListener.LISTEN_MCC) {
-                // Add the listener to the MCC list
-                listenersMCC.add(listener);
-                // Notify immediatly
-                listener.onMCCChanged(mcc);
-            }
-            if ((events & TelephonyListener.LISTEN_MNC) == TelephonyListener.LISTEN_MNC) {
-                // Add the listener to the MNC list
-                listenersMNC.add(listener);
-                // Notify immediatly
-                listener.onMNCChanged(mnc);
+        listen(listener, events, 0);
+    }
+
+    @Override
+    public void listen(TelephonyListener listener, int events,
+            int minimumInterval) {
+        // Unregister the listener, a new subscription replaces the old one
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                subscriptions.remove(subscription);
+                handler.removeCallbacks(subscription);
             }
         }
+        if (events != TelephonyListener.LISTEN_NONE) {
+            Subscription subscription = new Subscription(listener, events,
+                    Math.max(0, minimumInterval));
+            subscriptions.add(subscription);
+            // Notify it immediatly with the current data
+            subscription.lastNotified = SystemClock.uptimeMillis();
+            notifyListener(subscription, events, null);
+        }
+        // The refresh may be needed faster, slower or no more
+        updateRefresh();
     }
 
-    @Override
-    public void setMinimumRefreshRate(int milliseconds) {
-        minimumRefreshRate = Math.min(minimumRefreshRate, milliseconds);
+    /**
+     * Notify a listener of the current values of the given events
+     * 
+     * @param subscription
+     *            The subscription of the listener
+     * @param occurred
+     *            The events to notify
+     * @param diff
+     *            The differences of the cells with the last values notified
+     *            to the listener, or null if unknown
+     */
+    private void notifyListener(Subscription subscription, int occurred,
+            CellInfoDiff diff) {
+        TelephonyListener listener = subscription.listener;
+        // We are making bitwise comparison because 'occurred' is used as a
+        // boolean mask.
+        if ((occurred & TelephonyListener.LISTEN_CALL_STATE) != 0)
+            listener.onCallStateChanged(callState, incomingNumber);
+        if ((occurred & TelephonyListener.LISTEN_DATA_STATE) != 0)
+            listener.onDataStateChanged(dataState, networkType);
+        if ((occurred & TelephonyListener.LISTEN_SIGNAL_STRENGTHS) != 0)
+            listener.onSignalStrengthsChanged(signalStrength);
+        if ((occurred & TelephonyListener.LISTEN_MCC) != 0)
+            listener.onMCCChanged(mcc);
+        if ((occurred & TelephonyListener.LISTEN_MNC) != 0)
+            listener.onMNCChanged(mnc);
+        if ((occurred & TelephonyListener.LISTEN_CELL_INFO) != 0) {
+            listener.onCellInfoDiff(diff);
+            listener.onCellInfoChanged(cellSnapshot.getCells());
+        }
+    }
+
+    /**
+     * Notify the subscribed listeners of the given events, now or once their
+     * interval is over
+     * 
+     * @param occurred
+     *            The events that occurred
+     * @param diff
+     *            The differences of the cells with the previous refresh, if
+     *            the cells changed
+     */
+    private void notifyListeners(int occurred, CellInfoDiff diff) {
+        if (occurred == TelephonyListener.LISTEN_NONE)
+            return;
+        for (Subscription subscription : subscriptions) {
+            subscription.notifyEvents(occurred, diff);
+        }
+    }
+
+    /**
+     * Adjust the refresh to the subscriptions and preferences : the forced
+     * refresh polls at the longest period that satisfies every listener of
+     * the cells, the listeners without interval using the refresh rate
+     * preference. Without forced refresh, the cells are monitored through the
+     * phone state listener. In both cases, the cells are not refreshed if no
+     * listener needs them.
+     */
+    private void updateRefresh() {
+        if (refreshHandler == null)
+            // Not created yet
+            return;
+        // The shortest interval needed
+        int period = 0;
+        boolean cellsNeeded = false;
+        for (Subscription subscription : subscriptions) {
+            if ((subscription.events & CELL_EVENTS) != 0) {
+                cellsNeeded = true;
+                int interval = subscription.interval == 0 ? minimumRefreshRate
+                        : subscription.interval;
+                period = period == 0 ? interval : Math.min(period, interval);
+            }
+        }
+        if (!forceRefresh)
+            period = 0;
+        if (period != requestedPeriod) {
+            requestedPeriod = period;
+            // Restart the refreshing process at the new period, on the
+            // refresh thread so that a running refresher does not post
+            // itself again after its callbacks have been removed
+            final int newPeriod = period;
+            refreshHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    refreshHandler.removeCallbacks(refresher);
+                    refreshPeriod = newPeriod;
+                    if (newPeriod > 0)
+                        refreshHandler.postDelayed(refresher, newPeriod);
+                }
+            });
+        }
+        // Monitor the cells through the phone state listener, if needed
+        int events = nonForcedEvents;
+        if (!forceRefresh && cellsNeeded)
+            events |= forcedEvents;
+        if (events != phoneStateEvents) {
+            phoneStateEvents = events;
+            telephonyManager.listen(phoneStateListener, events);
+        }
     }
 
     /**
@@ -467,7 +656,7 @@ public class TelephonyService extends Service implements ITelephony {
         // Update the current network type
         this.networkType = networkType;
         // Notify the data state listeners
-        notifyDataStateListeners(state, networkType);
+        notifyListeners(TelephonyListener.LISTEN_DATA_STATE, null);
     }
 
     /**
@@ -484,53 +673,69 @@ public class TelephonyService extends Service implements ITelephony {
         // Update the incomingNumber
         this.incomingNumber = incomingNumber;
         // Notify the call state listeners
-        notifyCallStateListeners(state, incomingNumber);
+        notifyListeners(TelephonyListener.LISTEN_CALL_STATE, null);
     }
 
     /**
-     * Parse a CellInfo list and update the allCellInfo, then notify the
-     * listeners from the changes
+     * Parse a CellInfo list and publish the new snapshot if the cells
+     * changed, on the refresh thread. The main thread will dispatch it.
      * 
      * @param cellInfos
      *            The new CellInfo list
      */
     private void updateCellInfos(List<CellInfo> cellInfos) {
-        // Reset the cell info array list
-        allCellInfos.clear();
-
-        // Parse the cell infos list
-        List<ICellInfo> iCellInfos = parseCellInfos(cellInfos);
-        // Update the current ICellInfo list and retrieve the signal
-        // strength at the same time.
-        for (ICellInfo cell : iCellInfos) {
-            // Add it to the list
-            allCellInfos.add(cell);
-            // Check if this is the primary cell
-            if (cell.isRegistered()) {
-                // This is the signal strength you are looking for
-                signalStrength = cell.getSignalStrength();
-                // Notify the signal strength listeners
-                notifySignalStrengthListeners(signalStrength);
-                // Update mcc
-                if (mcc != cell.getMcc()) {
-                    mcc = cell.getMcc();
-                    // Notify mcc listeners
-                    notifyMCCListeners(mcc);
-                }
-                // Update mnc
-                if (mnc != cell.getMnc()) {
-                    mnc = cell.getMnc();
-                    // Notify mnc listeners
-                    notifyMNCListeners(mnc);
-                }
+        CellSnapshot parsed = cellInfoParser.parse(cellInfos);
+        if (parsed == null)
+            // Nothing changed, nothing to dispatch
+            return;
+        // Publish the snapshot, replacing the one not taken yet if any
+        pendingCellSnapshot.set(parsed);
+        handler.post(dispatcher);
+    }
+
+    /**
+     * Take the published snapshot and notify the listeners from the changes,
+     * on the main thread
+     */
+    private void dispatchCellInfos() {
+        if (destroyed)
+            return;
+        CellSnapshot published = pendingCellSnapshot.getAndSet(null);
+        if (published == null)
+            // Already dispatched
+            return;
+        // The diff is relative to the previous snapshot, which may have been
+        // replaced before being dispatched
+        CellInfoDiff diff = published.follows(cellSnapshot) ? published
+                .getDiff() : null;
+        cellSnapshot = published;
+        // The cells changed
+        int occurred = TelephonyListener.LISTEN_CELL_INFO;
+
+        // Retrieve the signal strength from the primary cell
+        ICellInfo cell = published.getRegisteredCell();
+        if (cell != null) {
+            // This is the signal strength you are looking for
+            ISignalStrength cellSS = cell.getSignalStrength();
+            if (!CellInfoDiff.isSameSignalStrength(signalStrength, cellSS)) {
+                // Immutable, as the cell
+                signalStrength = cellSS;
+                occurred |= TelephonyListener.LISTEN_SIGNAL_STRENGTHS;
+            }
+            // Update mcc
+            if (mcc != cell.getMcc()) {
+                mcc = cell.getMcc();
+                occurred |= TelephonyListener.LISTEN_MCC;
+            }
+            // Update mnc
+            if (mnc != cell.getMnc()) {
+                mnc = cell.getMnc();
+                occurred |= TelephonyListener.LISTEN_MNC;
             }
         }
-        // Create a non modifiable ICellInfo list
-        List<ICellInfo> unmodifiableCellInfo = Collections
-                .unmodifiableList(allCellInfos);
 
-        // Notify the cell info listeners
-        notifyCellInfoListeners(unmodifiableCellInfo);
+        // Notify the listeners, now or once their interval is over
+        notifyListeners(occurred, diff);
     }
 
     /**
@@ -557,66 +762,4 @@ public class TelephonyService extends Service implements ITelephony {
         return result;
     }
 
-    /**
-     * Notify each cell info listeners with the current ICellInfo list.
-     * 
-     * @param cellInfos
-     *            The updated list of ICellInfo
-     */
-    private void notifyCellInfoListeners(List<ICellInfo> cellInfos) {
-        for (TelephonyListener listener : listenersCellInfo) {
-            // For each listener, notify
-            listener.onCellInfoChanged(cellInfos);
-        }
-    }
-
-    /**
-     * Notify each signal strength listeners with the current ISignalStrength
-     * value
-     * 
-     * @param signalStrength
-     *            The new signal strength
-     */
-    private void notifySignalStrengthListeners(ISignalStrength signalStrength) {
-        for (TelephonyListener listener : listenersSignalStrength) {
-            // For each listener, notify
-            listener.onSignalStrengthsChanged(signalStrength);
-        }
-    }
-
-    /**
-     * Notify each call state listeners with the current call state and network
-     * type values
-     */
-    private void notifyCallStateListeners(int state, String incomingNumber) {
-        for (TelephonyListener listener : listenersCallState) {
-            // For each listener, notify
-            listener.onCallStateChanged(state, incomingNumber);
-        }
-    }
-
-    /** Notify each location listeners with the current ILocation value */
-    private void notifyDataStateListeners(int state, int networkType) {
-        for (TelephonyListener listener : listenersDataState) {
-            // For each listener, notify
-            listener.onDataStateChanged(state, networkType);
-        }
-    }
-
-    /** Notify each MCC listeners with the current MCC value */
-    private void notifyMCCListeners(int mcc) {
-        for (TelephonyListener listener : listenersMCC) {
-            // For each listener, notify
-            listener.onMCCChanged(mcc);
-        }
-    }
-
-    /** Notify each MNC listeners with the current MNC value */
-    private void notifyMNCListeners(int mnc) {
-        for (TelephonyListener listener : listenersMNC) {
-            // For each listener, notify
-            listener.onMNCChanged(mnc);
-        }
-    }
-
-}
+}
\ No newline at end of file
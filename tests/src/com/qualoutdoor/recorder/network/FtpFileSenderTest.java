@@ -0,0 +1,343 @@
+package com.qualoutdoor.recorder.network;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the FtpFileSender against a small FTP server running in the test :
+ * resuming an interrupted sending, renaming the complete file, and giving up
+ * on bad replies, except to QUIT.
+ *
+ * @author Gaborit Nicolas
+ */
+public class FtpFileSenderTest extends TestCase {
+
+    /** The directory of the files on the server */
+    private static final String DIRECTORY = "/up/";
+    /** The name of the sent file */
+    private static final String NAME = "records.zip";
+    /** The final path of the sent file on the server */
+    private static final String PATH = DIRECTORY + NAME + "FTP";
+    /** The path of the sent file on the server while it is partial */
+    private static final String PARTIAL_PATH = PATH
+            + FtpFileSender.PARTIAL_SUFFIX;
+
+    /** The server of the test */
+    private FtpServer server;
+    /** The content of the sent file */
+    private byte[] content;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FtpServer();
+        content = new byte[200 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31 + i / 251);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    /** Send the content to the server, returns whether it succeeded */
+    private boolean send() {
+        FtpFileSender sender = new FtpFileSender("user", "secret", DIRECTORY);
+        return sender.sendFile(server.getUrl(), NAME, new ByteArrayInputStream(
+                content));
+    }
+
+    /** A file is sent under a temporary name, then renamed */
+    public void testSendAndRename() {
+        assertTrue(send());
+        assertTrue(Arrays.equals(content, server.getFile(PATH)));
+        assertNull(server.getFile(PARTIAL_PATH));
+        assertEquals(0, server.getRestOffset());
+    }
+
+    /** A partial file left by a previous sending is resumed */
+    public void testResume() {
+        int offset = 70000;
+        server.putFile(PARTIAL_PATH, Arrays.copyOf(content, offset));
+        assertTrue(send());
+        assertEquals(offset, server.getRestOffset());
+        assertTrue(Arrays.equals(content, server.getFile(PATH)));
+        assertNull(server.getFile(PARTIAL_PATH));
+    }
+
+    /** A sending dropped in the middle is resumed by the next one */
+    public void testDropThenResume() {
+        int kept = 50000;
+        server.dropStoreAfter(kept);
+        assertFalse(send());
+        // the partial file is not renamed
+        assertNull(server.getFile(PATH));
+        assertEquals(kept, server.getFile(PARTIAL_PATH).length);
+        server.dropStoreAfter(-1);
+        assertTrue(send());
+        assertEquals(kept, server.getRestOffset());
+        assertTrue(Arrays.equals(content, server.getFile(PATH)));
+    }
+
+    /** A partial file larger than the file is deleted */
+    public void testPartialFileTooLarge() {
+        server.putFile(PARTIAL_PATH, new byte[content.length + 1]);
+        assertFalse(send());
+        assertNull(server.getFile(PARTIAL_PATH));
+        assertNull(server.getFile(PATH));
+        // the next sending starts over
+        assertTrue(send());
+        assertTrue(Arrays.equals(content, server.getFile(PATH)));
+    }
+
+    /** A SIZE reply without a number fails the sending */
+    public void testBadSizeReply() {
+        server.putFile(PARTIAL_PATH, new byte[10]);
+        server.replyTo("SIZE", "213 ten");
+        assertFalse(send());
+        assertNull(server.getFile(PATH));
+        server.replyTo("SIZE", "213");
+        assertFalse(send());
+        assertNull(server.getFile(PATH));
+    }
+
+    /** A PASV reply with a bad port fails the sending */
+    public void testBadPassiveReply() {
+        server.replyTo("PASV", "227 Entering Passive Mode (127,0,0,1,x,1)");
+        assertFalse(send());
+        server.replyTo("PASV", "227 Entering Passive Mode (127,0,0,1,300,1)");
+        assertFalse(send());
+        server.replyTo("PASV", "227 Entering Passive Mode");
+        assertFalse(send());
+        assertNull(server.getFile(PATH));
+    }
+
+    /** A bad QUIT reply does not fail a file already renamed */
+    public void testBadQuitReply() {
+        server.replyTo("QUIT", "500 Unknown command");
+        assertTrue(send());
+        assertTrue(Arrays.equals(content, server.getFile(PATH)));
+        assertNull(server.getFile(PARTIAL_PATH));
+    }
+
+    /** A bad port in the url fails the sending */
+    public void testBadUrl() {
+        FtpFileSender sender = new FtpFileSender("user", "secret", DIRECTORY);
+        assertFalse(sender.sendFile("127.0.0.1:port", NAME,
+                new ByteArrayInputStream(content)));
+        assertFalse(sender.sendFile("127.0.0.1:70000", NAME,
+                new ByteArrayInputStream(content)));
+    }
+
+    /**
+     * A minimal FTP server, serving the control connections one after the
+     * other on its own thread. Its files are kept in memory.
+     */
+    private static class FtpServer implements Runnable {
+
+        /** The socket accepting the control connections */
+        private final ServerSocket serverSocket;
+        /** The serving thread */
+        private final Thread thread;
+        /** The files of the server by path */
+        private final Map<String, byte[]> files = new HashMap<String, byte[]>();
+        /** The replies replacing the normal ones, by command */
+        private final Map<String, String> replies = new HashMap<String, String>();
+        /** The number of bytes stored before a drop, -1 for no drop */
+        private int dropAfter = -1;
+        /** The offset of the last REST command */
+        private long restOffset;
+
+        FtpServer() throws IOException {
+            serverSocket = new ServerSocket(0, 1,
+                    InetAddress.getByName("127.0.0.1"));
+            thread = new Thread(this, "FtpServer");
+            thread.start();
+        }
+
+        /** Return the url of the server */
+        String getUrl() {
+            return "127.0.0.1:" + serverSocket.getLocalPort();
+        }
+
+        synchronized void putFile(String path, byte[] data) {
+            files.put(path, data);
+        }
+
+        synchronized byte[] getFile(String path) {
+            return files.get(path);
+        }
+
+        synchronized void replyTo(String command, String reply) {
+            replies.put(command, reply);
+        }
+
+        synchronized void dropStoreAfter(int count) {
+            dropAfter = count;
+        }
+
+        synchronized long getRestOffset() {
+            return restOffset;
+        }
+
+        void close() throws IOException, InterruptedException {
+            serverSocket.close();
+            thread.join(5000);
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket control = serverSocket.accept();
+                    try {
+                        serve(control);
+                    } finally {
+                        control.close();
+                    }
+                } catch (IOException e) {
+                    // closed, or the client gave up
+                }
+            }
+        }
+
+        /** Serve a control connection */
+        private void serve(Socket control) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    control.getInputStream(), "UTF-8"));
+            Writer writer = new OutputStreamWriter(control.getOutputStream(),
+                    "UTF-8");
+            ServerSocket passive = null;
+            synchronized (this) {
+                restOffset = 0;
+            }
+            reply(writer, "220-Welcome", null);
+            reply(writer, "220 Test server", null);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    String command = space < 0 ? line : line.substring(0,
+                            space);
+                    String argument = space < 0 ? "" : line
+                            .substring(space + 1);
+                    if (command.equals("USER")) {
+                        reply(writer, "331 Password required", command);
+                    } else if (command.equals("PASS")) {
+                        reply(writer, "230 Logged in", command);
+                    } else if (command.equals("TYPE")) {
+                        reply(writer, "200 Type set", command);
+                    } else if (command.equals("SIZE")) {
+                        byte[] file = getFile(argument);
+                        reply(writer, file == null ? "550 No such file"
+                                : "213 " + file.length, command);
+                    } else if (command.equals("PASV")) {
+                        passive = new ServerSocket(0, 1,
+                                InetAddress.getByName("127.0.0.1"));
+                        int port = passive.getLocalPort();
+                        reply(writer, "227 Entering Passive Mode (127,0,0,1,"
+                                + (port / 256) + "," + (port % 256) + ")",
+                                command);
+                    } else if (command.equals("REST")) {
+                        synchronized (this) {
+                            restOffset = Long.parseLong(argument);
+                        }
+                        reply(writer, "350 Restarting", command);
+                    } else if (command.equals("STOR")) {
+                        reply(writer, "150 Receiving", command);
+                        Socket data = passive.accept();
+                        boolean dropped;
+                        try {
+                            dropped = store(argument, data.getInputStream());
+                        } finally {
+                            data.close();
+                            passive.close();
+                        }
+                        reply(writer, dropped ? "426 Connection lost"
+                                : "226 Transfer complete", null);
+                    } else if (command.equals("DELE")) {
+                        synchronized (this) {
+                            files.remove(argument);
+                        }
+                        reply(writer, "250 Deleted", command);
+                    } else if (command.equals("RNFR")) {
+                        reply(writer, "350 Ready", command);
+                        String from = argument;
+                        line = reader.readLine();
+                        if (line == null || !line.startsWith("RNTO "))
+                            return;
+                        synchronized (this) {
+                            files.put(line.substring(5), files.remove(from));
+                        }
+                        reply(writer, "250 Renamed", "RNTO");
+                    } else if (command.equals("QUIT")) {
+                        reply(writer, "221 Bye", command);
+                        return;
+                    } else {
+                        reply(writer, "502 Not implemented", null);
+                    }
+                }
+            } finally {
+                if (passive != null)
+                    passive.close();
+            }
+        }
+
+        /**
+         * Store the data into the file from the REST offset, returns whether
+         * the transfer has been dropped
+         */
+        private boolean store(String path, InputStream data) throws IOException {
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = data.read(buffer)) != -1) {
+                received.write(buffer, 0, count);
+            }
+            byte[] bytes = received.toByteArray();
+            synchronized (this) {
+                boolean dropped = dropAfter >= 0 && dropAfter < bytes.length;
+                if (dropped)
+                    bytes = Arrays.copyOf(bytes, dropAfter);
+                byte[] old = files.get(path);
+                int offset = (int) restOffset;
+                byte[] file = new byte[offset + bytes.length];
+                if (old != null)
+                    System.arraycopy(old, 0, file, 0,
+                            Math.min(offset, old.length));
+                System.arraycopy(bytes, 0, file, offset, bytes.length);
+                files.put(path, file);
+                return dropped;
+            }
+        }
+
+        /** Send a reply, or the one replacing it for the command */
+        private void reply(Writer writer, String reply, String command)
+                throws IOException {
+            synchronized (this) {
+                if (command != null && replies.containsKey(command))
+                    reply = replies.get(command);
+            }
+            writer.write(reply + "\r\n");
+            writer.flush();
+        }
+    }
+
+}
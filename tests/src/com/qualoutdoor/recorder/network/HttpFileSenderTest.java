@@ -0,0 +1,438 @@
+package com.qualoutdoor.recorder.network;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the resumable mode of the HttpFileSender against a small HTTP server
+ * running in the test : the chunks dropped in the middle of their request are
+ * sent again, and a failed sending is resumed by the next one without sending
+ * the stored chunks again. The server is also asked which archive entries it
+ * holds already.
+ *
+ * @author Gaborit Nicolas
+ */
+public class HttpFileSenderTest extends TestCase {
+
+    /** The size of the chunks */
+    private static final int CHUNK_SIZE = 64 * 1024;
+    /** The name of the sent file */
+    private static final String NAME = "records.zip";
+
+    /** The server of the test */
+    private HttpServer server;
+    /** The content of the sent file, three whole chunks and a partial one */
+    private byte[] content;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new HttpServer();
+        content = new byte[3 * CHUNK_SIZE + 5000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31 + i / 251);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    /** Send the content in chunks, returns whether it succeeded */
+    private boolean send(TransferStats stats) {
+        HttpFileSender sender = new HttpFileSender("uploadedfile", CHUNK_SIZE);
+        sender.setTransferStats(stats);
+        return sender.sendFile(server.getUrl(), NAME, new ByteArrayInputStream(
+                content));
+    }
+
+    /** The chunks are sent once each, then assembled */
+    public void testSendInChunks() {
+        TransferStats stats = new TransferStats("HTTP", NAME, content.length);
+        assertTrue(send(stats));
+        assertTrue(Arrays.equals(content, server.getFile(NAME)));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1, server.getChunkRequests(i * CHUNK_SIZE));
+        }
+        assertEquals(0, stats.getRetries());
+        assertEquals(content.length, stats.getBytesSent());
+    }
+
+    /** A chunk dropped in the middle of its request is sent again */
+    public void testDropMidChunkThenRetry() {
+        server.dropChunk(CHUNK_SIZE, 1);
+        TransferStats stats = new TransferStats("HTTP", NAME, content.length);
+        assertTrue(send(stats));
+        assertTrue(Arrays.equals(content, server.getFile(NAME)));
+        assertEquals(1, server.getChunkRequests(0));
+        assertEquals(2, server.getChunkRequests(CHUNK_SIZE));
+        assertEquals(1, server.getChunkRequests(2 * CHUNK_SIZE));
+        assertEquals(1, stats.getRetries());
+    }
+
+    /**
+     * A sending failing on a chunk is resumed by the next one, the chunks
+     * stored are not sent again
+     */
+    public void testResumeAfterFailedSending() {
+        // The third chunk is dropped at every attempt
+        server.dropChunk(2 * CHUNK_SIZE, Integer.MAX_VALUE);
+        assertFalse(send(null));
+        assertNull(server.getFile(NAME));
+        assertEquals(1, server.getChunkRequests(CHUNK_SIZE));
+        // The last chunk has not been sent
+        assertEquals(0, server.getChunkRequests(3 * CHUNK_SIZE));
+
+        server.dropChunk(2 * CHUNK_SIZE, 0);
+        assertTrue(send(null));
+        assertTrue(Arrays.equals(content, server.getFile(NAME)));
+        // The stored chunks have been skipped
+        assertEquals(1, server.getChunkRequests(0));
+        assertEquals(1, server.getChunkRequests(CHUNK_SIZE));
+        assertEquals(1, server.getChunkRequests(3 * CHUNK_SIZE));
+    }
+
+    /** The server tells which of the archive entries it holds */
+    public void testQueryHeldEntries() {
+        server.holdEntries(Arrays.asList("aa01", "cc03", "ee05"));
+        HttpFileSender sender = new HttpFileSender("uploadedfile", CHUNK_SIZE);
+        Set<String> held = sender.queryHeldEntries(server.getUrl(),
+                Arrays.asList("aa01", "bb02", "cc03"));
+        // Only the asked hashes are trusted
+        assertEquals(new HashSet<String>(Arrays.asList("aa01", "cc03")), held);
+    }
+
+    /** A server failing to answer holds no entry : the whole archive is sent */
+    public void testQueryHeldEntriesFails() {
+        server.holdEntries(Arrays.asList("aa01"));
+        server.failEntries();
+        HttpFileSender sender = new HttpFileSender("uploadedfile", CHUNK_SIZE);
+        assertTrue(sender.queryHeldEntries(server.getUrl(),
+                Arrays.asList("aa01", "bb02")).isEmpty());
+    }
+
+    /**
+     * A minimal HTTP/1.1 server for the resumable mode, serving each
+     * connection on its own thread with keep-alive. Its chunks and files are
+     * kept in memory.
+     */
+    private static class HttpServer implements Runnable {
+
+        /** The socket accepting the connections */
+        private final ServerSocket serverSocket;
+        /** The accepting thread */
+        private final Thread thread;
+        /** The stored chunks by hash, by file name */
+        private final Map<String, Map<String, byte[]>> chunks = new HashMap<String, Map<String, byte[]>>();
+        /** The assembled files by name */
+        private final Map<String, byte[]> files = new HashMap<String, byte[]>();
+        /** The number of requests received for a chunk, by offset */
+        private final Map<Long, Integer> chunkRequests = new HashMap<Long, Integer>();
+        /** The hashes of the archive entries held */
+        private final Set<String> heldEntries = new HashSet<String>();
+        /** Whether the entries query fails */
+        private boolean entriesFailing;
+        /** The offset of the chunk to drop */
+        private long dropOffset = -1;
+        /** The number of requests of the chunk still to drop */
+        private int dropCount;
+
+        HttpServer() throws IOException {
+            serverSocket = new ServerSocket(0, 10,
+                    InetAddress.getByName("127.0.0.1"));
+            thread = new Thread(this, "HttpServer");
+            thread.start();
+        }
+
+        /** Return the url of the server */
+        String getUrl() {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/upload";
+        }
+
+        synchronized byte[] getFile(String name) {
+            return files.get(name);
+        }
+
+        synchronized int getChunkRequests(long offset) {
+            Integer count = chunkRequests.get(offset);
+            return count == null ? 0 : count;
+        }
+
+        /**
+         * Drop the next requests of the chunk at the given offset, in the
+         * middle of their body
+         */
+        synchronized void dropChunk(long offset, int count) {
+            dropOffset = offset;
+            dropCount = count;
+        }
+
+        synchronized void holdEntries(Collection<String> hashes) {
+            heldEntries.addAll(hashes);
+        }
+
+        synchronized void failEntries() {
+            entriesFailing = true;
+        }
+
+        void close() throws IOException, InterruptedException {
+            serverSocket.close();
+            thread.join(5000);
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                new Thread("HttpServer connection") {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            // the client has closed the connection
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {}
+                        }
+                    }
+                }.start();
+            }
+        }
+
+        /** Serve the requests of a kept alive connection */
+        private void serve(Socket socket) throws IOException {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                String[] request = requestLine.split(" ");
+                int length = 0;
+                String boundary = null;
+                String header;
+                while ((header = readLine(in)) != null && header.length() > 0) {
+                    String lower = header.toLowerCase();
+                    if (lower.startsWith("content-length:"))
+                        length = Integer.parseInt(header.substring(15).trim());
+                    int index = lower.indexOf("boundary=");
+                    if (lower.startsWith("content-type:") && index >= 0)
+                        boundary = header.substring(index + 9).trim();
+                }
+                if (request[0].equals("GET")) {
+                    reply(out, 200, heldChunks(request[1]));
+                    continue;
+                }
+                // Read the head of the form, which tells if it is dropped
+                byte[] body = new byte[length];
+                int half = length / 2;
+                readFully(in, body, 0, half);
+                Map<String, byte[]> fields = parseForm(body, half, boundary);
+                if (fields.containsKey("offset") && isDropped(fields)) {
+                    // Dropped in the middle of the chunk
+                    return;
+                }
+                readFully(in, body, half, length - half);
+                fields = parseForm(body, length, boundary);
+                if (fields.containsKey("entries")) {
+                    queryEntries(out, text(fields.get("entries")));
+                    continue;
+                }
+                reply(out, post(fields), "");
+            }
+        }
+
+        /**
+         * Return the hashes of the chunks held for the file named in the
+         * query, one per line
+         */
+        private synchronized String heldChunks(String path) throws IOException {
+            String name = URLDecoder.decode(
+                    path.substring(path.indexOf("upload=") + 7), "UTF-8");
+            StringBuilder held = new StringBuilder();
+            if (chunks.containsKey(name)) {
+                for (String hash : chunks.get(name).keySet()) {
+                    held.append(hash).append('\n');
+                }
+            }
+            return held.toString();
+        }
+
+        /**
+         * Reply the held hashes among the asked ones, one per line, and one
+         * more that was not asked
+         */
+        private void queryEntries(OutputStream out, String asked)
+                throws IOException {
+            StringBuilder held = new StringBuilder();
+            boolean failing;
+            synchronized (this) {
+                failing = entriesFailing;
+                for (String hash : asked.split(",")) {
+                    if (heldEntries.contains(hash))
+                        held.append(hash).append('\n');
+                }
+            }
+            held.append("ffff\n");
+            if (failing)
+                reply(out, 500, "");
+            else
+                reply(out, 200, held.toString());
+        }
+
+        /** Count the request of a chunk, returns whether it is dropped */
+        private synchronized boolean isDropped(Map<String, byte[]> fields) {
+            long offset = Long.parseLong(text(fields.get("offset")));
+            Integer count = chunkRequests.get(offset);
+            chunkRequests.put(offset, count == null ? 1 : count + 1);
+            if (offset != dropOffset || dropCount == 0)
+                return false;
+            dropCount--;
+            return true;
+        }
+
+        /** Handle a posted form, returns the status code */
+        private synchronized int post(Map<String, byte[]> fields) {
+            if (fields.containsKey("hash")) {
+                // Store a chunk, checking its hash
+                byte[] chunk = fields.get("uploadedfile");
+                String hash = text(fields.get("hash"));
+                if (chunk == null || !hash.equals(sha1(chunk)))
+                    return 400;
+                String name = text(fields.get("upload"));
+                if (!chunks.containsKey(name))
+                    chunks.put(name, new HashMap<String, byte[]>());
+                chunks.get(name).put(hash, chunk);
+                return 200;
+            }
+            if (fields.containsKey("chunks")) {
+                // Assemble the file
+                String name = text(fields.get("upload"));
+                ByteArrayOutputStream file = new ByteArrayOutputStream();
+                for (String hash : text(fields.get("chunks")).split(",")) {
+                    byte[] chunk = chunks.containsKey(name) ? chunks.get(name)
+                            .get(hash) : null;
+                    if (chunk == null)
+                        return 400;
+                    file.write(chunk, 0, chunk.length);
+                }
+                if (file.size() != Long.parseLong(text(fields.get("length"))))
+                    return 400;
+                files.put(name, file.toByteArray());
+                return 200;
+            }
+            return 400;
+        }
+
+        /**
+         * Parse the complete fields of a multipart form among its first bytes
+         */
+        private static Map<String, byte[]> parseForm(byte[] body, int length,
+                String boundary) throws IOException {
+            Map<String, byte[]> fields = new HashMap<String, byte[]>();
+            // ISO-8859-1 keeps one char per byte
+            String form = new String(body, 0, length, "ISO-8859-1");
+            String delimiter = "--" + boundary + "\r\n";
+            int start = form.indexOf(delimiter);
+            while (start >= 0) {
+                int headEnd = form.indexOf("\r\n\r\n", start);
+                int end = form.indexOf("\r\n--" + boundary, headEnd);
+                if (headEnd < 0 || end < 0)
+                    // Not received whole
+                    break;
+                String head = form.substring(start, headEnd);
+                int nameStart = head.indexOf("name=\"") + 6;
+                String name = head.substring(nameStart,
+                        head.indexOf('"', nameStart));
+                fields.put(name, form.substring(headEnd + 4, end).getBytes(
+                        "ISO-8859-1"));
+                start = form.indexOf(delimiter, end);
+            }
+            return fields;
+        }
+
+        /** Send a response with a text body */
+        private static void reply(OutputStream out, int status, String text)
+                throws IOException {
+            byte[] body = text.getBytes("UTF-8");
+            out.write(("HTTP/1.1 " + status + (status == 200 ? " OK" : " Error")
+                    + "\r\nContent-Type: text/plain\r\nContent-Length: "
+                    + body.length + "\r\n\r\n").getBytes("UTF-8"));
+            out.write(body);
+            out.flush();
+        }
+
+        /** Read a line of the request, null at the end of the stream */
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1)
+                    return line.length() == 0 ? null : line.toString();
+                if (c != '\r')
+                    line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        /** Read exactly count bytes into the buffer */
+        private static void readFully(InputStream in, byte[] buffer,
+                int offset, int count) throws IOException {
+            while (count > 0) {
+                int read = in.read(buffer, offset, count);
+                if (read < 0)
+                    throw new IOException("Request truncated");
+                offset += read;
+                count -= read;
+            }
+        }
+
+        /** Return a field as text */
+        private static String text(byte[] field) {
+            try {
+                return new String(field, "UTF-8");
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /** Return the SHA-1 hash of the data in hexadecimal */
+        private static String sha1(byte[] data) {
+            try {
+                StringBuilder hex = new StringBuilder();
+                for (byte b : MessageDigest.getInstance("SHA-1").digest(data)) {
+                    hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    hex.append(Character.forDigit(b & 0xF, 16));
+                }
+                return hex.toString();
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+package com.qualoutdoor.recorder.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+/**
+ * Tests of the measures of the ThroughputTester, against a server of the test
+ * receiving or sending the data at a known rate, or failing. The goodputs are
+ * only checked loosely : the timings of a device or an emulator vary.
+ *
+ * @author Gaborit Nicolas
+ */
+public class ThroughputTesterTest extends TestCase {
+
+    /** The rate in bytes per second at which the server receives or sends */
+    private static final int RATE = 256 * 1024;
+    /** Duration in ms of a transfer */
+    private static final long DURATION = 3000;
+
+    /** The server of the test */
+    private TestServer server;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (server != null)
+            server.close();
+        super.tearDown();
+    }
+
+    /** Return a tester of the server of the test */
+    private ThroughputTester createTester() {
+        return new ThroughputTester("127.0.0.1", server.getPort(), "/file",
+                "/upload", DURATION, 60000, 2);
+    }
+
+    /** Check that a goodput is about the rate of the server */
+    private static void checkGoodput(String name, long goodput) {
+        long expected = RATE * 8L;
+        Log.i("ThroughputTesterTest", name + " goodput " + goodput
+                + " bit/s, expected " + expected);
+        assertTrue(name + " goodput " + goodput + " instead of " + expected,
+                goodput > expected / 4 && goodput < expected * 4);
+    }
+
+    /**
+     * The upload goodput is the rate of the server : the data waiting in the
+     * send buffer is not counted
+     */
+    public void testUploadGoodput() throws IOException {
+        server = new TestServer(TestServer.RECEIVE);
+        ThroughputTester.Result result = createTester().measure(false);
+        assertNotNull(result);
+        checkGoodput("upload", result.goodput);
+    }
+
+    /** The download goodput is the rate of the server */
+    public void testDownloadGoodput() throws IOException {
+        server = new TestServer(TestServer.SEND);
+        ThroughputTester.Result result = createTester().measure(true);
+        assertNotNull(result);
+        checkGoodput("download", result.goodput);
+    }
+
+    /** There is no measure when the server replies with an error status */
+    public void testErrorStatus() throws IOException {
+        server = new TestServer(TestServer.NOT_FOUND);
+        assertNull(createTester().measure(true));
+        assertNull(createTester().measure(false));
+    }
+
+    /** There is no measure when the file ends before the test duration */
+    public void testShortFile() throws IOException {
+        server = new TestServer(TestServer.SHORT_FILE);
+        assertNull(createTester().measure(true));
+    }
+
+    /** There is no measure when the server closes the upload */
+    public void testUploadClosed() throws IOException {
+        server = new TestServer(TestServer.CLOSE);
+        assertNull(createTester().measure(false));
+    }
+
+    /** There is no measure when the server can't be reached */
+    public void testUnreachableServer() throws Exception {
+        server = new TestServer(TestServer.RECEIVE);
+        ThroughputTester tester = createTester();
+        server.close();
+        server = null;
+        assertNull(tester.measure(true));
+        assertNull(tester.measure(false));
+    }
+
+    /**
+     * A server handling each connection in its own thread, as its mode says.
+     * The connections of the latency probes are closed without any data.
+     */
+    private static class TestServer implements Runnable {
+
+        /** Read what is received at RATE bytes per second, never reply */
+        static final int RECEIVE = 0;
+        /** Reply with a file sent at RATE bytes per second, never ending */
+        static final int SEND = 1;
+        /** Reply with a 404 status */
+        static final int NOT_FOUND = 2;
+        /** Reply with a file of a few bytes */
+        static final int SHORT_FILE = 3;
+        /** Close the connection as soon as the request is received */
+        static final int CLOSE = 4;
+
+        /** The socket accepting the connections */
+        private final ServerSocket serverSocket;
+        /** The accepting thread */
+        private final Thread thread;
+        /** The mode of the server */
+        private final int mode;
+
+        TestServer(int mode) throws IOException {
+            this.mode = mode;
+            serverSocket = new ServerSocket();
+            // A small receive buffer, which fills up quickly
+            serverSocket.setReceiveBufferSize(16 * 1024);
+            serverSocket.bind(new InetSocketAddress(
+                    InetAddress.getByName("127.0.0.1"), 0));
+            thread = new Thread(this, "TestServer");
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException, InterruptedException {
+            serverSocket.close();
+            thread.join(5000);
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                new Thread("TestServer connection") {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            // the client has closed the connection
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {}
+                        }
+                    }
+                }.start();
+            }
+        }
+
+        /** Serve a connection */
+        private void serve(Socket socket) throws IOException {
+            InputStream in = socket.getInputStream();
+            if (mode == RECEIVE) {
+                receive(in);
+                return;
+            }
+            if (!readHead(in))
+                // a latency probe
+                return;
+            OutputStream out = socket.getOutputStream();
+            switch (mode) {
+            case SEND:
+                out.write("HTTP/1.1 200 OK\r\n\r\n".getBytes("US-ASCII"));
+                send(out);
+                break;
+            case NOT_FOUND:
+                out.write(("HTTP/1.1 404 Not Found\r\nContent-Length: 9\r\n"
+                        + "Connection: close\r\n\r\nNot found").getBytes("US-ASCII"));
+                break;
+            case SHORT_FILE:
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n"
+                        + "Connection: close\r\n\r\nshort").getBytes("US-ASCII"));
+                break;
+            }
+            out.flush();
+        }
+
+        /**
+         * Read the head of a request, returns false if the connection is
+         * closed before
+         */
+        private boolean readHead(InputStream in) throws IOException {
+            int ends = 0;
+            while (ends < 4) {
+                int b = in.read();
+                if (b < 0)
+                    return false;
+                // counting the bytes of "\r\n\r\n"
+                if (b == (ends % 2 == 0 ? '\r' : '\n')) {
+                    ends++;
+                } else {
+                    ends = b == '\r' ? 1 : 0;
+                }
+            }
+            return true;
+        }
+
+        /** Read the stream at RATE bytes per second until its end */
+        private void receive(InputStream in) throws IOException {
+            byte[] buffer = new byte[RATE / 10];
+            long start = System.nanoTime();
+            long received = 0;
+            while (true) {
+                int count = in.read(buffer);
+                if (count < 0)
+                    return;
+                received += count;
+                // Wait until the bytes received fit the rate
+                if (!waitFor(start, received))
+                    return;
+            }
+        }
+
+        /** Write data at RATE bytes per second until the client closes */
+        private void send(OutputStream out) throws IOException {
+            byte[] buffer = new byte[RATE / 10];
+            long start = System.nanoTime();
+            long sent = 0;
+            while (true) {
+                out.write(buffer);
+                sent += buffer.length;
+                // Wait until the bytes sent fit the rate
+                if (!waitFor(start, sent))
+                    return;
+            }
+        }
+
+        /**
+         * Wait until the given bytes fit the rate from the start time,
+         * returns false if interrupted
+         */
+        private boolean waitFor(long start, long bytes) {
+            long due = start + bytes * 1000000000L / RATE;
+            long wait = (due - System.nanoTime()) / 1000000;
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
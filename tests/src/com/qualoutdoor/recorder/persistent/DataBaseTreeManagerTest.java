@@ -0,0 +1,242 @@
+package com.qualoutdoor.recorder.persistent;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Tests of the leaves' details read along with the leaves by the
+ * DataBaseTreeManager, compared with the details read leaf by leaf as the
+ * export did before. Both export times are logged, not compared : the timings
+ * of a device vary.
+ *
+ * The tables are created in an in-memory database.
+ *
+ * @author Gaborit Nicolas
+ */
+public class DataBaseTreeManagerTest extends AndroidTestCase {
+
+    /** Number of metric nodes the leaves are spread under */
+    private static final int METRIC_COUNT = 3;
+    /** Numbers of leaves of the export benchmark */
+    private static final int[] BENCHMARK_SIZES = new int[] {
+            1000, 10000
+    };
+
+    /** The in-memory database */
+    private SQLiteDatabase db;
+    /** The creator of the tables */
+    private SQLDataBaseCreator creator;
+    /** The compiled statements */
+    private StatementCache statements;
+    /** The manager inserting the measures */
+    private DataBaseTreeManager writer;
+    /** Query inserting a measure */
+    private String insertDataQuery;
+    /** Query reading the details of a leaf, as SQLConnector.getLeafDetails() */
+    private String leafDetailsQuery;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create(null);
+        creator = new SQLDataBaseCreator(getContext());
+        creator.onCreate(db);
+        statements = new StatementCache(db);
+        writer = new DataBaseTreeManager(db, creator.getTableReference(),
+                statements, new TreeNodeCache());
+        String measures = creator.getTableMeasure().getName();
+        insertDataQuery = "INSERT INTO " + measures
+                + " ( LAT , LNG, DATA) VALUES ( ? , ? , ? );";
+        leafDetailsQuery = "SELECT DATE , LAT , LNG , DATA FROM " + measures
+                + " WHERE ID = ?";
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        statements.clear();
+        db.close();
+        super.tearDown();
+    }
+
+    /** Return a manager reading the leaves' details, up to the given ID */
+    private DataBaseTreeManager reader(long maxId) {
+        return new DataBaseTreeManager(db, creator.getTableReference(),
+                statements, new TreeNodeCache(), creator.getTableMeasure(),
+                maxId);
+    }
+
+    /** Insert a leaf under the metric node of the given index */
+    private void insertLeaf(int metric, int ref) throws DataBaseException {
+        writer.reset();
+        for (int level = 1; level < DataBaseTreeManager.LEAF_LEVEL - 1; level++) {
+            writer.findOrCreate(level);
+        }
+        writer.findOrCreate(metric);
+        writer.insertLeaf(ref);
+    }
+
+    /** Insert measures and their leaves, in one transaction */
+    private void insertMeasures(int count) throws DataBaseException {
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                SQLiteStatement insert = statements.get(insertDataQuery);
+                insert.bindDouble(1, 47.2 + i / 1000.0);
+                insert.bindDouble(2, -1.55 - i / 1000.0);
+                insert.bindString(3, "-" + (70 + i % 40));
+                insertLeaf(i % METRIC_COUNT, (int) insert.executeInsert());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Return the details of a leaf read with their own query */
+    private String[] readLeafDetails(int ref) {
+        Cursor c = db.rawQuery(leafDetailsQuery, new String[] {
+            Integer.toString(ref)
+        });
+        try {
+            assertTrue("no measure " + ref, c.moveToFirst());
+            String[] details = new String[c.getColumnCount()];
+            for (int i = 0; i < details.length; i++) {
+                details[i] = c.getString(i);
+            }
+            return details;
+        } finally {
+            c.close();
+        }
+    }
+
+    /** Every leaf is read with the same details as its own query gives */
+    public void testLeafDetails() throws DataBaseException {
+        insertMeasures(50);
+        DataBaseTreeManager reader = reader(Long.MAX_VALUE);
+        int leaves = 0;
+        while (reader.moveToNextNode()) {
+            if (reader.getCursor().getLevel() != DataBaseTreeManager.LEAF_LEVEL)
+                continue;
+            String[] expected = readLeafDetails(reader.getCursor()
+                    .getReference());
+            assertEquals(DataBaseTreeManager.LEAF_DETAIL_COUNT,
+                    expected.length);
+            for (int i = 0; i < DataBaseTreeManager.LEAF_DETAIL_COUNT; i++) {
+                assertEquals(expected[i], reader.getLeafDetail(i));
+            }
+            leaves++;
+        }
+        assertEquals(50, leaves);
+    }
+
+    /** A leaf without a measure, or a node which is not a leaf, has no details */
+    public void testMissingLeafDetails() throws DataBaseException {
+        insertLeaf(0, 999);
+        DataBaseTreeManager reader = reader(Long.MAX_VALUE);
+        assertTrue(reader.moveToNextNode());
+        try {
+            reader.getLeafDetail(0);
+            fail("A node has leaf details");
+        } catch (DataBaseException e) {
+            // not a leaf
+        }
+        while (reader.getCursor().getLevel() != DataBaseTreeManager.LEAF_LEVEL) {
+            assertTrue(reader.moveToNextNode());
+        }
+        try {
+            reader.getLeafDetail(0);
+            fail("A leaf without measure has details");
+        } catch (DataBaseException e) {
+            assertEquals("can't find leaf ", e.getMessage());
+        }
+        reader.reset();
+    }
+
+    /** The nodes inserted after the given ID are not read */
+    public void testMaxId() throws DataBaseException {
+        insertMeasures(10);
+        Cursor c = db.rawQuery("SELECT max( ID ) FROM "
+                + creator.getTableReference().getName(), null);
+        c.moveToFirst();
+        long maxId = c.getLong(0);
+        c.close();
+        insertMeasures(10);
+        assertEquals(10, countLeaves(reader(maxId)));
+        assertEquals(20, countLeaves(reader(Long.MAX_VALUE)));
+    }
+
+    /** Return the number of leaves read by a manager */
+    private static int countLeaves(DataBaseTreeManager reader) {
+        int leaves = 0;
+        while (reader.moveToNextNode()) {
+            if (reader.getCursor().getLevel() == DataBaseTreeManager.LEAF_LEVEL)
+                leaves++;
+        }
+        return leaves;
+    }
+
+    /**
+     * Log the times to read the details along with the leaves and with a
+     * query per leaf : the first should be shorter, and grow linearly
+     */
+    public void testExportTime() throws DataBaseException {
+        int inserted = 0;
+        long previousJoined = 0;
+        for (int size : BENCHMARK_SIZES) {
+            insertMeasures(size - inserted);
+            inserted = size;
+            long joined = exportJoined();
+            long perLeaf = exportPerLeaf();
+            Log.i("DataBaseTreeManagerTest", size + " leaves : joined "
+                    + joined / 1000000 + " ms, per leaf " + perLeaf / 1000000
+                    + " ms");
+            if (previousJoined != 0) {
+                // Ten times the leaves, about ten times the time
+                Log.i("DataBaseTreeManagerTest", "10 times the leaves took "
+                        + (float) joined / previousJoined + " times longer");
+            }
+            previousJoined = joined;
+        }
+    }
+
+    /** Read every leaf detail along with the leaves, return the time taken */
+    private long exportJoined() throws DataBaseException {
+        long start = System.nanoTime();
+        DataBaseTreeManager reader = reader(Long.MAX_VALUE);
+        int length = 0;
+        while (reader.moveToNextNode()) {
+            if (reader.getCursor().getLevel() == DataBaseTreeManager.LEAF_LEVEL) {
+                for (int i = 0; i < DataBaseTreeManager.LEAF_DETAIL_COUNT; i++) {
+                    length += reader.getLeafDetail(i).length();
+                }
+            }
+        }
+        assertTrue(length > 0);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Read every leaf detail with a query per leaf, as the export did before,
+     * return the time taken
+     */
+    private long exportPerLeaf() {
+        long start = System.nanoTime();
+        DataBaseTreeManager reader = new DataBaseTreeManager(db,
+                creator.getTableReference(), statements, new TreeNodeCache());
+        int length = 0;
+        while (reader.moveToNextNode()) {
+            if (reader.getCursor().getLevel() == DataBaseTreeManager.LEAF_LEVEL) {
+                for (String detail : readLeafDetails(reader.getCursor()
+                        .getReference())) {
+                    length += detail.length();
+                }
+            }
+        }
+        assertTrue(length > 0);
+        return System.nanoTime() - start;
+    }
+
+}
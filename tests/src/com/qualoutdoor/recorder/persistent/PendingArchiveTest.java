@@ -0,0 +1,246 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the manifest of the PendingArchive, of the archives made without
+ * the entries a server holds already, and of the recovery of the entries
+ * left by a crash.
+ *
+ * @author Gaborit Nicolas
+ */
+public class PendingArchiveTest extends TestCase {
+
+    /** The directory of the test files */
+    private File directory;
+    /** The tested archive */
+    private PendingArchive archive;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("archive", "");
+        directory.delete();
+        directory.mkdirs();
+        archive = new PendingArchive(new File(directory, "pending.zip"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    /** Return the content of an entry named after its index */
+    private static byte[] content(int index) {
+        byte[] content = new byte[10000 + index * 1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * index + i / 17);
+        }
+        return content;
+    }
+
+    /** Add an entry holding the given content */
+    private void addEntry(String name, byte[] content) throws IOException {
+        OutputStream out = archive.beginEntry(name);
+        try {
+            out.write(content);
+            archive.commitEntry();
+        } finally {
+            archive.abortEntry();
+        }
+    }
+
+    /** Return the SHA-1 hash of the data in hexadecimal */
+    private static String sha1(byte[] data) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-1").digest(data)) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /** Return the names of the entries of a zip file, in order */
+    private static List<String> entryNames(File file) throws IOException {
+        List<String> names = new ArrayList<String>();
+        ZipFile zip = new ZipFile(file);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                names.add(entries.nextElement().getName());
+            }
+        } finally {
+            zip.close();
+        }
+        return names;
+    }
+
+    /** Return the content of an entry of a zip file, as a zip reader reads it */
+    private static byte[] readEntry(File file, String name) throws IOException {
+        ZipFile zip = new ZipFile(file);
+        try {
+            InputStream in = zip.getInputStream(zip.getEntry(name));
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+            in.close();
+            return content.toByteArray();
+        } finally {
+            zip.close();
+        }
+    }
+
+    /** The manifest holds the hash of each committed entry, in order */
+    public void testManifest() throws Exception {
+        addEntry("a", content(1));
+        addEntry("b", content(2));
+        // An aborted entry is not recorded
+        OutputStream out = archive.beginEntry("c");
+        out.write(content(3));
+        archive.abortEntry();
+
+        Map<String, String> manifest = PendingArchive.readManifest(archive
+                .getFile());
+        assertEquals(Arrays.asList("a", "b"),
+                new ArrayList<String>(manifest.keySet()));
+        assertEquals(entryNames(archive.getFile()),
+                new ArrayList<String>(manifest.keySet()));
+        for (String name : manifest.keySet()) {
+            assertEquals(sha1(readEntry(archive.getFile(), name)),
+                    manifest.get(name));
+        }
+        assertEquals(sha1(content(1)), manifest.get("a"));
+    }
+
+    /** The excluded entries are not copied, the others are unchanged */
+    public void testCopyEntries() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            addEntry("entry" + i, content(i));
+        }
+        File copy = new File(directory, "missing.zip");
+        int count = PendingArchive.copyEntries(archive.getFile(),
+                Arrays.asList("entry0", "entry2"), copy);
+        assertEquals(2, count);
+        assertEquals(Arrays.asList("entry1", "entry3"), entryNames(copy));
+        assertTrue(Arrays.equals(content(1), readEntry(copy, "entry1")));
+        assertTrue(Arrays.equals(content(3), readEntry(copy, "entry3")));
+        // The source is left as it was
+        assertEquals(4, entryNames(archive.getFile()).size());
+    }
+
+    /** Nothing excluded, the copy holds every entry */
+    public void testCopyAllEntries() throws Exception {
+        addEntry("a", content(1));
+        addEntry("b", content(2));
+        File copy = new File(directory, "all.zip");
+        assertEquals(2, PendingArchive.copyEntries(archive.getFile(),
+                Collections.<String> emptyList(), copy));
+        assertEquals(entryNames(archive.getFile()), entryNames(copy));
+    }
+
+    /** The manifest is moved with the archive, the next entry starts anew */
+    public void testMoveTo() throws Exception {
+        addEntry("a", content(1));
+        File moved = new File(directory, "queued.zip");
+        assertTrue(archive.moveTo(moved));
+        assertFalse(archive.getFile().exists());
+        assertFalse(PendingArchive.getManifestFile(archive.getFile()).exists());
+        assertEquals(Collections.singleton("a"), PendingArchive
+                .readManifest(moved).keySet());
+
+        addEntry("b", content(2));
+        assertEquals(Collections.singletonList("b"),
+                entryNames(archive.getFile()));
+        assertEquals(Collections.singleton("b"), PendingArchive
+                .readManifest(archive.getFile()).keySet());
+    }
+
+    /** An archive moved without its manifest has its entries all uploaded */
+    public void testNoManifest() throws Exception {
+        addEntry("a", content(1));
+        PendingArchive.getManifestFile(archive.getFile()).delete();
+        assertTrue(PendingArchive.readManifest(archive.getFile()).isEmpty());
+    }
+
+    /** An entry begun before a crash is forgotten by the next entry */
+    public void testRecoverBegunEntry() throws Exception {
+        addEntry("a", content(1));
+        OutputStream out = archive.beginEntry("b");
+        out.write(content(2));
+        // A new archive object, as after a crash
+        archive = new PendingArchive(archive.getFile());
+        addEntry("c", content(3));
+        assertEquals(Arrays.asList("a", "c"), entryNames(archive.getFile()));
+        assertTrue(Arrays.equals(content(3), readEntry(archive.getFile(), "c")));
+    }
+
+    /**
+     * A journal left after the commit of an entry, as if its deletion had not
+     * reached the disk, does not roll the entry back
+     */
+    public void testRecoverCommittedEntry() throws Exception {
+        addEntry("a", content(1));
+        File journal = new File(archive.getFile().getPath() + ".journal");
+        OutputStream out = archive.beginEntry("b");
+        out.write(content(2));
+        byte[] saved = readFile(journal);
+        archive.commitEntry();
+        assertFalse(journal.exists());
+        FileOutputStream restored = new FileOutputStream(journal);
+        restored.write(saved);
+        restored.close();
+
+        archive = new PendingArchive(archive.getFile());
+        addEntry("c", content(3));
+        assertFalse(journal.exists());
+        assertEquals(Arrays.asList("a", "b", "c"),
+                entryNames(archive.getFile()));
+        assertTrue(Arrays.equals(content(2), readEntry(archive.getFile(), "b")));
+    }
+
+    /** Return the content of a file */
+    private static byte[] readFile(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                int count = in.read(content, read, content.length - read);
+                if (count < 0)
+                    throw new IOException("Truncated " + file);
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+}
@@ -0,0 +1,263 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Tests of the schema created by the SQLDataBaseCreator, of its migrations
+ * from the former versions, and of the inserts as the tree grows. The insert
+ * latencies are only logged : the timings of a device vary.
+ *
+ * The tables are created in an in-memory database, the database file of the
+ * application is never opened.
+ *
+ * @author Gaborit Nicolas
+ */
+public class SQLDataBaseCreatorTest extends AndroidTestCase {
+
+    /** Number of leaves inserted between two latency measures */
+    private static final int BATCH_SIZE = 1000;
+    /** Number of latency measures */
+    private static final int BATCH_COUNT = 50;
+
+    /** The in-memory database */
+    private SQLiteDatabase db;
+    /** The tested creator */
+    private SQLDataBaseCreator creator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create(null);
+        creator = new SQLDataBaseCreator(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    /** Return the names of the indexes of the reference table */
+    private List<String> referenceIndexes() {
+        List<String> names = new ArrayList<String>();
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master"
+                + " WHERE type = 'index' AND tbl_name = ? ORDER BY name",
+                new String[] {
+                    creator.getTableReference().getName()
+                });
+        while (c.moveToNext()) {
+            names.add(c.getString(0));
+        }
+        c.close();
+        return names;
+    }
+
+    /** Return the number of tables having the given name */
+    private int tableCount(String name) {
+        Cursor c = db.rawQuery("SELECT count(*) FROM sqlite_master"
+                + " WHERE type = 'table' AND name = ?", new String[] {
+            name
+        });
+        c.moveToFirst();
+        int count = c.getInt(0);
+        c.close();
+        return count;
+    }
+
+    /** Return the (ID, FATHER, VALUE, LEVEL) line of a node */
+    private int[] node(int id) {
+        Cursor c = db.rawQuery("SELECT ID , FATHER , VALUE , LEVEL FROM "
+                + creator.getTableReference().getName() + " WHERE ID = ?",
+                new String[] {
+                    Integer.toString(id)
+                });
+        assertTrue("no node " + id, c.moveToFirst());
+        int[] node = new int[] {
+                c.getInt(0), c.getInt(1), c.getInt(2), c.getInt(3)
+        };
+        c.close();
+        return node;
+    }
+
+    /** Return the "level:value" of every node, in depth-first order */
+    private List<String> depthFirst() {
+        DataBaseTreeManager manager = new DataBaseTreeManager(db,
+                creator.getTableReference(), new StatementCache(db),
+                new TreeNodeCache());
+        List<String> nodes = new ArrayList<String>();
+        while (manager.moveToNextNode()) {
+            nodes.add(manager.getCursor().getLevel() + ":"
+                    + manager.getCursor().getReference());
+        }
+        return nodes;
+    }
+
+    /** A new database holds the root and both indexes */
+    public void testCreate() {
+        creator.onCreate(db);
+        assertTrue(Arrays.equals(new int[] {
+                DataBaseTreeManager.ROOT_ID, 0, 0, 0
+        }, node(DataBaseTreeManager.ROOT_ID)));
+        assertEquals(
+                Arrays.asList("recorder_tt_father", "recorder_tt_father_value"),
+                referenceIndexes());
+        assertEquals(1, tableCount(creator.getTableMeasure().getName()));
+    }
+
+    /**
+     * The tree stored with shifted lines is rebuilt with the father IDs, in the
+     * same depth-first order, and the measures are kept
+     */
+    public void testUpgradeFromVersion1() {
+        String name = creator.getTableReference().getName();
+        String measures = creator.getTableMeasure().getName();
+        db.execSQL("CREATE TABLE " + name
+                + " ( LINE INTEGER , VALUE INTEGER NOT NULL , LEVEL INTEGER );");
+        db.execSQL(creator.getTableMeasure().createTableintoDB());
+        // A child was inserted right after its father, shifting the lines
+        // below : the lines are the depth-first order
+        int[][] lines = new int[][] {
+                {
+                        2, 0, 0
+                }, {
+                        3, 10, 1
+                }, {
+                        4, 100, 2
+                }, {
+                        5, 1, 3
+                }, {
+                        6, 101, 2
+                }, {
+                        7, 11, 1
+                }, {
+                        8, 110, 2
+                }, {
+                        9, 2, 3
+                }
+        };
+        for (int[] line : lines) {
+            db.execSQL("INSERT INTO " + name
+                    + " (LINE,VALUE,LEVEL) VALUES (?,?,?);", new Object[] {
+                    line[0], line[1], line[2]
+            });
+        }
+        db.execSQL("INSERT INTO " + measures
+                + " (LAT,LNG,DATA) VALUES (1.5,2.5,'first');");
+        db.execSQL("INSERT INTO " + measures
+                + " (LAT,LNG,DATA) VALUES (3.5,4.5,'second');");
+
+        creator.onUpgrade(db, 1, 3);
+
+        assertEquals(0, tableCount(name + "_v1"));
+        assertEquals(
+                Arrays.asList("recorder_tt_father", "recorder_tt_father_value"),
+                referenceIndexes());
+        assertEquals(Arrays.asList("1:10", "2:100", "3:1", "2:101", "1:11",
+                "2:110", "3:2"), depthFirst());
+        // The root keeps its ID, the IDs are given in reverse line order
+        assertTrue(Arrays.equals(new int[] {
+                DataBaseTreeManager.ROOT_ID, 0, 0, 0
+        }, node(DataBaseTreeManager.ROOT_ID)));
+        assertTrue(Arrays.equals(new int[] {
+                8, 1, 10, 1
+        }, node(8)));
+        assertTrue(Arrays.equals(new int[] {
+                5, 8, 101, 2
+        }, node(5)));
+        assertTrue(Arrays.equals(new int[] {
+                2, 3, 2, 3
+        }, node(2)));
+        // The measures waiting to be sent are kept
+        Cursor c = db.rawQuery("SELECT DATA FROM " + measures
+                + " ORDER BY ID", null);
+        assertEquals(2, c.getCount());
+        c.moveToFirst();
+        assertEquals("first", c.getString(0));
+        c.close();
+    }
+
+    /** The version 2 tree is kept, the father index is added */
+    public void testUpgradeFromVersion2() {
+        String name = creator.getTableReference().getName();
+        db.execSQL(creator.getTableReference().createTableintoDB());
+        db.execSQL(creator.getTableMeasure().createTableintoDB());
+        db.execSQL(creator.getTableReference().createIndexintoDB(
+                "recorder_tt_father_value", new String[] {
+                        "FATHER", "VALUE"
+                }));
+        db.execSQL("INSERT INTO " + name
+                + " (ID,FATHER,VALUE,LEVEL) VALUES (1,0,0,0);");
+        db.execSQL("INSERT INTO " + name
+                + " (ID,FATHER,VALUE,LEVEL) VALUES (2,1,10,1);");
+        db.execSQL("INSERT INTO " + name
+                + " (ID,FATHER,VALUE,LEVEL) VALUES (3,1,11,1);");
+
+        creator.onUpgrade(db, 2, 3);
+
+        assertEquals(
+                Arrays.asList("recorder_tt_father", "recorder_tt_father_value"),
+                referenceIndexes());
+        // Newest child first
+        assertEquals(Arrays.asList("1:11", "1:10"), depthFirst());
+    }
+
+    /**
+     * Insert leaves into a growing tree, logging the time to insert a leaf :
+     * it should not grow with the number of leaves already stored
+     */
+    public void testInsertLatency() throws DataBaseException {
+        creator.onCreate(db);
+        DataBaseTreeManager manager = new DataBaseTreeManager(db,
+                creator.getTableReference(), new StatementCache(db),
+                new TreeNodeCache());
+        // Warm up : the statements are compiled and the nodes cached
+        insertLeaves(manager, 0);
+        long first = 0;
+        long last = 0;
+        for (int batch = 1; batch <= BATCH_COUNT; batch++) {
+            long time = insertLeaves(manager, batch * BATCH_SIZE);
+            Log.i("SQLDataBaseCreatorTest", (batch + 1) * BATCH_SIZE
+                    + " leaves : " + time / BATCH_SIZE + " ns per insert");
+            if (batch == 1)
+                first = time;
+            last = time;
+        }
+        // The former line-shifting tree rewrote the lines below each insert,
+        // a latency growing with the table size
+        Log.i("SQLDataBaseCreatorTest", "last batch took " + (float) last
+                / first + " times the first one");
+    }
+
+    /**
+     * Insert a batch of leaves under a few measure contexts, as the
+     * SQLConnector does, and return the time taken in nanoseconds
+     */
+    private long insertLeaves(DataBaseTreeManager manager, int firstRef)
+            throws DataBaseException {
+        long start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (int ref = firstRef; ref < firstRef + BATCH_SIZE; ref++) {
+                manager.reset();
+                // The metric node changes, the nodes above are shared
+                for (int level = 1; level < DataBaseTreeManager.LEAF_LEVEL - 1; level++) {
+                    manager.findOrCreate(level);
+                }
+                manager.findOrCreate(ref % 4);
+                manager.insertLeaf(ref);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return System.nanoTime() - start;
+    }
+
+}
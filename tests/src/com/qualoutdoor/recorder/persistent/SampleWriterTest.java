@@ -0,0 +1,211 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.SparseArray;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the SampleWriter when the store fails to write a batch : the batch
+ * is kept and written again, and given up after a few attempts.
+ *
+ * @author Gaborit Nicolas
+ */
+public class SampleWriterTest extends TestCase {
+
+    /** Time in ms to wait for the writer */
+    private static final long TIMEOUT = 5000;
+
+    /** The store of the test */
+    private FailingStore store;
+    /** The listener of the test */
+    private CountingListener listener;
+    /** The tested writer */
+    private SampleWriter writer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        store = new FailingStore();
+        listener = new CountingListener();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (writer != null)
+            writer.quit();
+        super.tearDown();
+    }
+
+    /** Create a new sample */
+    private static Sample newSample() {
+        return new Sample(new MeasureContext(), new SparseArray<String>(), 0, 0);
+    }
+
+    /** A batch that fails is written again, nothing is lost */
+    public void testFailedBatchIsWrittenAgain() throws InterruptedException {
+        store.setFailures(2);
+        writer = new SampleWriter(store, 10, 20, listener);
+        List<Sample> samples = new ArrayList<Sample>();
+        for (int i = 0; i < 3; i++) {
+            Sample sample = newSample();
+            samples.add(sample);
+            writer.write(sample);
+        }
+        writer.flush();
+        listener.waitFor(3);
+        assertEquals(3, store.getAttempts());
+        assertEquals(samples, store.getWritten());
+    }
+
+    /** The samples queued meanwhile are written along with the kept batch */
+    public void testKeptBatchIsWrittenWithTheNextSamples()
+            throws InterruptedException {
+        store.setFailures(1);
+        writer = new SampleWriter(store, 10, 200, listener);
+        List<Sample> samples = new ArrayList<Sample>();
+        Sample first = newSample();
+        samples.add(first);
+        writer.write(first);
+        writer.flush();
+        for (int i = 0; i < 4; i++) {
+            Sample sample = newSample();
+            samples.add(sample);
+            writer.write(sample);
+        }
+        listener.waitFor(5);
+        assertEquals(2, store.getAttempts());
+        assertEquals(samples, store.getWritten());
+    }
+
+    /** A batch that keeps failing is given up */
+    public void testFailedBatchIsGivenUp() throws InterruptedException {
+        store.setFailures(Integer.MAX_VALUE);
+        writer = new SampleWriter(store, 10, 20, listener);
+        writer.write(newSample());
+        writer.write(newSample());
+        writer.flush();
+        listener.waitFor(2);
+        assertEquals(SampleWriter.MAX_ATTEMPTS, store.getAttempts());
+        assertTrue(store.getWritten().isEmpty());
+        // The next samples are written normally
+        store.setFailures(0);
+        writer.write(newSample());
+        writer.flush();
+        listener.waitFor(3);
+        assertEquals(1, store.getWritten().size());
+    }
+
+    /** The oldest samples are given up when too many are kept */
+    public void testKeptSamplesAreBounded() throws InterruptedException {
+        int batchSize = 2;
+        int kept = batchSize * SampleWriter.MAX_KEPT_BATCHES;
+        store.setFailures(1);
+        // The kept batch is not written again during the test
+        writer = new SampleWriter(store, batchSize, 60000, listener);
+        List<Sample> samples = new ArrayList<Sample>();
+        for (int i = 0; i < kept + 5; i++) {
+            Sample sample = newSample();
+            samples.add(sample);
+            writer.write(sample);
+            if (i == 0)
+                writer.flush();
+        }
+        listener.waitFor(5);
+        // The writer has kept the newest ones
+        writer.flush();
+        listener.waitFor(kept + 5);
+        assertEquals(samples.subList(5, samples.size()), store.getWritten());
+    }
+
+    /** A listener counting the samples written */
+    private static class CountingListener implements
+            SampleWriter.SamplesWrittenListener {
+
+        /** The number of samples written */
+        private int count = 0;
+
+        @Override
+        public synchronized void onSamplesWritten(int count) {
+            this.count += count;
+            notifyAll();
+        }
+
+        /** Wait until the given number of samples have been written */
+        synchronized void waitFor(int expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (count < expected) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue(count + " samples written instead of " + expected,
+                        remaining > 0);
+                wait(remaining);
+            }
+            assertEquals(expected, count);
+        }
+    }
+
+    /** A store failing its next writes, as a rolled back transaction */
+    private static class FailingStore implements SampleStore {
+
+        /** The number of writes to fail */
+        private int failures;
+        /** The number of writes */
+        private int attempts;
+        /** The samples written */
+        private final List<Sample> written = new ArrayList<Sample>();
+
+        synchronized void setFailures(int failures) {
+            this.failures = failures;
+        }
+
+        synchronized int getAttempts() {
+            return attempts;
+        }
+
+        synchronized List<Sample> getWritten() {
+            return new ArrayList<Sample>(written);
+        }
+
+        @Override
+        public synchronized void writeSamples(List<Sample> samples)
+                throws DataBaseException {
+            attempts++;
+            if (failures > 0) {
+                failures--;
+                throw new DataBaseException("Batch rolled back");
+            }
+            written.addAll(samples);
+        }
+
+        @Override
+        public void open() {}
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public boolean hasSamples() {
+            return false;
+        }
+
+        @Override
+        public boolean seal() {
+            return false;
+        }
+
+        @Override
+        public void export(String comments, OutputStream out, int format) {}
+
+        @Override
+        public void clear() {}
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.SparseArray;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the samples written into a SegmentLogStore then exported, read
+ * back with a BinarySampleDecoder
+ *
+ * @author Gaborit Nicolas
+ */
+public class SegmentLogStoreTest extends TestCase {
+
+    /** The directory of the segments */
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("segments", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    /** Return a batch of samples made at the given times */
+    private static List<Sample> batch(long... times) {
+        List<Sample> samples = new ArrayList<Sample>();
+        for (long time : times) {
+            SparseArray<String> data = new SparseArray<String>();
+            data.put(2, "-71");
+            Sample sample = new Sample(new MeasureContext(), data, 45.0, 5.0);
+            sample.time = time;
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    /** Export the sealed samples and return their times */
+    private static List<Long> exportTimes(SampleStore store) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.export("", out, SampleStore.FORMAT_BINARY);
+        BinarySampleDecoder decoder = new BinarySampleDecoder(
+                new ByteArrayInputStream(out.toByteArray()));
+        List<Long> times = new ArrayList<Long>();
+        BinarySampleDecoder.Record record;
+        while ((record = decoder.next()) != null) {
+            times.add(record.time);
+        }
+        return times;
+    }
+
+    /**
+     * The times are relative to the previous record of the segment, which may
+     * be in the previous batch
+     */
+    public void testTimesWithinSegment() throws Exception {
+        SegmentLogStore store = new SegmentLogStore(directory, 1 << 20, 0);
+        store.open();
+        store.writeSamples(batch(1000, 1500));
+        store.writeSamples(batch(2000, 2100));
+        assertTrue(store.seal());
+        List<Long> expected = new ArrayList<Long>();
+        for (long time : new long[] { 1000, 1500, 2000, 2100 }) {
+            expected.add(time);
+        }
+        assertEquals(expected, exportTimes(store));
+        store.clear();
+        store.close();
+    }
+
+    /**
+     * The times are relative to the previous record of the segment : a batch
+     * starting a new segment starts over
+     */
+    public void testTimesAcrossSegments() throws Exception {
+        // A segment per batch
+        SegmentLogStore store = new SegmentLogStore(directory, 1, 0);
+        store.open();
+        store.writeSamples(batch(1000, 1500));
+        store.writeSamples(batch(2000, 2100, 2200));
+        store.writeSamples(batch(9000));
+        assertTrue(store.seal());
+        List<Long> expected = new ArrayList<Long>();
+        for (long time : new long[] { 1000, 1500, 2000, 2100, 2200, 9000 }) {
+            expected.add(time);
+        }
+        assertEquals(expected, exportTimes(store));
+        store.clear();
+        store.close();
+    }
+
+    /** The samples written after an export are kept for the next one */
+    public void testExportThenWrite() throws Exception {
+        SegmentLogStore store = new SegmentLogStore(directory, 1 << 20, 0);
+        store.open();
+        store.writeSamples(batch(1000, 2000));
+        assertTrue(store.seal());
+        store.writeSamples(batch(3000));
+        assertEquals(2, exportTimes(store).size());
+        store.clear();
+        assertTrue(store.seal());
+        List<Long> times = exportTimes(store);
+        assertEquals(1, times.size());
+        assertEquals(3000L, (long) times.get(0));
+        store.clear();
+        assertFalse(store.seal());
+        store.close();
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.qualoutdoor.recorder.persistent;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Tests of the statements compiled once by the StatementCache, and
+ * comparison of their insert rate with SQL texts built for each row.
+ *
+ * The tables are created in an in-memory database.
+ *
+ * @author Gaborit Nicolas
+ */
+public class StatementCacheTest extends AndroidTestCase {
+
+    /** Number of rows inserted by each path of the benchmark */
+    private static final int ROW_COUNT = 20000;
+    /** Query inserting a node of the reference table */
+    private static final String INSERT_QUERY = "INSERT INTO recorder_tt"
+            + " (FATHER,VALUE,LEVEL) VALUES (?,?,?);";
+
+    /** The in-memory database */
+    private SQLiteDatabase db;
+    /** The tested cache */
+    private StatementCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create(null);
+        new SQLDataBaseCreator(getContext()).onCreate(db);
+        cache = new StatementCache(db);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.clear();
+        db.close();
+        super.tearDown();
+    }
+
+    /** A query is compiled once, a cleared cache compiles it again */
+    public void testSameStatement() {
+        SQLiteStatement statement = cache.get(INSERT_QUERY);
+        assertSame(statement, cache.get(INSERT_QUERY));
+        assertNotSame(statement, cache.get("SELECT count(*) FROM recorder_tt"));
+        cache.clear();
+        assertNotSame(statement, cache.get(INSERT_QUERY));
+    }
+
+    /** The values bound the last time are forgotten */
+    public void testBindingsCleared() {
+        String query = "SELECT IFNULL ( ? , -1 )";
+        SQLiteStatement statement = cache.get(query);
+        statement.bindLong(1, 42);
+        assertEquals(42, statement.simpleQueryForLong());
+        assertEquals(-1, cache.get(query).simpleQueryForLong());
+    }
+
+    /** executeInsert() returns the ID of each inserted row */
+    public void testInsertReturnsRowId() {
+        long previous = DataBaseTreeManager.ROOT_ID;
+        for (int value = 1; value <= 10; value++) {
+            SQLiteStatement insert = cache.get(INSERT_QUERY);
+            insert.bindLong(1, DataBaseTreeManager.ROOT_ID);
+            insert.bindLong(2, value);
+            insert.bindLong(3, 1);
+            long id = insert.executeInsert();
+            assertEquals(previous + 1, id);
+            Cursor c = db.rawQuery(
+                    "SELECT VALUE FROM recorder_tt WHERE ID = ?",
+                    new String[] {
+                        Long.toString(id)
+                    });
+            assertTrue(c.moveToFirst());
+            assertEquals(value, c.getInt(0));
+            c.close();
+            previous = id;
+        }
+    }
+
+    /**
+     * Compare the rows inserted per second by the cached statement and by a
+     * SQL text built and parsed for each row, followed by a
+     * last_insert_rowid() query. The rates are only logged : the timings of a
+     * device vary.
+     */
+    public void testInsertRate() {
+        // Warm up both paths
+        insertBound(100);
+        insertConcatenated(100);
+        long bound = insertBound(ROW_COUNT);
+        long concatenated = insertConcatenated(ROW_COUNT);
+        Log.i("StatementCacheTest", "bound : " + ROW_COUNT * 1000000000L
+                / bound + " statements/s, concatenated : " + ROW_COUNT
+                * 1000000000L / concatenated + " statements/s");
+    }
+
+    /** Insert rows through the cache, return the time taken in nanoseconds */
+    private long insertBound(int count) {
+        long start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                SQLiteStatement insert = cache.get(INSERT_QUERY);
+                insert.bindLong(1, DataBaseTreeManager.ROOT_ID);
+                insert.bindLong(2, i);
+                insert.bindLong(3, 1);
+                assertTrue(insert.executeInsert() > 0);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Insert rows as the connector did before the cache, return the time taken
+     * in nanoseconds
+     */
+    private long insertConcatenated(int count) {
+        long start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                db.execSQL("INSERT INTO recorder_tt (FATHER,VALUE,LEVEL) VALUES ("
+                        + DataBaseTreeManager.ROOT_ID + "," + i + ",1);");
+                Cursor c = db.rawQuery("SELECT last_insert_rowid()", null);
+                assertTrue(c.moveToFirst() && c.getLong(0) > 0);
+                c.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return System.nanoTime() - start;
+    }
+
+}
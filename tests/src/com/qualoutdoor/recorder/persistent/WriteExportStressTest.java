@@ -0,0 +1,284 @@
+package com.qualoutdoor.recorder.persistent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Stress test of the exports running while the SampleWriter writes samples
+ * into a SegmentLogStore or into the SQLite database : once the writer has
+ * reported every sample, a last export must leave every sample in the
+ * archive, exactly once. The sample batches must be written while the
+ * exports run, not after them ; their worst write times are logged.
+ *
+ * @author Gaborit Nicolas
+ */
+public class WriteExportStressTest extends AndroidTestCase {
+
+    /** Number of samples written */
+    private static final int SAMPLE_COUNT = 5000;
+    /** Time in ms to wait for the writer */
+    private static final long TIMEOUT = 30000;
+
+    /** The name of the database, as SQLDataBaseCreator names it */
+    private static final String DATABASE_NAME = "recorder.db";
+
+    /** The directory of the test files */
+    private File directory;
+    /** The context of the test database */
+    private Context context;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("stress", "");
+        directory.delete();
+        directory.mkdirs();
+        // The database of the application is left alone
+        context = new RenamingDelegatingContext(getContext(), "stress_");
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(directory);
+        context.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    /** Delete a file or a directory with its content */
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** Write samples into a segment log while exporting */
+    public void testSegmentLogStore() throws Exception {
+        // Small segments, sealed while the samples are written
+        writeWhileExporting(new TimedStore(new SegmentLogStore(new File(
+                directory, "segments"), 4096, 0)));
+    }
+
+    /**
+     * Write samples into the database while exporting : the export reads on
+     * its own WAL connection, and clears only the lines sealed before it
+     */
+    public void testSQLConnector() throws Exception {
+        writeWhileExporting(new TimedStore(new SQLConnector(context)));
+    }
+
+    /**
+     * Write samples while exporting, then export once the writer has reported
+     * every sample
+     */
+    private void writeWhileExporting(final TimedStore store) throws Exception {
+        store.open();
+        final PendingArchive archive = new PendingArchive(new File(directory,
+                "archive"));
+        final int[] written = new int[1];
+        SampleWriter writer = new SampleWriter(store, 7, 5,
+                new SampleWriter.SamplesWrittenListener() {
+                    @Override
+                    public void onSamplesWritten(int count) {
+                        synchronized (written) {
+                            written[0] += count;
+                            written.notifyAll();
+                        }
+                    }
+                });
+        // Export again and again while the samples are written
+        final boolean[] stop = new boolean[1];
+        Thread exporter = new Thread("Exporter") {
+            @Override
+            public void run() {
+                int index = 0;
+                while (true) {
+                    synchronized (stop) {
+                        if (stop[0])
+                            return;
+                    }
+                    export(store, archive, "export" + index++);
+                }
+            }
+        };
+        exporter.start();
+        try {
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                // The value tells the sample, whatever the store keeps of
+                // its time
+                SparseArray<String> data = new SparseArray<String>();
+                data.put(2, Integer.toString(i));
+                Sample sample = new Sample(new MeasureContext(), data, 45.0,
+                        5.0);
+                sample.time = i;
+                writer.write(sample);
+                if (i % 100 == 0)
+                    writer.flush();
+            }
+            writer.flush();
+            // Wait for the writer to report every sample, as the
+            // RecordingHandler does before its last export
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            synchronized (written) {
+                while (written[0] < SAMPLE_COUNT) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    assertTrue(written[0] + " samples written", remaining > 0);
+                    written.wait(remaining);
+                }
+            }
+        } finally {
+            synchronized (stop) {
+                stop[0] = true;
+            }
+            exporter.join(TIMEOUT);
+            writer.quit();
+        }
+        // The last export
+        export(store, archive, "last");
+        store.close();
+
+        // Every sample has been exported once
+        int[] counts = new int[SAMPLE_COUNT];
+        ZipFile zip = new ZipFile(archive.getFile());
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                InputStream in = zip.getInputStream(entries.nextElement());
+                try {
+                    BinarySampleDecoder decoder = new BinarySampleDecoder(in);
+                    BinarySampleDecoder.Record record;
+                    while ((record = decoder.next()) != null) {
+                        counts[Integer.parseInt(record.values[0].toString())]++;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            assertEquals("sample " + i, 1, counts[i]);
+        }
+
+        // The recording goes on during the exports
+        Log.i("WriteExportStressTest", store.toString());
+        assertTrue(store.toString(), store.batchesDuringExport > 0);
+    }
+
+    /** Export the store into a new entry of the archive, as FileGenerator */
+    private static void export(SampleStore store, PendingArchive archive,
+            String name) {
+        FileGenerator generator = new FileGenerator(store, "",
+                SampleStore.FORMAT_BINARY, archive, name, null);
+        generator.doInBackground();
+    }
+
+    /**
+     * A store timing the batches written by the SampleWriter, during the
+     * exports and outside of them
+     */
+    private static class TimedStore implements SampleStore {
+
+        /** The timed store */
+        private final SampleStore store;
+        /** Whether an export is running */
+        private volatile boolean exporting;
+        /** Number of batches written while an export was running */
+        int batchesDuringExport;
+        /** Worst time in ns of a batch written while an export was running */
+        long worstDuringExport;
+        /** Number of batches written without export */
+        int batchesAlone;
+        /** Worst time in ns of a batch written without export */
+        long worstAlone;
+
+        TimedStore(SampleStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public void open() throws DataBaseException {
+            store.open();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return store.isOpen();
+        }
+
+        @Override
+        public void close() {
+            store.close();
+        }
+
+        @Override
+        public void writeSamples(List<Sample> samples)
+                throws DataBaseException {
+            boolean exported = exporting;
+            long start = System.nanoTime();
+            store.writeSamples(samples);
+            long time = System.nanoTime() - start;
+            // Only written by the writer thread
+            if (exported || exporting) {
+                batchesDuringExport++;
+                worstDuringExport = Math.max(worstDuringExport, time);
+            } else {
+                batchesAlone++;
+                worstAlone = Math.max(worstAlone, time);
+            }
+        }
+
+        @Override
+        public boolean hasSamples() {
+            return store.hasSamples();
+        }
+
+        @Override
+        public boolean seal() throws DataBaseException {
+            return store.seal();
+        }
+
+        @Override
+        public void export(String comments, OutputStream out, int format)
+                throws DataBaseException, IOException {
+            exporting = true;
+            try {
+                store.export(comments, out, format);
+            } finally {
+                exporting = false;
+            }
+        }
+
+        @Override
+        public void clear() throws DataBaseException {
+            store.clear();
+        }
+
+        @Override
+        public String toString() {
+            return store.getClass().getSimpleName() + " : "
+                    + batchesDuringExport + " batches during the exports, "
+                    + worstDuringExport / 1000000 + " ms at worst, "
+                    + batchesAlone + " batches alone, " + worstAlone / 1000000
+                    + " ms at worst";
+        }
+    }
+
+}
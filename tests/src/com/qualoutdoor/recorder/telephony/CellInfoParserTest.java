@@ -0,0 +1,164 @@
+package com.qualoutdoor.recorder.telephony;
+
+import java.util.List;
+
+import android.os.Debug;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the snapshots built by the CellInfoParser : the diffs, the cells
+ * kept immutable once published, and no allocation when nothing changed.
+ *
+ * The builders are filled directly, as the Android CellInfo can't be created
+ * by the tests.
+ *
+ * @author Gaborit Nicolas
+ */
+public class CellInfoParserTest extends TestCase {
+
+    /** Number of refreshes measured by the allocation test */
+    private static final int REFRESH_COUNT = 1000;
+
+    /** The tested parser */
+    private CellInfoParser parser;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        parser = new CellInfoParser(4);
+    }
+
+    /** Fill the builder of the given index with a GSM cell */
+    private void fill(int index, int cid, int dbm, boolean registered) {
+        CellInfoBuilder builder = parser.getBuilder(index);
+        builder.clear();
+        builder.cellType = ICellInfo.CELL_GSM;
+        builder.timeStamp = index;
+        builder.registered = registered;
+        builder.cid = cid;
+        builder.lac = 12;
+        builder.mcc = 208;
+        builder.mnc = 1;
+        builder.dbm = dbm;
+        builder.asu = (dbm + 113) / 2;
+    }
+
+    /** The first refresh adds every cell */
+    public void testFirstRefresh() {
+        fill(0, 100, -70, true);
+        fill(1, 101, -90, false);
+        CellSnapshot snapshot = parser.update(2);
+        assertNotNull(snapshot);
+        assertTrue(snapshot.follows(CellSnapshot.EMPTY));
+        assertEquals(2, snapshot.getCells().size());
+        assertEquals(snapshot.getCells(), snapshot.getDiff().getAdded());
+        assertTrue(snapshot.getDiff().getRemoved().isEmpty());
+        assertTrue(snapshot.getDiff().getChanged().isEmpty());
+        assertEquals(100, snapshot.getRegisteredCell().getCid());
+        assertEquals(-70, snapshot.getRegisteredCell().getSignalStrength()
+                .getDbm());
+    }
+
+    /** A refresh without change builds nothing */
+    public void testUnchangedRefresh() {
+        fill(0, 100, -70, true);
+        CellSnapshot first = parser.update(1);
+        fill(0, 100, -70, true);
+        // The timestamp is not a change
+        parser.getBuilder(0).timeStamp = 42;
+        assertNull(parser.update(1));
+        assertSame(first, parser.getSnapshot());
+    }
+
+    /**
+     * The diff holds the added, removed and changed cells, the unchanged ones
+     * are kept
+     */
+    public void testDiff() {
+        fill(0, 100, -70, true);
+        fill(1, 101, -90, false);
+        fill(2, 102, -95, false);
+        CellSnapshot first = parser.update(3);
+        ICellInfo unchanged = first.getCells().get(0);
+        ICellInfo before = first.getCells().get(1);
+        ICellInfo removed = first.getCells().get(2);
+
+        fill(0, 100, -70, true);
+        fill(1, 101, -85, false);
+        fill(2, 103, -99, false);
+        CellSnapshot second = parser.update(3);
+        assertTrue(second.follows(first));
+        CellInfoDiff diff = second.getDiff();
+        assertEquals(1, diff.getAdded().size());
+        assertEquals(103, diff.getAdded().get(0).getCid());
+        assertEquals(1, diff.getChanged().size());
+        assertEquals(-85, diff.getChanged().get(0).getSignalStrength()
+                .getDbm());
+        assertEquals(1, diff.getRemoved().size());
+        assertSame(removed, diff.getRemoved().get(0));
+        // The unchanged cell is the same object
+        assertSame(unchanged, second.getCells().get(0));
+        // The changed cell is a new object, the previous one is untouched
+        assertNotSame(before, second.getCells().get(1));
+        assertEquals(-90, before.getSignalStrength().getDbm());
+    }
+
+    /** The published cells and lists are never modified by the next refreshes */
+    public void testPublishedCellsAreImmutable() {
+        fill(0, 100, -70, true);
+        fill(1, 101, -90, false);
+        CellSnapshot first = parser.update(2);
+        List<ICellInfo> cells = first.getCells();
+        ISignalStrength signalStrength = first.getRegisteredCell()
+                .getSignalStrength();
+        for (int i = 0; i < 10; i++) {
+            fill(0, 100, -60 - i, true);
+            fill(1, 200 + i, -80, false);
+            parser.update(2);
+        }
+        assertEquals(2, cells.size());
+        assertEquals(100, cells.get(0).getCid());
+        assertEquals(101, cells.get(1).getCid());
+        assertEquals(-90, cells.get(1).getSignalStrength().getDbm());
+        assertEquals(-70, signalStrength.getDbm());
+        try {
+            cells.clear();
+            fail("The cells of a snapshot are modifiable");
+        } catch (UnsupportedOperationException e) {
+            // read only
+        }
+    }
+
+    /** A refresh without change does not allocate anything */
+    public void testUnchangedRefreshAllocatesNothing() {
+        fill(0, 100, -70, true);
+        fill(1, 101, -90, false);
+        fill(2, 102, -95, false);
+        assertNotNull(parser.update(3));
+        // Warm up
+        for (int i = 0; i < REFRESH_COUNT; i++) {
+            refreshUnchanged();
+        }
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        int changes = 0;
+        for (int i = 0; i < REFRESH_COUNT; i++) {
+            if (refreshUnchanged() != null)
+                changes++;
+        }
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+        assertEquals(0, changes);
+        assertEquals(0, allocations);
+    }
+
+    /** Fill the builders again with the same cells, and update */
+    private CellSnapshot refreshUnchanged() {
+        fill(0, 100, -70, true);
+        fill(1, 101, -90, false);
+        fill(2, 102, -95, false);
+        return parser.update(3);
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.qualoutdoor.recorder.telephony;
+
+import android.os.Bundle;
+import android.os.Debug;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the CustomCellInfo held in plain fields : the getters don't
+ * allocate, and the Bundles built for the other components hold the known
+ * values only and are read back as they were.
+ *
+ * @author Gaborit Nicolas
+ */
+public class CustomCellInfoTest extends TestCase {
+
+    /** Number of getter calls measured by the allocation test */
+    private static final int CALL_COUNT = 10000;
+
+    /** Return a LTE cell */
+    private static CustomCellInfo lteCell() {
+        CellInfoBuilder builder = new CellInfoBuilder();
+        builder.cellType = ICellInfo.CELL_LTE;
+        builder.timeStamp = 123456789L;
+        builder.registered = true;
+        builder.dbm = -95;
+        builder.asu = 45;
+        builder.cid = 26000001;
+        builder.mcc = 208;
+        builder.mnc = 10;
+        builder.pci = 302;
+        builder.tac = 4100;
+        builder.ta = 7;
+        return builder.build();
+    }
+
+    /** Assert that two cells hold the same values */
+    private static void assertSameValues(ICellInfo expected, ICellInfo actual) {
+        assertEquals(expected.getCellType(), actual.getCellType());
+        assertEquals(expected.getTimeStamp(), actual.getTimeStamp());
+        assertEquals(expected.isRegistered(), actual.isRegistered());
+        assertEquals(expected.getSignalStrength().getDbm(), actual
+                .getSignalStrength().getDbm());
+        assertEquals(expected.getSignalStrength().getAsuLevel(), actual
+                .getSignalStrength().getAsuLevel());
+        assertEquals(expected.getCid(), actual.getCid());
+        assertEquals(expected.getLac(), actual.getLac());
+        assertEquals(expected.getMcc(), actual.getMcc());
+        assertEquals(expected.getMnc(), actual.getMnc());
+        assertEquals(expected.getPsc(), actual.getPsc());
+        assertEquals(expected.getPci(), actual.getPci());
+        assertEquals(expected.getTac(), actual.getTac());
+        assertEquals(expected.getTimingAdvance(), actual.getTimingAdvance());
+    }
+
+    /** The signal strength is parsed once and shared */
+    public void testSignalStrengthIsShared() {
+        CustomCellInfo cell = lteCell();
+        assertSame(cell.getSignalStrength(), cell.getSignalStrength());
+        assertEquals(-95, cell.getSignalStrength().getDbm());
+        assertEquals(45, cell.getSignalStrength().getAsuLevel());
+    }
+
+    /** The getters called by the views don't allocate anything */
+    public void testGettersAllocateNothing() {
+        CustomCellInfo cell = lteCell();
+        // Warm up
+        int sum = readAll(cell);
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < CALL_COUNT; i++) {
+            sum += readAll(cell);
+        }
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+        assertTrue(sum != 0);
+        assertEquals(0, allocations);
+    }
+
+    /** Call the getters as a view does */
+    private static int readAll(ICellInfo cell) {
+        ISignalStrength signalStrength = cell.getSignalStrength();
+        return cell.getCellType() + cell.getCid() + cell.getMcc()
+                + cell.getMnc() + cell.getPci() + cell.getTac()
+                + cell.getTimingAdvance() + signalStrength.getDbm()
+                + signalStrength.getAsuLevel() + (cell.isRegistered() ? 1 : 0);
+    }
+
+    /** A cell passed through a Bundle is read back as it was */
+    public void testBundleRoundTrip() {
+        CustomCellInfo cell = lteCell();
+        assertSameValues(cell, new CustomCellInfo(cell.getBundle()));
+        // The unknown values stay unknown
+        CustomCellInfo empty = new CustomCellInfo();
+        CustomCellInfo read = new CustomCellInfo(empty.getBundle());
+        assertSameValues(empty, read);
+        assertEquals(Integer.MAX_VALUE, read.getCid());
+        assertEquals(Long.MAX_VALUE, read.getTimeStamp());
+        assertEquals(ISignalStrength.UNKNOWN_DBM, read.getSignalStrength()
+                .getDbm());
+    }
+
+    /** The Bundle only holds the known values */
+    public void testBundleHoldsKnownValues() {
+        Bundle bundle = lteCell().getBundle();
+        assertTrue(bundle.containsKey(CustomCellInfo.PCI));
+        assertFalse(bundle.containsKey(CustomCellInfo.LAC));
+        assertFalse(bundle.containsKey(CustomCellInfo.PSC));
+        Bundle empty = new CustomCellInfo().getBundle();
+        assertFalse(empty.containsKey(CustomCellInfo.CID));
+        assertFalse(empty.containsKey(CustomCellInfo.TIMESTAMP));
+        assertFalse(empty.getBundle(CustomCellInfo.SIGNAL_STRENGTH)
+                .containsKey(CustomSignalStrength.DBM));
+    }
+
+    /** A copied cell does not follow the changes of its source */
+    public void testCopyIsIndependent() {
+        CellInfoBuilder builder = new CellInfoBuilder();
+        builder.cellType = ICellInfo.CELL_GSM;
+        builder.cid = 1;
+        builder.dbm = -70;
+        CustomCellInfo copy = new CustomCellInfo(builder);
+        builder.cid = 2;
+        builder.dbm = -80;
+        assertEquals(1, copy.getCid());
+        assertEquals(-70, copy.getSignalStrength().getDbm());
+    }
+
+}